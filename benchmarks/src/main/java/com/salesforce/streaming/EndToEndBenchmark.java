@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages per second, and the latency from publication to delivery, of a
+ * session connected to a {@link LocalStreamingServer} over the loopback
+ * interface. Messages travel the client's whole stack: the long polling
+ * transport, CometD's decoding and the dispatch stage.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    private static final int             BATCH     = 1000;
+    private static final long            TIMEOUT   = 10;
+
+    private final BlockingQueue<Message> delivered = new LinkedBlockingQueue<Message>();
+    private LocalEngine                  local;
+    private PrintStream                  out;
+    private String                       topic;
+
+    /**
+     * Publish one event, and wait for its delivery
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Message latency() throws InterruptedException {
+        local.getServer().publish(topic);
+        return take();
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        out = LocalEngine.silence();
+        LocalStreamingServer.Settings settings = new LocalStreamingServer.Settings();
+        settings.setEventsPerSecond(0);
+        local = new LocalEngine(settings, new MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel channel, Message message) {
+                delivered.add(message);
+            }
+        });
+        topic = local.getServer().getTopics().get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        local.stop();
+        System.setOut(out);
+    }
+
+    /**
+     * Publish a batch of events, and wait for the delivery of all of them
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            local.getServer().publish(topic);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            take();
+        }
+    }
+
+    private Message take() throws InterruptedException {
+        Message message = delivered.poll(TIMEOUT, TimeUnit.SECONDS);
+        if (message == null) {
+            throw new IllegalStateException("No message delivered in "
+                                            + TIMEOUT + " seconds");
+        }
+        return message;
+    }
+}
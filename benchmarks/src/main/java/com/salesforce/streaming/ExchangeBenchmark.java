@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.client.CachedExchange;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.client.HttpEventListener;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.View;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.salesforce.streaming.EventLog.Level;
+
+/**
+ * The per exchange overhead the client adds to Jetty's: the events of one
+ * /meta/connect exchange, delivered to a bare exchange, to one wrapped in an
+ * {@link ExchangeListener}, and to one customized by the
+ * {@link AuthorizedLongPollingTransport}.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExchangeBenchmark {
+    private static final Buffer            CONTENT      = new ByteArrayBuffer(
+                                                                              "[{\"channel\":\"/meta/connect\",\"successful\":true}]");
+    private static final Buffer            CONTENT_TYPE = new ByteArrayBuffer(
+                                                                              "Content-Type");
+    private static final Buffer            JSON         = new ByteArrayBuffer(
+                                                                              "application/json;charset=UTF-8");
+    private static final Buffer            OK           = new ByteArrayBuffer(
+                                                                              "OK");
+    private static final Buffer            VERSION      = new ByteArrayBuffer(
+                                                                              "HTTP/1.1");
+
+    @Param({ "WARN", "TRACE" })
+    private String                         logLevel;
+    private PrintStream                    out;
+    /**
+     * Jetty's connection advances the status of its exchanges, and
+     * {@link CachedExchange} refuses its response fields until they are
+     * parsed
+     */
+    private Method                         setStatus;
+    private AuthorizedLongPollingTransport transport;
+
+    @Benchmark
+    public ContentExchange bare() throws Exception {
+        ContentExchange exchange = exchange();
+        complete(exchange);
+        return exchange;
+    }
+
+    @Benchmark
+    public ContentExchange customized() throws Exception {
+        ContentExchange exchange = exchange();
+        transport.customize(exchange);
+        complete(exchange);
+        return exchange;
+    }
+
+    @Benchmark
+    public ContentExchange listened() throws Exception {
+        ContentExchange exchange = exchange();
+        new ExchangeListener(exchange);
+        complete(exchange);
+        return exchange;
+    }
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        out = LocalEngine.silence();
+        setStatus = HttpExchange.class.getDeclaredMethod("setStatus", int.class);
+        setStatus.setAccessible(true);
+        EventLog.getDefault().setLevel(Level.valueOf(logLevel));
+        transport = new AuthorizedLongPollingTransport(
+                                                       new CredentialSupplier() {
+                                                           @Override
+                                                           public String getToken() {
+                                                               return "00D000000000001!benchmark";
+                                                           }
+
+                                                           @Override
+                                                           public String refresh(String rejected) {
+                                                               return getToken();
+                                                           }
+                                                       },
+                                                       new HashMap<String, Object>(),
+                                                       new HttpClient(), true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        EventLog.getDefault().flush();
+        System.setOut(out);
+    }
+
+    /**
+     * Deliver the events of a successful exchange, and advance its status, as
+     * Jetty's connection does
+     */
+    private void complete(ContentExchange exchange) throws Exception {
+        HttpEventListener listener = exchange.getEventListener();
+        setStatus.invoke(exchange, HttpExchange.STATUS_WAITING_FOR_CONNECTION);
+        setStatus.invoke(exchange, HttpExchange.STATUS_WAITING_FOR_COMMIT);
+        setStatus.invoke(exchange, HttpExchange.STATUS_SENDING_REQUEST);
+        listener.onRequestCommitted();
+        setStatus.invoke(exchange, HttpExchange.STATUS_WAITING_FOR_RESPONSE);
+        listener.onRequestComplete();
+        setStatus.invoke(exchange, HttpExchange.STATUS_PARSING_HEADERS);
+        listener.onResponseStatus(VERSION, 200, OK);
+        listener.onResponseHeader(CONTENT_TYPE, JSON);
+        setStatus.invoke(exchange, HttpExchange.STATUS_PARSING_CONTENT);
+        listener.onResponseHeaderComplete();
+        listener.onResponseContent(new View(CONTENT));
+        setStatus.invoke(exchange, HttpExchange.STATUS_COMPLETED);
+        listener.onResponseComplete();
+    }
+
+    private ContentExchange exchange() {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod("POST");
+        exchange.setRequestURI("/cometd/23.0/connect");
+        return exchange;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * A streaming engine with a single session, subscribed to every channel of a
+ * {@link LocalStreamingServer}, for benchmarks that need the client's real
+ * transport and dispatch stages.
+ * 
+ * @author hhildebrand
+ * 
+ */
+class LocalEngine {
+    private static final long STARTUP_TIMEOUT = 30 * 1000;
+
+    /**
+     * Discard standard out, so that the client's per message output does not
+     * flood the benchmark harness, and Jetty's debug logging. Must precede any
+     * use of the {@link EventLog}, which writes to the standard out it first
+     * sees.
+     * 
+     * @return the previous standard out
+     */
+    static PrintStream silence() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("root")).setLevel(Level.INFO);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+
+            @Override
+            public void write(int b) {
+            }
+        }));
+        return out;
+    }
+
+    private final StreamingEngine      engine;
+    private final LocalStreamingServer server;
+
+    /**
+     * @param settings
+     *            - the settings of the local server
+     * @param listener
+     *            - the listener handed the session's messages, or null for
+     *            the session's own
+     */
+    LocalEngine(LocalStreamingServer.Settings settings,
+                final MessageListener listener) throws Exception {
+        server = new LocalStreamingServer(settings);
+        server.start();
+        String yaml = "username: benchmark@example.com\n"
+                      + "password: benchmark\n" + "loginEndpoint: "
+                      + server.getLoginEndpoint() + "\n" + "channels: "
+                      + server.getTopics() + "\n" + "logLevel: WARN\n"
+                      + "metricsInterval: 0\n";
+        engine = new StreamingEngine(
+                                     Configuration.fromYaml(new ByteArrayInputStream(
+                                                                                     yaml.getBytes("UTF-8")))) {
+            @Override
+            protected Debugger newSession(Configuration session) {
+                if (listener == null) {
+                    return super.newSession(session);
+                }
+                return new Debugger(session, this) {
+                    @Override
+                    protected MessageListener messageListener() {
+                        return listener;
+                    }
+                };
+            }
+        };
+        engine.start();
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        for (String topic : server.getTopics()) {
+            Future<?> subscribed = getSession().getSubscription(topic);
+            while (subscribed == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IllegalStateException("Not subscribed to: "
+                                                    + topic);
+                }
+                Thread.sleep(10);
+                subscribed = getSession().getSubscription(topic);
+            }
+            subscribed.get(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    StreamingEngine getEngine() {
+        return engine;
+    }
+
+    LocalStreamingServer getServer() {
+        return server;
+    }
+
+    Debugger getSession() {
+        return engine.getSessions().get(0);
+    }
+
+    void stop() throws Exception {
+        engine.stop();
+        server.stop();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.salesforce.streaming.SoapLoginUtil.LoginResponseParser;
+
+/**
+ * The cost of extracting the session id and server url from a SOAP login
+ * response, delivered whole or in the chunks Jetty reads it in.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginResponseBenchmark {
+    private static final String RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                                           + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns=\"urn:partner.soap.sforce.com\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                                           + "<soapenv:Body><loginResponse><result>"
+                                           + "<metadataServerUrl>https://na1.salesforce.com/services/Soap/m/22.0/00D000000000001</metadataServerUrl>"
+                                           + "<passwordExpired>false</passwordExpired><sandbox>false</sandbox>"
+                                           + "<serverUrl>https://na1.salesforce.com/services/Soap/u/22.0/00D000000000001</serverUrl>"
+                                           + "<sessionId>00D000000000001!AQ4AQFhQuP5VnKMcA0Qv6pFBcQ5U_0XBNsLXBQBIkkKO9vvBFm8xOuW8ZNWkLdJ3DnhRRNTWWiUDy8ZSAGFdj8H6lnRdKJy3</sessionId>"
+                                           + "<userId>005000000000001</userId><userInfo>"
+                                           + "<accessibilityMode>false</accessibilityMode><currencySymbol>$</currencySymbol>"
+                                           + "<orgAttachmentFileSizeLimit>5242880</orgAttachmentFileSizeLimit><orgDefaultCurrencyIsoCode>USD</orgDefaultCurrencyIsoCode>"
+                                           + "<orgDisallowHtmlAttachments>false</orgDisallowHtmlAttachments><orgHasPersonAccounts>false</orgHasPersonAccounts>"
+                                           + "<organizationId>00D000000000001</organizationId><organizationMultiCurrency>false</organizationMultiCurrency>"
+                                           + "<organizationName>Benchmark &amp; Co.</organizationName><profileId>00e000000000001</profileId>"
+                                           + "<roleId xsi:nil=\"true\"/><sessionSecondsValid>7200</sessionSecondsValid>"
+                                           + "<userDefaultCurrencyIsoCode xsi:nil=\"true\"/><userEmail>benchmark@example.com</userEmail>"
+                                           + "<userFullName>Benchmark User</userFullName><userId>005000000000001</userId>"
+                                           + "<userLanguage>en_US</userLanguage><userLocale>en_US</userLocale>"
+                                           + "<userName>benchmark@example.com</userName><userTimeZone>America/Los_Angeles</userTimeZone>"
+                                           + "<userType>Standard</userType><userUiSkin>Theme3</userUiSkin>"
+                                           + "</userInfo></result></loginResponse></soapenv:Body></soapenv:Envelope>";
+
+    private Buffer[]            chunks;
+    /**
+     * The size of the buffers the response is delivered in; 0 delivers it
+     * whole
+     */
+    @Param({ "0", "512" })
+    private int                 chunkSize;
+
+    @Benchmark
+    public String parse() throws UnsupportedEncodingException {
+        LoginResponseParser parser = new LoginResponseParser();
+        for (Buffer chunk : chunks) {
+            parser.parse(chunk);
+        }
+        if (!parser.isComplete()) {
+            throw new IllegalStateException("Incomplete parse");
+        }
+        return parser.getSessionId();
+    }
+
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        byte[] response = RESPONSE.getBytes("UTF-8");
+        int size = chunkSize == 0 ? response.length : chunkSize;
+        chunks = new Buffer[(response.length + size - 1) / size];
+        for (int i = 0; i < chunks.length; i++) {
+            int offset = i * size;
+            chunks[i] = new ByteArrayBuffer(response, offset,
+                                            Math.min(size, response.length
+                                                           - offset));
+        }
+    }
+}
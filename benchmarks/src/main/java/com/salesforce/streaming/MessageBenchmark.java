@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
+import org.cometd.client.transport.LongPollingTransport;
+import org.eclipse.jetty.client.HttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of decoding a /meta/connect response into messages, and of handing
+ * them to the session's message listener, directly or through the dispatch
+ * stage. The <code>scan</code> benchmarks measure the same for the raw
+ * payload mode. Each operation is one response of <code>batch</code> messages.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    /**
+     * Exposes the transport's decoding of response content
+     */
+    private static class Decoder extends LongPollingTransport {
+        private Decoder() {
+            super(new HashMap<String, Object>(), new HttpClient());
+            setURL("http://localhost/cometd/23.0");
+            init();
+        }
+
+        private List<Message.Mutable> decode(String content)
+                                                            throws ParseException {
+            return parseMessages(content);
+        }
+    }
+
+    private static final String CHANNEL = "/topic/LoadTest0";
+
+    @Param({ "1", "100" })
+    private int                 batch;
+    private byte[]              bytes;
+    private String              content;
+    private final Decoder       decoder = new Decoder();
+    private MessageListener     dispatched;
+    private LocalEngine         local;
+    private MessageListener     listener;
+    private PrintStream         out;
+    @Param({ "256", "4096" })
+    private int                 payloadSize;
+
+    @Benchmark
+    public List<Message.Mutable> decode() throws ParseException {
+        return decoder.decode(content);
+    }
+
+    @Benchmark
+    public void decodeAndDispatch() throws ParseException {
+        for (Message message : decoder.decode(content)) {
+            dispatched.onMessage(null, message);
+        }
+    }
+
+    @Benchmark
+    public void decodeAndHandle() throws ParseException {
+        for (Message message : decoder.decode(content)) {
+            listener.onMessage(null, message);
+        }
+    }
+
+    @Benchmark
+    public List<RawMessage> scan() throws ParseException {
+        return RawMessage.parse(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public void scanAndHandle() throws ParseException {
+        for (Message message : RawMessage.parse(bytes, 0, bytes.length)) {
+            listener.onMessage(null, message);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        out = LocalEngine.silence();
+        LocalStreamingServer.Settings settings = new LocalStreamingServer.Settings();
+        settings.setEventsPerSecond(0);
+        local = new LocalEngine(settings, null);
+        listener = local.getSession().messageListener();
+        dispatched = local.getEngine().getDispatcher().dispatch(CHANNEL,
+                                                                listener);
+
+        char[] padding = new char[payloadSize];
+        Arrays.fill(padding, 'x');
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < batch; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"channel\":\"").append(CHANNEL);
+            builder.append("\",\"data\":{\"event\":{\"createdDate\":\"2012-10-18T12:00:00.000+0000\",\"replayId\":");
+            builder.append(i + 1);
+            builder.append(",\"type\":\"updated\"},\"sobject\":{\"Name\":\"");
+            builder.append(padding);
+            builder.append("\",\"Id\":\"001000000000001\"}}}");
+        }
+        content = builder.append(']').toString();
+        bytes = content.getBytes("UTF-8");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        local.stop();
+        System.setOut(out);
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSession;
+
+import com.salesforce.streaming.EventLog.Level;
+import com.salesforce.streaming.Metrics.SessionMetrics;
+
+/**
+ * Derives the timeouts of a session from the server's advice and the round
+ * trips the session observes, rather than fixing them up front. As an
+ * extension of the session's clients, it times every meta exchange, and
+ * keeps the <code>timeout</code> and <code>interval</code> the server
+ * advises. A connect the server held for the advised timeout contributes
+ * the time it took beyond that; exchanges the server answers at once
+ * contribute their whole round trip; connects answered early, with events,
+ * contribute nothing. The samples are smoothed as TCP smooths its round trip
+ * time, and the network delay allowed on top of the advised timeout before
+ * an exchange expires is the smoothed round trip plus four times its
+ * variation, within the configured bounds. An exchange that expires anyway
+ * doubles the delay, up to its upper bound.
+ * 
+ * CometD reads the network delay of a transport once, when the transport is
+ * initialized, so the session's transports {@link #apply(Object)} the
+ * current delay to themselves before each exchange.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class AdaptiveTimeouts extends ClientSession.Extension.Adapter {
+    private static final int                            CONNECT_ROUND_TRIPS   = 3;
+    private static final String                         DELAY_FIELD           = "_maxNetworkDelay";
+    private static final ConcurrentMap<Class<?>, Field> DELAY_FIELDS          = new ConcurrentHashMap<Class<?>, Field>();
+    private static final long                           INITIAL_NETWORK_DELAY = 5000;
+
+    /**
+     * @return the network delay field declared by the class of the transport,
+     *         or one of its super classes, or null if there is none
+     */
+    private static Field delayField(Class<?> transport) {
+        Field field = DELAY_FIELDS.get(transport);
+        if (field != null) {
+            return field;
+        }
+        for (Class<?> c = transport; c != null; c = c.getSuperclass()) {
+            try {
+                field = c.getDeclaredField(DELAY_FIELD);
+                field.setAccessible(true);
+                DELAY_FIELDS.put(transport, field);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // try the super class
+            }
+        }
+        return null;
+    }
+
+    private volatile long                       advisedInterval = -1;
+    private volatile long                       advisedTimeout  = -1;
+    private final long                          maxConnectTimeout;
+    private final long                          maxNetworkDelay;
+    private final SessionMetrics                metrics;
+    private final long                          minNetworkDelay;
+    private volatile long                       networkDelay;
+    /**
+     * The time each meta message awaiting its reply was sent, and how long
+     * the server may hold it
+     */
+    private final ConcurrentMap<String, long[]> pending         = new ConcurrentHashMap<String, long[]>();
+    private double                              roundTrip;
+    private boolean                             sampled;
+    private double                              variation;
+
+    /**
+     * @param configuration
+     *            - the configuration of the session, whose network delay
+     *            bounds and connect timeout apply
+     * @param metrics
+     *            - the metrics of the session
+     */
+    public AdaptiveTimeouts(Configuration configuration, SessionMetrics metrics) {
+        this.metrics = metrics;
+        minNetworkDelay = configuration.getMinNetworkDelay();
+        maxNetworkDelay = Math.max(minNetworkDelay,
+                                   configuration.getMaxNetworkDelay());
+        maxConnectTimeout = configuration.getConnectTimeout();
+        networkDelay = bound(INITIAL_NETWORK_DELAY);
+        publish();
+    }
+
+    /**
+     * Write the current network delay into the transport, before it sends an
+     * exchange
+     * 
+     * @param transport
+     *            - a CometD transport
+     */
+    public void apply(Object transport) {
+        Field field = delayField(transport.getClass());
+        if (field == null) {
+            return;
+        }
+        try {
+            field.setLong(transport, networkDelay);
+        } catch (IllegalAccessException e) {
+            EventLog.getDefault().log(Level.WARN, e,
+                                      "Unable to set the network delay of: %s",
+                                      transport);
+        }
+    }
+
+    /**
+     * @return the interval the server advised between connects, in
+     *         milliseconds, or -1 until advised
+     */
+    public long getAdvisedInterval() {
+        return advisedInterval;
+    }
+
+    /**
+     * @return the time the server advised it holds a connect, in
+     *         milliseconds, or -1 until advised
+     */
+    public long getAdvisedTimeout() {
+        return advisedTimeout;
+    }
+
+    /**
+     * @return the timeout of opening a connection: a few smoothed round
+     *         trips, for the TCP and TLS handshakes, plus four times their
+     *         variation, within the minimum network delay and the configured
+     *         connect timeout. The configured connect timeout until a round
+     *         trip has been observed.
+     */
+    public synchronized long getConnectTimeout() {
+        if (!sampled) {
+            return maxConnectTimeout;
+        }
+        return Math.min(maxConnectTimeout,
+                        Math.max(minNetworkDelay,
+                                 (long) (CONNECT_ROUND_TRIPS * roundTrip + 4 * variation)));
+    }
+
+    /**
+     * @return the delay allowed for the network on top of the advised
+     *         timeout, in milliseconds
+     */
+    public long getNetworkDelay() {
+        return networkDelay;
+    }
+
+    /**
+     * A meta exchange expired before the server replied: the network delay
+     * was too short
+     */
+    public void onExpire() {
+        synchronized (this) {
+            networkDelay = bound(networkDelay * 2);
+        }
+        metrics.onExpire();
+        publish();
+        EventLog.getDefault().log(Level.INFO,
+                                  "Meta exchange expired, network delay now: %s ms",
+                                  networkDelay);
+    }
+
+    @Override
+    public boolean rcvMeta(ClientSession session, Message.Mutable message) {
+        Map<String, Object> advice = message.getAdvice();
+        if (advice != null) {
+            Number timeout = number(advice.get(Message.TIMEOUT_FIELD));
+            if (timeout != null) {
+                advisedTimeout = timeout.longValue();
+            }
+            Number interval = number(advice.get(Message.INTERVAL_FIELD));
+            if (interval != null) {
+                advisedInterval = interval.longValue();
+            }
+        }
+        long[] sent = message.getId() == null ? null
+                                             : pending.remove(message.getId());
+        if (sent != null && message.isSuccessful()) {
+            long held = TimeUnit.MILLISECONDS.toNanos(sent[1]);
+            long elapsed = nanoTime() - sent[0];
+            if (held == 0) {
+                sample(elapsed);
+            } else if (elapsed >= held) {
+                sample(elapsed - held);
+            }
+        }
+        publish();
+        return true;
+    }
+
+    @Override
+    public boolean sendMeta(ClientSession session, Message.Mutable message) {
+        String channel = message.getChannel();
+        if (Channel.META_HANDSHAKE.equals(channel)) {
+            pending.clear();
+        }
+        if (message.getId() == null || Channel.META_DISCONNECT.equals(channel)) {
+            return true;
+        }
+        long held = 0;
+        if (Channel.META_CONNECT.equals(channel)) {
+            Map<String, Object> advice = message.getAdvice();
+            Number timeout = advice == null ? null
+                                           : number(advice.get(Message.TIMEOUT_FIELD));
+            held = timeout != null ? timeout.longValue()
+                                  : Math.max(0, advisedTimeout);
+        }
+        pending.put(message.getId(), new long[] { nanoTime(), held });
+        return true;
+    }
+
+    /**
+     * @return the time exchanges are timed by, in nanoseconds
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private long bound(long delay) {
+        return Math.min(maxNetworkDelay, Math.max(minNetworkDelay, delay));
+    }
+
+    private Number number(Object value) {
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        if (value != null) {
+            try {
+                return Long.valueOf(value.toString());
+            } catch (NumberFormatException e) {
+                // not advised
+            }
+        }
+        return null;
+    }
+
+    private void publish() {
+        metrics.onTimeouts(advisedTimeout, advisedInterval, networkDelay);
+    }
+
+    /**
+     * Smooth the round trip, as RFC 6298 does
+     */
+    private void sample(long nanos) {
+        metrics.onRoundTrip(nanos);
+        double millis = nanos / 1.0E6;
+        synchronized (this) {
+            if (!sampled) {
+                sampled = true;
+                roundTrip = millis;
+                variation = millis / 2;
+            } else {
+                variation = 0.75 * variation + 0.25
+                            * Math.abs(roundTrip - millis);
+                roundTrip = 0.875 * roundTrip + 0.125 * millis;
+            }
+            networkDelay = bound((long) Math.ceil(roundTrip + 4 * variation));
+        }
+    }
+}
@@ -28,32 +28,83 @@ package com.salesforce.streaming;
 
 import java.util.Map;
 
+import org.cometd.client.BayeuxClient;
 import org.cometd.client.transport.LongPollingTransport;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
 
 /**
+ * A long polling transport that authorizes each exchange with the current
+ * token of its {@link CredentialSupplier}. An exchange rejected as
+ * unauthorized is sent again once with a refreshed token, by a
+ * {@link ReauthorizingListener}. Responses are compressed, if the server
+ * agrees, and inflated as they arrive by a {@link CompressionListener}. The
+ * network delay allowed before an exchange expires follows the session's
+ * {@link AdaptiveTimeouts}, if set.
+ * 
  * @author hhildebrand
  * 
  */
 public class AuthorizedLongPollingTransport extends LongPollingTransport {
-    private final String sid;
+    private final boolean             compression;
+    private final CredentialSupplier  credentials;
+    private final HttpClient          httpClient;
+    private volatile BayeuxClient     rawReceiver;
+    private volatile AdaptiveTimeouts timeouts;
 
     /**
+     * @param credentials
+     *            - the supplier of the token authorizing the exchanges
      * @param options
      * @param httpClient
+     * @param compression
+     *            - ask for compressed responses
      */
-    public AuthorizedLongPollingTransport(String sid,
+    public AuthorizedLongPollingTransport(CredentialSupplier credentials,
                                           Map<String, Object> options,
-                                          HttpClient httpClient) {
+                                          HttpClient httpClient,
+                                          boolean compression) {
         super(options, httpClient);
-        this.sid = sid;
+        this.credentials = credentials;
+        this.httpClient = httpClient;
+        this.compression = compression;
     }
 
     @Override
     protected void customize(ContentExchange exchange) {
         super.customize(exchange);
-        exchange.addRequestHeader("Authorization", "OAuth " + sid);
+        AdaptiveTimeouts current = timeouts;
+        if (current != null) {
+            current.apply(this);
+        }
+        BayeuxClient receiver = rawReceiver;
+        if (receiver != null) {
+            new RawPayloadListener(exchange, receiver);
+        }
+        new ReauthorizingListener(exchange, credentials, httpClient);
         new ExchangeListener(exchange);
+        new CompressionListener(exchange, compression);
+    }
+
+    /**
+     * Deliver the events of each response to the client as
+     * {@link RawMessage}s, rather than decoding them
+     * 
+     * @param receiver
+     *            - the client using this transport
+     */
+    public void setRawReceiver(BayeuxClient receiver) {
+        rawReceiver = receiver;
+    }
+
+    /**
+     * Allow the network delay of the session's timeouts, rather than a fixed
+     * one, before an exchange expires
+     * 
+     * @param timeouts
+     *            - the timeouts of the session using this transport
+     */
+    public void setTimeouts(AdaptiveTimeouts timeouts) {
+        this.timeouts = timeouts;
     }
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.cometd.bayeux.Message;
+import org.cometd.client.transport.TransportListener;
+import org.cometd.websocket.client.WebSocketTransport;
+import org.eclipse.jetty.websocket.WebSocketClient;
+import org.eclipse.jetty.websocket.WebSocketClientFactory;
+
+/**
+ * A WebSocket transport that authorizes its upgrade request with the current
+ * token of its {@link CredentialSupplier}, as
+ * {@link AuthorizedLongPollingTransport} authorizes each exchange.
+ * Listed ahead of the long polling transport, it is negotiated during the
+ * handshake, and CometD falls back to long polling when the server refuses
+ * the upgrade or does not offer WebSocket. The network delay allowed before
+ * a message expires follows the session's {@link AdaptiveTimeouts}, if set.
+ * 
+ * Jetty 7's WebSocketClient has no way to add request headers, but writes the
+ * Origin header verbatim, so the Authorization header follows it on the
+ * Origin line.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class AuthorizedWebSocketTransport extends WebSocketTransport {
+    private final CredentialSupplier  credentials;
+    private volatile AdaptiveTimeouts timeouts;
+
+    /**
+     * @param credentials
+     *            - the supplier of the token authorizing the upgrade
+     * @param options
+     * @param factory
+     *            - the started factory of the underlying websocket clients
+     * @param scheduler
+     *            - the scheduler of the transport's timeouts
+     */
+    public AuthorizedWebSocketTransport(CredentialSupplier credentials,
+                                        Map<String, Object> options,
+                                        WebSocketClientFactory factory,
+                                        ScheduledExecutorService scheduler) {
+        super(options, factory, scheduler);
+        this.credentials = credentials;
+    }
+
+    @Override
+    public void send(TransportListener listener, Message.Mutable... messages) {
+        AdaptiveTimeouts current = timeouts;
+        if (current != null) {
+            current.apply(this);
+        }
+        super.send(listener, messages);
+    }
+
+    /**
+     * @param timeouts
+     *            - the timeouts of the session using this transport
+     */
+    public void setTimeouts(AdaptiveTimeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    @Override
+    protected WebSocketClient newWebSocketClient() {
+        WebSocketClient client = super.newWebSocketClient();
+        client.setOrigin(origin() + "\r\nAuthorization: OAuth "
+                         + credentials.getToken());
+        return client;
+    }
+
+    /**
+     * @return the origin of the Bayeux endpoint, in http form
+     */
+    private String origin() {
+        URI uri = URI.create(getURL());
+        String scheme = "https".equals(uri.getScheme())
+                        || "wss".equals(uri.getScheme()) ? "https" : "http";
+        return scheme + "://" + uri.getHost()
+               + (uri.getPort() < 0 ? "" : ":" + uri.getPort());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter. Each delay is drawn uniformly from the
+ * upper half of the current exponential window, so that many sessions
+ * recovering from the same outage do not retry in lock step.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Backoff {
+    private int          attempt;
+    private final long   initial;
+    private final long   max;
+    private final Random random = new Random();
+
+    /**
+     * @param initial
+     *            - the window of the first delay, in milliseconds
+     * @param max
+     *            - the largest window, in milliseconds
+     */
+    public Backoff(long initial, long max) {
+        this.initial = Math.max(1, initial);
+        this.max = Math.max(this.initial, max);
+    }
+
+    /**
+     * @return the next delay, in milliseconds
+     */
+    public synchronized long next() {
+        long window = max;
+        // shifts that would reach the sign bit leave the window at max
+        if (attempt < Long.numberOfLeadingZeros(initial)) {
+            window = Math.min(max, initial << attempt);
+        }
+        attempt++;
+        long half = window / 2;
+        return half + (long) (random.nextDouble() * (window - half));
+    }
+
+    public synchronized void reset() {
+        attempt = 0;
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cometd.bayeux.Message;
+import org.eclipse.jetty.io.Buffer;
+
+/**
+ * A binary capture of the messages a process received. Messages are appended
+ * to memory mapped segment files, so capturing a message is a memory copy
+ * rather than a system call; segments are forced to disk by {@link #sync()},
+ * called periodically, and a new segment is started whenever one fills up.
+ * Every capture opened on a directory starts a new segment, after the
+ * segments already in it.
+ * 
+ * A record is its length, the time the message was received in milliseconds
+ * since the epoch, the length of its UTF-8 channel, the channel and the JSON
+ * of the message. The length is written last, so that a record torn by a crash
+ * reads as the end of its segment.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CaptureLog {
+
+    /**
+     * Handles the records read from a capture
+     */
+    public static interface RecordHandler {
+        /**
+         * @param received
+         *            - when the message was received, in milliseconds since
+         *            the epoch
+         * @param channel
+         *            - the channel of the message
+         * @param json
+         *            - the JSON of the message
+         */
+        void record(long received, String channel, byte[] json)
+                                                                throws Exception;
+    }
+
+    private static final String PREFIX          = "capture-";
+    private static final int    RECORD_OVERHEAD = 4 + 8 + 2;
+    private static final String SUFFIX          = ".seg";
+
+    /**
+     * Read every record of the capture in a directory, in the order they were
+     * appended
+     * 
+     * @return the number of records read
+     */
+    public static long read(File directory, RecordHandler handler)
+                                                                  throws Exception {
+        long records = 0;
+        for (File segment : segments(directory)) {
+            RandomAccessFile raf = new RandomAccessFile(segment, "r");
+            try {
+                MappedByteBuffer log = raf.getChannel().map(MapMode.READ_ONLY,
+                                                            0, raf.length());
+                int position = 0;
+                while (position + RECORD_OVERHEAD <= log.limit()) {
+                    int length = log.getInt(position);
+                    if (length < RECORD_OVERHEAD - 4
+                        || (long) position + 4 + length > log.limit()) {
+                        break;
+                    }
+                    log.position(position + 4);
+                    long received = log.getLong();
+                    short channelLength = log.getShort();
+                    if (channelLength < 0
+                        || channelLength > length - (RECORD_OVERHEAD - 4)) {
+                        break;
+                    }
+                    byte[] channel = new byte[channelLength];
+                    log.get(channel);
+                    byte[] json = new byte[length - (RECORD_OVERHEAD - 4)
+                                           - channel.length];
+                    log.get(json);
+                    handler.record(received, new String(channel, "UTF-8"),
+                                   json);
+                    records++;
+                    position += 4 + length;
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the segments of the capture in a directory, oldest first
+     */
+    private static File[] segments(File directory) {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private FileChannel               channel;
+    private final Map<String, byte[]> channels = new HashMap<String, byte[]>();
+    private boolean                   closed;
+    private final File                directory;
+    private volatile boolean          dirty;
+    private MappedByteBuffer          log;
+    private RandomAccessFile          raf;
+    private final int                 segmentSize;
+    private long                      sequence;
+
+    /**
+     * Open a capture in the directory, creating the directory if need be
+     * 
+     * @param segmentSize
+     *            - the size of a segment file, in bytes
+     */
+    public CaptureLog(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create capture directory: "
+                                  + directory);
+        }
+        File[] existing = segments(directory);
+        if (existing.length > 0) {
+            String last = existing[existing.length - 1].getName();
+            sequence = Long.parseLong(last.substring(PREFIX.length(),
+                                                     last.length()
+                                                             - SUFFIX.length()));
+        }
+        roll(segmentSize);
+    }
+
+    /**
+     * Append a message, received now
+     */
+    public void append(Message message) throws IOException {
+        append(System.currentTimeMillis(), message);
+    }
+
+    /**
+     * Append a message. Messages appended once the capture is closed are
+     * discarded.
+     * 
+     * @param received
+     *            - when the message was received, in milliseconds since the
+     *            epoch
+     */
+    public synchronized void append(long received, Message message)
+                                                                   throws IOException {
+        if (closed) {
+            return;
+        }
+        byte[] name = channels.get(message.getChannel());
+        if (name == null) {
+            name = message.getChannel().getBytes("UTF-8");
+            channels.put(message.getChannel(), name);
+        }
+        byte[] json;
+        int offset;
+        int length;
+        if (message instanceof RawMessage) {
+            Buffer raw = ((RawMessage) message).getBuffer();
+            json = raw.array();
+            offset = raw.getIndex();
+            length = raw.length();
+        } else {
+            json = message.getJSON().getBytes("UTF-8");
+            offset = 0;
+            length = json.length;
+        }
+        int record = RECORD_OVERHEAD + name.length + length;
+        if (log.remaining() < record) {
+            roll(record);
+        }
+        int start = log.position();
+        log.position(start + 4);
+        log.putLong(received);
+        log.putShort((short) name.length);
+        log.put(name);
+        log.put(json, offset, length);
+        log.putInt(start, record - 4);
+        dirty = true;
+    }
+
+    /**
+     * Force the current segment to disk and truncate it to its records
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        finish();
+    }
+
+    /**
+     * Force the records appended since the last sync to disk
+     */
+    public void sync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        MappedByteBuffer current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            current = log;
+        }
+        current.force();
+    }
+
+    private void finish() throws IOException {
+        log.force();
+        raf.setLength(log.position());
+        channel.close();
+    }
+
+    /**
+     * Finish the current segment, if any, and start the next one
+     * 
+     * @param reserve
+     *            - the space the next record needs
+     */
+    private void roll(int reserve) throws IOException {
+        if (log != null) {
+            finish();
+        }
+        int capacity = Math.max(segmentSize, reserve);
+        File segment = new File(directory, String.format("%s%020d%s", PREFIX,
+                                                         ++sequence, SUFFIX));
+        raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(capacity);
+        channel = raf.getChannel();
+        log = channel.map(MapMode.READ_WRITE, 0, capacity);
+    }
+}
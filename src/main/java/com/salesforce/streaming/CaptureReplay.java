@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.client.BayeuxClient;
+import org.cometd.client.transport.LongPollingTransport;
+import org.eclipse.jetty.client.HttpClient;
+
+import com.salesforce.streaming.CaptureLog.RecordHandler;
+import com.salesforce.streaming.Debugger.Subscriber;
+
+/**
+ * Streams a capture back through the listeners of the sessions of a
+ * configuration, without a server: every captured message is handed to the
+ * subscription of its channel in each session subscribed to it, and so is
+ * dispatched, handled and measured as if it had just been received, at the
+ * time it was recorded. Replayed messages are not checkpointed, so the
+ * position of the live sessions is left as it is. Messages are replayed at
+ * their recorded pace, scaled by a speed factor, or as fast as they can be
+ * handled.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CaptureReplay {
+    private static final long   IDLE_POLL = 10;
+    private static final String OFFLINE   = "http://localhost/cometd";
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 2 || argv.length > 3) {
+            System.err.println("Usage: CaptureReplay <configuration file> <capture directory> [speed, 0 for as fast as possible]");
+            System.exit(1);
+        }
+        double speed = argv.length == 3 ? Double.parseDouble(argv[2]) : 1.0;
+        StreamingEngine engine = new StreamingEngine(
+                                                     Configuration.fromYaml(new FileInputStream(
+                                                                                                argv[0])));
+        engine.startOffline();
+        try {
+            long start = System.nanoTime();
+            long replayed = new CaptureReplay(engine, speed).replay(new File(
+                                                                             argv[1]));
+            System.out.println(String.format("Replayed %s messages in %s ms",
+                                             replayed,
+                                             TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                                                                           - start)));
+        } finally {
+            engine.stop();
+        }
+    }
+
+    private final StreamingEngine engine;
+    private final double          speed;
+
+    /**
+     * @param engine
+     *            - the offline engine whose sessions handle the messages
+     * @param speed
+     *            - the factor the recorded pace is scaled by, 0 to replay as
+     *            fast as possible
+     */
+    public CaptureReplay(StreamingEngine engine, double speed) {
+        this.engine = engine;
+        this.speed = speed;
+    }
+
+    /**
+     * Replay the capture in a directory, returning once every replayed
+     * message has been handled
+     * 
+     * @return the number of captured messages read
+     */
+    public long replay(File directory) throws Exception {
+        final List<Debugger> sessions = engine.getSessions();
+        // never started, it only names the channels messages are replayed on
+        final BayeuxClient offline = new BayeuxClient(
+                                                      OFFLINE,
+                                                      LongPollingTransport.create(null,
+                                                                                  new HttpClient()));
+        long replayed = CaptureLog.read(directory, new RecordHandler() {
+            private long first = -1;
+            private long started;
+
+            @Override
+            public void record(long received, String channel, byte[] json)
+                                                                          throws Exception {
+                List<Subscriber> subscribers = new ArrayList<Subscriber>(
+                                                                         sessions.size());
+                for (Debugger session : sessions) {
+                    Subscriber subscriber = session.getSubscriber(channel);
+                    if (subscriber != null) {
+                        subscribers.add(subscriber);
+                    }
+                }
+                if (subscribers.isEmpty()) {
+                    return;
+                }
+                if (speed > 0) {
+                    if (first < 0) {
+                        first = received;
+                        started = System.nanoTime();
+                    }
+                    long due = started
+                               + (long) (TimeUnit.MILLISECONDS.toNanos(received
+                                                                       - first) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                ClientSessionChannel target = offline.getChannel(channel);
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.received(target,
+                                        RawMessage.parse(json, 0, json.length).get(0),
+                                        received);
+                }
+            }
+        });
+        while (!engine.getDispatcher().isIdle()) {
+            Thread.sleep(IDLE_POLL);
+        }
+        return replayed;
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A durable store of the last processed replay id of each subscription. The
+ * store is an append only log of <code>(key, replay id)</code> records in a
+ * memory mapped file, so recording a checkpoint is a memory copy rather than a
+ * system call. The log is forced to disk by {@link #sync()}, called
+ * periodically, and is compacted to the latest record of each key when it
+ * fills up.
+ * 
+ * A record is the length of its UTF-8 key, the key and the replay id. The
+ * length is written last, so that a record torn by a crash reads as the end of
+ * the log.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CheckpointStore {
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final int RECORD_OVERHEAD  = 4 + 8;
+
+    /**
+     * @return the key of a channel subscribed by a session
+     */
+    public static String key(String session, String channel) {
+        return session + " " + channel;
+    }
+
+    /**
+     * Read the latest replay ids recorded in a checkpoint file
+     */
+    public static Map<String, Long> read(File file) throws IOException {
+        Map<String, Long> positions = new ConcurrentHashMap<String, Long>();
+        if (!file.exists()) {
+            return positions;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer log = raf.getChannel().map(MapMode.READ_ONLY, 0,
+                                                        raf.length());
+            scan(log, positions);
+        } finally {
+            raf.close();
+        }
+        return positions;
+    }
+
+    private static void scan(MappedByteBuffer log, Map<String, Long> positions)
+                                                                               throws IOException {
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= log.limit()) {
+            int length = log.getInt(position);
+            if (length <= 0
+                || (long) position + RECORD_OVERHEAD + length > log.limit()) {
+                break;
+            }
+            byte[] key = new byte[length];
+            log.position(position + 4);
+            log.get(key);
+            positions.put(new String(key, "UTF-8"), log.getLong());
+            position += RECORD_OVERHEAD + length;
+        }
+        log.position(position);
+    }
+
+    private FileChannel             channel;
+    private boolean                 closed;
+    private volatile boolean        dirty;
+    private final File              file;
+    private MappedByteBuffer        log;
+    private final Map<String, Long> positions = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Open the store, recovering the checkpoints already recorded in the file
+     */
+    public CheckpointStore(File file) throws IOException {
+        this.file = file;
+        map(Math.max(INITIAL_CAPACITY, file.length()));
+        scan(log, positions);
+    }
+
+    /**
+     * Record the replay id processed for the key. Ids that do not advance the
+     * key's position, or are recorded once the store is closed, are ignored.
+     */
+    public synchronized void checkpoint(String key, long replayId)
+                                                                  throws IOException {
+        if (closed) {
+            return;
+        }
+        Long current = positions.get(key);
+        if (current != null && current >= replayId) {
+            return;
+        }
+        byte[] bytes = key.getBytes("UTF-8");
+        if (log.remaining() < RECORD_OVERHEAD + bytes.length) {
+            compact(RECORD_OVERHEAD + bytes.length);
+        }
+        int start = log.position();
+        log.position(start + 4);
+        log.put(bytes);
+        log.putLong(replayId);
+        log.putInt(start, bytes.length);
+        positions.put(key, replayId);
+        dirty = true;
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        log.force();
+        channel.close();
+    }
+
+    /**
+     * @return the last replay id recorded for the key, or null
+     */
+    public Long get(String key) {
+        return positions.get(key);
+    }
+
+    /**
+     * Force the records appended since the last sync to disk
+     */
+    public void sync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        MappedByteBuffer current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            current = log;
+        }
+        current.force();
+    }
+
+    /**
+     * Rewrite the log with the latest record of every key, growing the file
+     * if the live records would fill more than half of it
+     */
+    private void compact(int reserve) throws IOException {
+        long live = reserve;
+        for (String key : positions.keySet()) {
+            live += RECORD_OVERHEAD + key.getBytes("UTF-8").length;
+        }
+        long capacity = Math.max(INITIAL_CAPACITY, log.capacity());
+        while (capacity < live * 2) {
+            capacity *= 2;
+        }
+
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile raf = new RandomAccessFile(compacted, "rw");
+        try {
+            raf.setLength(capacity);
+            MappedByteBuffer next = raf.getChannel().map(MapMode.READ_WRITE, 0,
+                                                         capacity);
+            for (Map.Entry<String, Long> entry : positions.entrySet()) {
+                byte[] bytes = entry.getKey().getBytes("UTF-8");
+                next.putInt(bytes.length);
+                next.put(bytes);
+                next.putLong(entry.getValue());
+            }
+            next.force();
+        } finally {
+            raf.close();
+        }
+
+        log.force();
+        channel.close();
+        if (!compacted.renameTo(file)) {
+            if (!file.delete() || !compacted.renameTo(file)) {
+                throw new IOException("Unable to replace " + file + " with "
+                                      + compacted);
+            }
+        }
+        map(capacity);
+        scan(log, new ConcurrentHashMap<String, Long>());
+    }
+
+    private void map(long capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < capacity) {
+            raf.setLength(capacity);
+        }
+        channel = raf.getChannel();
+        log = channel.map(MapMode.READ_WRITE, 0, capacity);
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the configured channels of the engine's sessions between the nodes
+ * of a cluster. Each channel of each session is owned by one node, chosen by
+ * consistent hashing over the live members, and only its owner subscribes to
+ * it. The membership is polled periodically; when it changes, every node
+ * unsubscribes from the channels it lost and subscribes to the ones it gained.
+ * 
+ * The nodes checkpoint to files in a shared directory. A node gaining a
+ * channel first adopts the latest position checkpointed for it by any node,
+ * so that a channel taken over from a node that died resumes where that node
+ * left off.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Cluster {
+    private static final String CHECKPOINTS = ".checkpoints";
+
+    /**
+     * @return the file a node of the cluster checkpoints to
+     */
+    public static File checkpointFile(File directory, String node) {
+        return new File(directory, node + CHECKPOINTS);
+    }
+
+    private final File            directory;
+    private final StreamingEngine engine;
+    private Set<String>           members = Collections.emptySet();
+    private final Membership      membership;
+    private final String          node;
+    private final int             virtualNodes;
+
+    /**
+     * @param engine
+     *            - the engine whose sessions' channels are split
+     * @param membership
+     *            - the membership of the cluster
+     * @param node
+     *            - the name of this node
+     * @param directory
+     *            - the directory the nodes checkpoint to
+     * @param virtualNodes
+     *            - the number of points of each node on the hash ring
+     */
+    public Cluster(StreamingEngine engine, Membership membership, String node,
+                   File directory, int virtualNodes) {
+        this.engine = engine;
+        this.membership = membership;
+        this.node = node;
+        this.directory = directory;
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * @return the live members, as of the last rebalance
+     */
+    public synchronized Set<String> getMembers() {
+        return members;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Join the cluster and subscribe the sessions to their share of the
+     * channels, then keep renewing the membership and rebalancing
+     * 
+     * @param interval
+     *            - the interval between renewals, in milliseconds
+     */
+    public void start(long interval) throws IOException {
+        membership.join(node);
+        rebalance();
+        engine.getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    membership.renew();
+                    rebalance();
+                } catch (IOException e) {
+                    System.out.println("Unable to renew membership of: "
+                                       + node + ": " + e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leave the cluster, so that the other nodes take over at once
+     */
+    public void stop() {
+        try {
+            membership.leave();
+        } catch (IOException e) {
+            System.out.println("Unable to leave cluster: " + e);
+        }
+    }
+
+    /**
+     * Subscribe to the channels owned by this node, and unsubscribe from the
+     * rest, if the membership has changed
+     */
+    synchronized void rebalance() throws IOException {
+        Set<String> current = membership.getMembers();
+        current.add(node);
+        if (current.equals(members)) {
+            return;
+        }
+        System.out.println("Cluster members: " + current);
+        members = current;
+        ConsistentHash ring = new ConsistentHash(current, virtualNodes);
+        Map<String, Long> positions = null;
+        for (Debugger session : engine.getSessions()) {
+            String username = session.getConfiguration().getUsername();
+            Set<String> subscribed = session.getChannels();
+            for (String channel : session.getConfiguration().getChannels()) {
+                String key = CheckpointStore.key(username,
+                                                 session.getConfiguration().getSubscription(channel).getName());
+                boolean owned = node.equals(ring.owner(key));
+                if (owned && !subscribed.contains(channel)) {
+                    if (positions == null) {
+                        positions = positions();
+                    }
+                    adopt(key, positions.get(key));
+                    session.subscribe(channel);
+                } else if (!owned && subscribed.contains(channel)) {
+                    session.unsubscribe(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adopt the latest position checkpointed for a key by another node
+     */
+    private void adopt(String key, Long replayId) throws IOException {
+        CheckpointStore store = engine.getCheckpointStore();
+        if (replayId != null && store != null) {
+            store.checkpoint(key, replayId);
+        }
+    }
+
+    /**
+     * @return the latest position of every key checkpointed by the other
+     *         nodes, live or dead
+     */
+    private Map<String, Long> positions() throws IOException {
+        final String own = checkpointFile(directory, node).getName();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(CHECKPOINTS) && !name.equals(own);
+            }
+        });
+        Map<String, Long> positions = new HashMap<String, Long>();
+        if (files == null) {
+            return positions;
+        }
+        for (File file : files) {
+            for (Map.Entry<String, Long> position : CheckpointStore.read(file).entrySet()) {
+                Long latest = positions.get(position.getKey());
+                if (latest == null || latest < position.getValue()) {
+                    positions.put(position.getKey(), position.getValue());
+                }
+            }
+        }
+        return positions;
+    }
+}
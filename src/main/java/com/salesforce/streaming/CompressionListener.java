@@ -0,0 +1,434 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.client.HttpEventListener;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.salesforce.streaming.Metrics.EndpointMetrics;
+
+/**
+ * Negotiates compressed responses. The exchange advertises
+ * <code>gzip</code> and <code>deflate</code>, and a response in either
+ * encoding is inflated as its content arrives, chunk by chunk, so the
+ * listeners behind this one only ever see the decoded content, without the
+ * <code>Content-Encoding</code> and <code>Content-Length</code> of the
+ * compressed body. Inflaters are pooled between exchanges, and content is
+ * inflated into a chunk owned by the I/O thread, which the listeners behind
+ * this one copy from, as they do from Jetty's own buffers. The bytes
+ * received and decoded are recorded in the {@link Metrics} of the
+ * exchange's endpoint.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CompressionListener implements HttpEventListener {
+
+    /**
+     * Where the inflation of a response stands
+     */
+    private static enum Stage {
+        BODY, COMMENT, DONE, EXTRA, EXTRA_LENGTH, HEADER, HEADER_CRC, IDENTITY,
+        NAME, TRAILER;
+    }
+
+    private static final String              ACCEPTED       = "gzip, deflate";
+    private static final int                 CHUNK_SIZE     = 16 * 1024;
+    private static final ThreadLocal<byte[]> CHUNKS         = new ThreadLocal<byte[]>() {
+                                                                  @Override
+                                                                  protected byte[] initialValue() {
+                                                                      return new byte[CHUNK_SIZE];
+                                                                  }
+                                                              };
+    private static final int                 FCOMMENT       = 0x10;
+    private static final int                 FEXTRA         = 0x04;
+    private static final int                 FHCRC          = 0x02;
+    private static final int                 FNAME          = 0x08;
+    private static final Queue<Inflater>     GZIP_INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+    private static final int                 GZIP_HEADER    = 10;
+    private static final int                 GZIP_TRAILER   = 8;
+    private static final Queue<Inflater>     ZLIB_INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+
+    private static Inflater borrow(boolean gzip) {
+        Inflater inflater = (gzip ? GZIP_INFLATERS : ZLIB_INFLATERS).poll();
+        return inflater != null ? inflater : new Inflater(gzip);
+    }
+
+    private long                     content;
+    private final CRC32              crc     = new CRC32();
+    private final HttpExchange       exchange;
+    private int                      flags;
+    private final byte[]             framing = new byte[GZIP_TRAILER];
+    private boolean                  gzip;
+    private Inflater                 inflater;
+    private volatile EndpointMetrics metrics;
+    private final HttpEventListener  previous;
+    private int                      remaining;
+    private Stage                    stage   = Stage.IDENTITY;
+    private long                     wire;
+
+    /**
+     * @param exchange
+     *            - the exchange, not yet sent
+     * @param accept
+     *            - advertise the compressed encodings. Compressed responses
+     *            are decoded regardless.
+     */
+    public CompressionListener(HttpExchange exchange, boolean accept) {
+        this.exchange = exchange;
+        if (accept) {
+            exchange.setRequestHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPTED);
+        }
+        previous = exchange.getEventListener();
+        exchange.setEventListener(this);
+    }
+
+    @Override
+    public void onConnectionFailed(Throwable ex) {
+        release();
+        previous.onConnectionFailed(ex);
+    }
+
+    @Override
+    public void onException(Throwable ex) {
+        release();
+        previous.onException(ex);
+    }
+
+    @Override
+    public void onExpire() {
+        release();
+        previous.onExpire();
+    }
+
+    @Override
+    public void onRequestCommitted() throws IOException {
+        previous.onRequestCommitted();
+    }
+
+    @Override
+    public void onRequestComplete() throws IOException {
+        previous.onRequestComplete();
+    }
+
+    @Override
+    public void onResponseComplete() throws IOException {
+        Stage last = stage;
+        release();
+        metrics().onContent(wire, content);
+        if (last != Stage.IDENTITY && last != Stage.DONE) {
+            throw new IOException("Truncated " + (gzip ? "gzip" : "deflate")
+                                  + " content from: "
+                                  + exchange.getRequestURI());
+        }
+        previous.onResponseComplete();
+    }
+
+    @Override
+    public void onResponseContent(Buffer buffer) throws IOException {
+        int length = buffer.length();
+        wire += length;
+        if (stage == Stage.IDENTITY) {
+            content += length;
+            previous.onResponseContent(buffer);
+            return;
+        }
+        byte[] array = buffer.array();
+        int offset = buffer.getIndex();
+        if (array == null) {
+            array = buffer.asArray();
+            offset = 0;
+        }
+        int end = offset + length;
+        while (offset < end) {
+            offset = stage == Stage.BODY ? inflate(array, offset, end)
+                                        : skip(array, offset, end);
+        }
+    }
+
+    @Override
+    public void onResponseHeader(Buffer name, Buffer value) throws IOException {
+        switch (HttpHeaders.CACHE.getOrdinal(name)) {
+            case HttpHeaders.CONTENT_ENCODING_ORDINAL:
+                String encoding = value.toString().trim().toLowerCase();
+                if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+                    start(true);
+                    return;
+                } else if ("deflate".equals(encoding)) {
+                    start(false);
+                    return;
+                }
+                break;
+            case HttpHeaders.CONTENT_LENGTH_ORDINAL:
+                if (stage != Stage.IDENTITY) {
+                    return;
+                }
+                break;
+        }
+        previous.onResponseHeader(name, value);
+    }
+
+    @Override
+    public void onResponseHeaderComplete() throws IOException {
+        previous.onResponseHeaderComplete();
+    }
+
+    @Override
+    public void onResponseStatus(Buffer version, int status, Buffer reason)
+                                                                           throws IOException {
+        release();
+        wire = content = 0;
+        previous.onResponseStatus(version, status, reason);
+    }
+
+    @Override
+    public void onRetry() {
+        release();
+        previous.onRetry();
+    }
+
+    /**
+     * Inflate the body, passing each decoded chunk on
+     * 
+     * @return the offset of the first byte not consumed
+     */
+    private int inflate(byte[] array, int offset, int end) throws IOException {
+        byte[] chunk = CHUNKS.get();
+        inflater.setInput(array, offset, end - offset);
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if (inflated == 0) {
+                    if (inflater.finished()) {
+                        break;
+                    }
+                    if (inflater.needsInput()) {
+                        return end;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Deflate content with a preset dictionary from: "
+                                              + exchange.getRequestURI());
+                    }
+                    continue;
+                }
+                content += inflated;
+                if (gzip) {
+                    crc.update(chunk, 0, inflated);
+                }
+                previous.onResponseContent(new ByteArrayBuffer(chunk, 0,
+                                                               inflated));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt " + (gzip ? "gzip" : "deflate")
+                                  + " content from: "
+                                  + exchange.getRequestURI(), e);
+        }
+        int consumed = end - inflater.getRemaining();
+        if (gzip) {
+            stage = Stage.TRAILER;
+            remaining = GZIP_TRAILER;
+        } else {
+            stage = Stage.DONE;
+        }
+        return consumed;
+    }
+
+    /**
+     * @return the little endian int at the index of the trailer
+     */
+    private int int32(int index) {
+        return (framing[index] & 0xFF) | (framing[index + 1] & 0xFF) << 8
+               | (framing[index + 2] & 0xFF) << 16
+               | (framing[index + 3] & 0xFF) << 24;
+    }
+
+    private EndpointMetrics metrics() {
+        EndpointMetrics current = metrics;
+        if (current == null) {
+            String uri = exchange.getRequestURI();
+            int query = uri.indexOf('?');
+            current = Metrics.getDefault().endpoint(query < 0 ? uri
+                                                             : uri.substring(0,
+                                                                             query));
+            metrics = current;
+        }
+        return current;
+    }
+
+    /**
+     * Move on to the first optional header field, from the given one on,
+     * present in the flags, or to the body. The fields are tried in the order
+     * they follow each other in the header.
+     */
+    @SuppressWarnings("fallthrough")
+    private void next(int field) {
+        switch (field) {
+            case FEXTRA:
+                if ((flags & FEXTRA) != 0) {
+                    stage = Stage.EXTRA_LENGTH;
+                    remaining = 2;
+                    return;
+                }
+                // fall through
+            case FNAME:
+                if ((flags & FNAME) != 0) {
+                    stage = Stage.NAME;
+                    return;
+                }
+                // fall through
+            case FCOMMENT:
+                if ((flags & FCOMMENT) != 0) {
+                    stage = Stage.COMMENT;
+                    return;
+                }
+                // fall through
+            case FHCRC:
+                if ((flags & FHCRC) != 0) {
+                    stage = Stage.HEADER_CRC;
+                    remaining = 2;
+                    return;
+                }
+                // fall through
+            default:
+                stage = Stage.BODY;
+        }
+    }
+
+    /**
+     * Return the inflater of the response, if any, to its pool
+     */
+    private void release() {
+        Inflater current = inflater;
+        inflater = null;
+        stage = Stage.IDENTITY;
+        if (current != null) {
+            current.reset();
+            (gzip ? GZIP_INFLATERS : ZLIB_INFLATERS).offer(current);
+        }
+    }
+
+    /**
+     * Consume the framing of a gzip body: the header, with its optional
+     * fields, and the trailer, whose checksum and length are verified
+     * 
+     * @return the offset of the first byte not consumed
+     */
+    private int skip(byte[] array, int offset, int end) throws IOException {
+        byte b = array[offset++];
+        switch (stage) {
+            case HEADER:
+                if (GZIP_HEADER - remaining == 3) {
+                    flags = b & 0xFF;
+                } else if (GZIP_HEADER - remaining < 2
+                           && b != (GZIP_HEADER - remaining == 0 ? 0x1f
+                                                                 : (byte) 0x8b)) {
+                    throw new IOException("Not gzip content from: "
+                                          + exchange.getRequestURI());
+                }
+                if (--remaining == 0) {
+                    next(FEXTRA);
+                }
+                break;
+            case EXTRA_LENGTH:
+                framing[--remaining] = b;
+                if (remaining == 0) {
+                    remaining = (framing[1] & 0xFF) | (framing[0] & 0xFF) << 8;
+                    stage = Stage.EXTRA;
+                    if (remaining == 0) {
+                        next(FNAME);
+                    }
+                }
+                break;
+            case EXTRA:
+                if (--remaining == 0) {
+                    next(FNAME);
+                }
+                break;
+            case NAME:
+                if (b == 0) {
+                    next(FCOMMENT);
+                }
+                break;
+            case COMMENT:
+                if (b == 0) {
+                    next(FHCRC);
+                }
+                break;
+            case HEADER_CRC:
+                if (--remaining == 0) {
+                    stage = Stage.BODY;
+                }
+                break;
+            case TRAILER:
+                framing[GZIP_TRAILER - remaining] = b;
+                if (--remaining == 0) {
+                    if (int32(0) != (int) crc.getValue()
+                        || int32(4) != (int) inflater.getBytesWritten()) {
+                        throw new IOException("Corrupt gzip content from: "
+                                              + exchange.getRequestURI());
+                    }
+                    stage = Stage.DONE;
+                }
+                break;
+            default:
+                // trailing bytes after the compressed body are ignored
+                break;
+        }
+        return offset;
+    }
+
+    /**
+     * Begin inflating the content of the response
+     * 
+     * @param gzip
+     *            - true for gzip content, false for zlib wrapped deflate
+     */
+    private void start(boolean gzip) {
+        release();
+        this.gzip = gzip;
+        inflater = borrow(gzip);
+        crc.reset();
+        flags = 0;
+        if (gzip) {
+            stage = Stage.HEADER;
+            remaining = GZIP_HEADER;
+        } else {
+            stage = Stage.BODY;
+        }
+    }
+}
@@ -28,77 +28,567 @@ package com.salesforce.streaming;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.salesforce.streaming.Debugger.Transport;
+import com.salesforce.streaming.Dispatcher.Overflow;
+import com.salesforce.streaming.EventLog.Level;
 
 /**
  * @author hhildebrand
  * 
  */
 public class Configuration {
-    private static final int    CONNECT_TIMEOUT           = 20 * 1000;
-    private static final int    READ_TIMEOUT              = 120 * 1000;
-    private static final String SERVICES_SOAP_PARTNER_URI = "/services/Soap/u/22.0/";
-    private static final String STREAMING_ENDPOINT_URI    = "/cometd/23.0";
-    static final String         LOGIN_ENDPOINT            = "https://login.salesforce.com";
+    private static final int    ADMIN_MAX_THREADS           = 8;
+    private static final long   BACKOFF_INITIAL             = 100;
+    private static final long   BACKOFF_MAX                 = 30 * 1000;
+    private static final int    CAPTURE_SEGMENT_SIZE        = 64 * 1024 * 1024;
+    private static final long   CAPTURE_SYNC_INTERVAL       = 1000;
+    private static final long   CHECKPOINT_SYNC_INTERVAL    = 1000;
+    private static final long   CLUSTER_EXPIRY              = 5000;
+    private static final long   CLUSTER_HEARTBEAT           = 1000;
+    private static final int    CLUSTER_VIRTUAL_NODES       = 128;
+    private static final int    CONNECT_TIMEOUT             = 20 * 1000;
+    private static final String CONTROL_HOST                = "localhost";
+    private static final long   CREDENTIAL_REFRESH_AHEAD    = 5 * 60 * 1000;
+    private static final int    DISPATCH_QUEUE_SIZE         = 1024;
+    private static final long   IDLE_TIMEOUT                = 30 * 1000;
+    private static final int    MAX_CONNECTIONS_PER_ADDRESS = 256;
+    private static final long   MAX_NETWORK_DELAY           = 30 * 1000;
+    private static final int    MAX_THREADS                 = 32;
+    private static final int    METRICS_INTERVAL            = 60;
+    private static final long   MIN_NETWORK_DELAY           = 1000;
+    private static final int    READ_TIMEOUT                = 120 * 1000;
+    private static final int    REQUEST_BUFFER_SIZE         = 16 * 1024;
+    private static final int    RESPONSE_BUFFER_SIZE        = 32 * 1024;
+    private static final String SERVICES_SOAP_PARTNER_URI   = "/services/Soap/u/22.0/";
+    private static final long   SESSION_TTL                 = 60 * 60 * 1000;
+    private static final String STREAMING_ENDPOINT_URI      = "/cometd/23.0";
+    private static final int    TLS_SESSION_TIMEOUT         = 24 * 60 * 60;
+    private static final int    VALIDATION_RECENT_IDS       = 16 * 1024;
+    private static final int    VALIDATION_WINDOW           = 64 * 1024;
+    static final String         LOGIN_ENDPOINT              = "https://login.salesforce.com";
 
+    /**
+     * Read a configuration. Every entry under <code>sessions</code> is read
+     * over the top level settings, so a session inherits every setting it
+     * does not set itself.
+     */
     public static Configuration fromYaml(InputStream yaml)
                                                           throws JsonParseException,
                                                           JsonMappingException,
                                                           IOException {
-        Configuration configuration = new ObjectMapper(new YAMLFactory()).readValue(yaml,
-                                                                                    Configuration.class);
+        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        JsonNode tree = mapper.readTree(yaml);
         yaml.close();
+        if (!(tree instanceof ObjectNode)) {
+            throw new JsonMappingException("The configuration is not a mapping");
+        }
+        Configuration configuration = mapper.treeToValue(tree,
+                                                         Configuration.class);
+        JsonNode sessions = tree.get("sessions");
+        if (sessions != null && sessions.size() > 0) {
+            ObjectNode defaults = ((ObjectNode) tree).deepCopy();
+            defaults.remove("sessions");
+            configuration.sessions = new ArrayList<Configuration>(
+                                                                  sessions.size());
+            for (JsonNode session : sessions) {
+                if (!(session instanceof ObjectNode)) {
+                    throw new JsonMappingException("A session is not a mapping: "
+                                                   + session);
+                }
+                ObjectNode merged = defaults.deepCopy();
+                merged.putAll((ObjectNode) session);
+                configuration.sessions.add(mapper.treeToValue(merged,
+                                                              Configuration.class));
+            }
+        }
         return configuration;
     }
 
     @JsonProperty
-    private String  channel;
+    private boolean                   adaptiveTimeouts         = true;
     @JsonProperty
-    private int     connectTimeout = CONNECT_TIMEOUT;
+    private int                       adminMaxThreads          = ADMIN_MAX_THREADS;
     @JsonProperty
-    private String  loginEndpoint  = LOGIN_ENDPOINT;
+    private long                      backoffInitial           = BACKOFF_INITIAL;
     @JsonProperty
-    private String  password;
+    private long                      backoffMax               = BACKOFF_MAX;
     @JsonProperty
-    private int     readTimeout    = READ_TIMEOUT;
+    private String                    captureDirectory;
     @JsonProperty
-    private String  soapPartnerUri = SERVICES_SOAP_PARTNER_URI;
+    private int                       captureSegmentSize       = CAPTURE_SEGMENT_SIZE;
     @JsonProperty
-    private String  streamingUri   = STREAMING_ENDPOINT_URI;
+    private long                      captureSyncInterval      = CAPTURE_SYNC_INTERVAL;
     @JsonProperty
-    private String  username;
+    private String                    channel;
     @JsonProperty
-    private boolean debug          = false;
+    private String                    checkpointFile;
+    @JsonProperty
+    private long                      checkpointSyncInterval   = CHECKPOINT_SYNC_INTERVAL;
+    @JsonProperty
+    private List<String>              channels                 = new ArrayList<String>();
+    @JsonProperty
+    private String                    clusterDirectory;
+    @JsonProperty
+    private long                      clusterExpiry            = CLUSTER_EXPIRY;
+    @JsonProperty
+    private long                      clusterHeartbeat         = CLUSTER_HEARTBEAT;
+    @JsonProperty
+    private String                    clusterNode              = ManagementFactory.getRuntimeMXBean().getName();
+    @JsonProperty
+    private int                       clusterVirtualNodes      = CLUSTER_VIRTUAL_NODES;
+    @JsonProperty
+    private boolean                   compression              = true;
+    @JsonProperty
+    private int                       connectTimeout           = CONNECT_TIMEOUT;
+    @JsonProperty
+    private boolean                   contiguousReplayIds      = false;
+    @JsonProperty
+    private String                    controlHost              = CONTROL_HOST;
+    @JsonProperty
+    private int                       controlPort              = -1;
+    @JsonProperty
+    private long                      credentialRefreshAhead   = CREDENTIAL_REFRESH_AHEAD;
+    @JsonProperty
+    private String                    dispatchKey;
+    @JsonProperty
+    private int                       dispatchLanes            = Runtime.getRuntime().availableProcessors();
+    @JsonProperty
+    private Overflow                  dispatchOverflow         = Overflow.BLOCK;
+    @JsonProperty
+    private int                       dispatchQueueSize        = DISPATCH_QUEUE_SIZE;
+    @JsonProperty
+    private int                       dispatchThreads          = Runtime.getRuntime().availableProcessors();
+    @JsonProperty
+    private boolean                   dispatchVirtualThreads   = true;
+    @JsonProperty
+    private long                      idleTimeout              = IDLE_TIMEOUT;
+    @JsonProperty
+    private String                    loginEndpoint            = LOGIN_ENDPOINT;
+    @JsonProperty
+    private Level                     logLevel                 = Level.TRACE;
+    @JsonProperty
+    private int                       maxConnectionsPerAddress = MAX_CONNECTIONS_PER_ADDRESS;
+    @JsonProperty
+    private long                      maxNetworkDelay          = MAX_NETWORK_DELAY;
+    @JsonProperty
+    private int                       maxThreads               = MAX_THREADS;
+    @JsonProperty
+    private String                    metricsFile;
+    @JsonProperty
+    private int                       metricsInterval          = METRICS_INTERVAL;
+    @JsonProperty
+    private long                      minNetworkDelay          = MIN_NETWORK_DELAY;
+    @JsonProperty
+    private String                    password;
+    @JsonProperty
+    private boolean                   printMessages            = true;
+    @JsonProperty
+    private boolean                   rawPayload               = false;
+    @JsonProperty
+    private int                       readTimeout              = READ_TIMEOUT;
+    @JsonProperty
+    private int                       requestBufferSize        = REQUEST_BUFFER_SIZE;
+    @JsonProperty
+    private int                       responseBufferSize       = RESPONSE_BUFFER_SIZE;
+    @JsonProperty
+    private long                      sessionTtl               = SESSION_TTL;
+    @JsonProperty
+    private List<Configuration>       sessions                 = new ArrayList<Configuration>();
+    @JsonProperty
+    private String                    soapPartnerUri           = SERVICES_SOAP_PARTNER_URI;
+    @JsonProperty
+    private String                    spillDirectory           = System.getProperty("java.io.tmpdir");
+    @JsonProperty
+    private String                    streamingUri             = STREAMING_ENDPOINT_URI;
+    @JsonProperty
+    private Map<String, Subscription> subscriptions            = new LinkedHashMap<String, Subscription>();
+    @JsonProperty
+    private boolean                   tlsSessionCache          = true;
+    @JsonProperty
+    private int                       tlsSessionCacheSize      = 0;
+    @JsonProperty
+    private int                       tlsSessionTimeout        = TLS_SESSION_TIMEOUT;
+    @JsonProperty
+    private Transport                 transport                = Transport.LONG_POLLING;
+    @JsonProperty
+    private String                    username;
+    @JsonProperty
+    private boolean                   validate                 = true;
+    @JsonProperty
+    private int                       validationRecentIds      = VALIDATION_RECENT_IDS;
+    @JsonProperty
+    private int                       validationWindow         = VALIDATION_WINDOW;
+    @JsonProperty
+    private boolean                   debug                    = false;
 
     public boolean isDebug() {
         return debug;
     }
 
+    /**
+     * @return true if the time allowed for the network on top of the
+     *         server's advised timeout, and the WebSocket connect timeout,
+     *         are derived from the round trips the session observes
+     */
+    public boolean isAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    /**
+     * @return the size of the thread pool of the http client used to log in,
+     *         kept apart from the streaming connections
+     */
+    public int getAdminMaxThreads() {
+        return adminMaxThreads;
+    }
+
+    /**
+     * @return the window of the first delay before a failed session is
+     *         recovered, in milliseconds
+     */
+    public long getBackoffInitial() {
+        return backoffInitial;
+    }
+
+    /**
+     * @return the largest delay before a failed session is recovered, in
+     *         milliseconds
+     */
+    public long getBackoffMax() {
+        return backoffMax;
+    }
+
+    /**
+     * @return the directory received messages are captured to, or null to
+     *         not capture them
+     */
+    public String getCaptureDirectory() {
+        return captureDirectory;
+    }
+
+    /**
+     * @return the size of a capture segment file, in bytes
+     */
+    public int getCaptureSegmentSize() {
+        return captureSegmentSize;
+    }
+
+    /**
+     * @return the interval between forcing captured messages to disk, in
+     *         milliseconds
+     */
+    public long getCaptureSyncInterval() {
+        return captureSyncInterval;
+    }
+
     public String getChannel() {
         return channel;
     }
 
+    /**
+     * @return the union of the single <code>channel</code>, the
+     *         <code>channels</code> list and the channels of the
+     *         <code>subscriptions</code>, in declaration order
+     */
+    public List<String> getChannels() {
+        Set<String> all = new LinkedHashSet<String>();
+        if (channel != null) {
+            all.add(channel);
+        }
+        all.addAll(channels);
+        all.addAll(subscriptions.keySet());
+        return new ArrayList<String>(all);
+    }
+
+    /**
+     * @return the file the last processed replay id of each channel is
+     *         checkpointed to, or null to always subscribe from the newest
+     *         event
+     */
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * @return the interval between forcing checkpoints to disk, in
+     *         milliseconds
+     */
+    public long getCheckpointSyncInterval() {
+        return checkpointSyncInterval;
+    }
+
+    /**
+     * @return the directory shared by the nodes of a cluster splitting the
+     *         channels between them, or null to subscribe to every channel
+     */
+    public String getClusterDirectory() {
+        return clusterDirectory;
+    }
+
+    /**
+     * @return how long a node is considered alive after it last renewed its
+     *         membership, in milliseconds
+     */
+    public long getClusterExpiry() {
+        return clusterExpiry;
+    }
+
+    /**
+     * @return the interval between renewals of a node's membership, in
+     *         milliseconds
+     */
+    public long getClusterHeartbeat() {
+        return clusterHeartbeat;
+    }
+
+    /**
+     * @return the name of this node, unique in the cluster
+     */
+    public String getClusterNode() {
+        return clusterNode;
+    }
+
+    /**
+     * @return the number of points of each node on the cluster's hash ring
+     */
+    public int getClusterVirtualNodes() {
+        return clusterVirtualNodes;
+    }
+
+    /**
+     * @return true if the long poll and login exchanges ask for gzip or
+     *         deflate compressed responses
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @return the connect timeout, in milliseconds. When timeouts are
+     *         adaptive, the upper bound of the derived WebSocket connect
+     *         timeout.
+     */
     public int getConnectTimeout() {
         return connectTimeout;
     }
 
+    /**
+     * @return true if the server is known to assign consecutive replay ids
+     *         per channel, so that the ids a channel skips are missing events
+     */
+    public boolean isContiguousReplayIds() {
+        return contiguousReplayIds;
+    }
+
+    /**
+     * @return the interface the control server listens on
+     */
+    public String getControlHost() {
+        return controlHost;
+    }
+
+    /**
+     * @return the port the control server listens on, 0 for any free port,
+     *         or -1 to not run one
+     */
+    public int getControlPort() {
+        return controlPort;
+    }
+
+    /**
+     * @return how long before the time to live of a session elapses it is
+     *         renewed, in milliseconds
+     */
+    public long getCredentialRefreshAhead() {
+        return credentialRefreshAhead;
+    }
+
+    /**
+     * @return the field of the sobject a channel's messages are partitioned
+     *         by, or null if each channel's messages are handled in order
+     */
+    public String getDispatchKey() {
+        return dispatchKey;
+    }
+
+    /**
+     * @return the number of lanes each channel's messages are partitioned
+     *         across, when a dispatch key is set
+     */
+    public int getDispatchLanes() {
+        return dispatchLanes;
+    }
+
+    /**
+     * @return what to do with a message whose channel queue is full
+     */
+    public Overflow getDispatchOverflow() {
+        return dispatchOverflow;
+    }
+
+    /**
+     * @return the capacity of each channel's dispatch queue
+     */
+    public int getDispatchQueueSize() {
+        return dispatchQueueSize;
+    }
+
+    /**
+     * @return the number of threads message handlers run on, unless virtual
+     *         threads are used
+     */
+    public int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    /**
+     * @return true if message handlers run on virtual threads, when the
+     *         runtime supports them
+     */
+    public boolean isDispatchVirtualThreads() {
+        return dispatchVirtualThreads;
+    }
+
+    /**
+     * @return how long an idle pooled connection is kept open, in
+     *         milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
     public String getLoginEndpoint() {
         return loginEndpoint;
     }
 
+    /**
+     * @return the file periodic metrics snapshots are appended to, or null to
+     *         write them to the event log
+     */
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * @return the interval between metrics snapshots, in seconds. 0 disables
+     *         reporting.
+     */
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    /**
+     * @return the lower bound of the adaptive network delay, and of the
+     *         derived connect timeout, in milliseconds
+     */
+    public long getMinNetworkDelay() {
+        return minNetworkDelay;
+    }
+
     public String getPassword() {
         return password;
     }
 
+    public Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @return the most connections each http client opens to one host
+     */
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    /**
+     * @return the upper bound of the adaptive network delay, in milliseconds
+     */
+    public long getMaxNetworkDelay() {
+        return maxNetworkDelay;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
     public int getReadTimeout() {
         return readTimeout;
     }
 
+    /**
+     * @return true if every handled message is printed to standard out
+     */
+    public boolean isPrintMessages() {
+        return printMessages;
+    }
+
+    /**
+     * @return true if the events of long poll responses are delivered as
+     *         {@link RawMessage}s, decoded only when a listener asks for more
+     *         than their raw JSON, channel, replay id and created date
+     */
+    public boolean isRawPayload() {
+        return rawPayload;
+    }
+
+    /**
+     * @return the size of the buffers requests are written from, in bytes
+     */
+    public int getRequestBufferSize() {
+        return requestBufferSize;
+    }
+
+    /**
+     * @return the size of the buffers responses are read into, in bytes
+     */
+    public int getResponseBufferSize() {
+        return responseBufferSize;
+    }
+
+    /**
+     * @return the configurations of the individual org sessions to run, each
+     *         with the top level settings it does not override. A
+     *         configuration without a <code>sessions</code> section describes
+     *         a single session, itself.
+     */
+    public List<Configuration> getSessions() {
+        if (sessions.isEmpty()) {
+            return Collections.singletonList(this);
+        }
+        return sessions;
+    }
+
+    /**
+     * @return how long a logged in session id is reused, in milliseconds
+     */
+    public long getSessionTtl() {
+        return sessionTtl;
+    }
+
+    /**
+     * @return the directory messages are spilled to, when the dispatch
+     *         overflow policy is <code>SPILL</code>
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
     public String getSoapPartnerUri() {
         return soapPartnerUri;
     }
@@ -107,7 +597,71 @@ public class Configuration {
         return streamingUri;
     }
 
+    /**
+     * @param channel
+     * @return the subscription declared for the channel in
+     *         <code>subscriptions</code>, or an unfiltered subscription
+     */
+    public Subscription getSubscription(String channel) {
+        Subscription subscription = subscriptions.get(channel);
+        return subscription == null ? Subscription.of(channel)
+                                   : subscription.bind(channel);
+    }
+
+    /**
+     * @return the number of TLS sessions cached for resumption, 0 for no
+     *         limit
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    /**
+     * @return how long a cached TLS session may be resumed, in seconds
+     */
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+
+    /**
+     * @return true if TLS sessions are cached, so that new connections to a
+     *         host resume them instead of a full handshake
+     */
+    public boolean isTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    /**
+     * @return the transport to prefer; WebSocket falls back to long polling
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
     public String getUsername() {
         return username;
     }
+
+    /**
+     * @return the number of recent message identities each channel's
+     *         validator remembers to catch duplicates
+     */
+    public int getValidationRecentIds() {
+        return validationRecentIds;
+    }
+
+    /**
+     * @return the number of replay ids below the highest one received that
+     *         each channel's validator checks
+     */
+    public int getValidationWindow() {
+        return validationWindow;
+    }
+
+    /**
+     * @return true if the completeness of every channel's events is validated
+     */
+    public boolean isValidate() {
+        return validate;
+    }
 }
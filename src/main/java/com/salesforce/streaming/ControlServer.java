@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.salesforce.streaming.Debugger.State;
+
+/**
+ * A local HTTP endpoint that controls the subscriptions of a running
+ * {@link StreamingEngine}, so channels can be added and removed without a
+ * restart, a new login or a new handshake:
+ * 
+ * <pre>
+ * GET    /sessions                              - every session, its channels and their metrics
+ * GET    /sessions/{username}/channels          - the channels of a session, and their metrics
+ * PUT    /sessions/{username}/channels/{channel} - subscribe the session to the channel
+ * DELETE /sessions/{username}/channels/{channel} - unsubscribe the session from the channel
+ * GET    /metrics                               - the metrics, in the Prometheus text format
+ * GET    /health/live                           - 200 while the process serves requests
+ * GET    /health/ready                          - 200 if every session is connected, else 503
+ * </pre>
+ * 
+ * The channel is the rest of the path, e.g.
+ * <code>PUT /sessions/user@example.com/channels/topic/AccountUpdates</code>,
+ * and a query string is kept as the filter of the channel name. Channels are
+ * subscribed as declared in the session's <code>subscriptions</code>.
+ * Responses are JSON. When the engine is a node of a {@link Cluster}, which
+ * assigns the configured channels to the nodes, PUT and DELETE are refused
+ * with 409.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ControlServer {
+    private static final String CHANNELS             = "channels";
+    private static final String LIVE                 = "/health/live";
+    private static final int    MAX_THREADS          = 4;
+    private static final String METRICS              = "/metrics";
+    private static final String PROMETHEUS_TEXT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+    private static final String READY                = "/health/ready";
+    private static final String SESSIONS             = "/sessions";
+
+    private final StreamingEngine    engine;
+    private final PrometheusExporter exporter;
+    private final ObjectMapper       mapper = new ObjectMapper();
+    private final Server             server;
+
+    /**
+     * @param engine
+     *            - the engine controlled
+     * @param host
+     *            - the interface to listen on
+     * @param port
+     *            - the port to listen on, or 0 for any free port
+     */
+    public ControlServer(StreamingEngine engine, String host, int port) {
+        this.engine = engine;
+        exporter = new PrometheusExporter(engine, Metrics.getDefault());
+        server = new Server();
+        QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS);
+        threadPool.setName("Control server");
+        threadPool.setDaemon(true);
+        server.setThreadPool(threadPool);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost(host);
+        connector.setPort(port);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest,
+                               HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                ControlServer.this.handle(target, request, response);
+            }
+        });
+    }
+
+    public int getPort() {
+        return server.getConnectors()[0].getLocalPort();
+    }
+
+    public void start() throws Exception {
+        server.start();
+        System.out.println("Control server listening on port: " + getPort());
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return the subscribed channels of the session, and the metrics of each
+     */
+    private List<Map<String, Object>> channels(Debugger session) {
+        List<Map<String, Object>> channels = new ArrayList<Map<String, Object>>();
+        for (String channel : new TreeSet<String>(session.getChannels())) {
+            String name = session.getConfiguration().getSubscription(channel).getName();
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("channel", channel);
+            values.put("name", name);
+            values.put("metrics",
+                       MetricsReporter.channel(Metrics.getDefault().channel(name)));
+            channels.add(values);
+        }
+        return channels;
+    }
+
+    private void handle(String target, HttpServletRequest request,
+                        HttpServletResponse response) throws IOException {
+        if (target.equals(METRICS) || target.equals(LIVE)
+            || target.equals(READY)) {
+            if (!"GET".equals(request.getMethod())) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            } else if (target.equals(METRICS)) {
+                response.setContentType(PROMETHEUS_TEXT_TYPE);
+                response.getOutputStream().write(exporter.scrape().getBytes("UTF-8"));
+            } else if (target.equals(LIVE)) {
+                reply(response, Collections.singletonMap("status", "UP"));
+            } else {
+                ready(response);
+            }
+            return;
+        }
+        if (!target.startsWith(SESSIONS)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String method = request.getMethod();
+        if (target.equals(SESSIONS) || target.equals(SESSIONS + "/")) {
+            if (!"GET".equals(method)) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                return;
+            }
+            List<Map<String, Object>> sessions = new ArrayList<Map<String, Object>>();
+            for (Debugger session : engine.getSessions()) {
+                sessions.add(session(session));
+            }
+            reply(response, sessions);
+            return;
+        }
+        // /sessions/{username}/channels[/{channel}]
+        String[] path = target.substring(SESSIONS.length() + 1).split("/", 3);
+        Debugger session = engine.getSession(path[0]);
+        if (session == null || path.length < 2 || !CHANNELS.equals(path[1])) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String channel = path.length == 3 && path[2].length() > 0 ? "/"
+                                                                    + path[2]
+                                                                 : null;
+        if (channel != null && request.getQueryString() != null) {
+            channel += "?" + request.getQueryString();
+        }
+        if (channel == null) {
+            if (!"GET".equals(method)) {
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                return;
+            }
+            reply(response, channels(session));
+        } else if (engine.getCluster() != null
+                   && ("PUT".equals(method) || "POST".equals(method)
+                       || "DELETE".equals(method))) {
+            // the cluster only balances the configured channels
+            response.sendError(HttpServletResponse.SC_CONFLICT,
+                               "Channels are assigned by the cluster");
+        } else if ("PUT".equals(method) || "POST".equals(method)) {
+            session.subscribe(channel);
+            reply(response, session(session));
+        } else if ("DELETE".equals(method)) {
+            session.unsubscribe(channel);
+            reply(response, session(session));
+        } else {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        }
+    }
+
+    /**
+     * Ready when there is at least one session, and every session is
+     * connected
+     */
+    private void ready(HttpServletResponse response) throws IOException {
+        boolean ready = !engine.getSessions().isEmpty();
+        Map<String, Object> states = new LinkedHashMap<String, Object>();
+        for (Debugger session : engine.getSessions()) {
+            ready &= session.getState() == State.CONNECTED;
+            states.put(session.getConfiguration().getUsername(),
+                       session.getState());
+        }
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("status", ready ? "UP" : "DOWN");
+        values.put("sessions", states);
+        if (!ready) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+        reply(response, values);
+    }
+
+    private void reply(HttpServletResponse response, Object body)
+                                                                 throws IOException {
+        response.setContentType("application/json;charset=UTF-8");
+        mapper.writeValue(response.getOutputStream(), body);
+    }
+
+    /**
+     * @return the user, state and channels of the session
+     */
+    private Map<String, Object> session(Debugger session) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("username", session.getConfiguration().getUsername());
+        values.put("state", session.getState());
+        values.put(CHANNELS, channels(session));
+        return values;
+    }
+}
@@ -37,10 +37,19 @@ package com.salesforce.streaming;
 */
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.cometd.bayeux.Channel;
 import org.cometd.bayeux.Message;
@@ -48,16 +57,91 @@ import org.cometd.bayeux.client.ClientSessionChannel;
 import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
 import org.cometd.client.BayeuxClient;
 import org.cometd.client.transport.ClientTransport;
-import org.eclipse.jetty.client.HttpClient;
-import org.slf4j.LoggerFactory;
+import org.cometd.websocket.client.WebSocketTransport;
 
-import ch.qos.logback.classic.Level;
+import com.salesforce.streaming.Dispatcher.LaneHandlers;
+import com.salesforce.streaming.Metrics.SessionMetrics;
 
 /**
  * This example demonstrates how a streaming client works against Salesforce
- * Streaming API
+ * Streaming API. A Debugger is a single org session - one login and one
+ * BayeuxClient - subscribed to any number of channels. Sessions are run by the
+ * {@link StreamingEngine}.
+ * 
+ * Failures reported on the meta channels are recovered in process. CometD
+ * re-handshakes by itself when the server asks it to, e.g. after a
+ * <code>403::Unknown client</code>, and every channel is subscribed again
+ * whenever a handshake succeeds. When the session id is no longer valid, or
+ * the server advises not to reconnect, the session replaces its BayeuxClient
+ * after a jittered exponential backoff, logging in again only in the former
+ * case.
+ * 
+ * When a checkpoint store is configured, the replay id of every processed
+ * message is recorded, and subscriptions resume from the recorded position.
+ * The latency of every message is measured as it is received and, when a
+ * capture is configured, the message is appended to it, before it is
+ * dispatched. Unless disabled, every handled message is checked by the
+ * {@link Validator} of its channel or, when messages are partitioned by a
+ * dispatch key, by the validator of its lane's slice of the channel, within
+ * the lane.
  */
 public class Debugger {
+    public static enum State {
+        CONNECTED, HANDSHAKING, RECOVERING, STARTING, STOPPED;
+    }
+
+    /**
+     * The listener a channel is subscribed with. Messages outside the slice
+     * of the channel's subscription are discarded as they are received. The
+     * latency of every other message is measured, and the message captured;
+     * then it is dispatched to the session's message listener.
+     */
+    public class Subscriber implements MessageListener {
+        private final MessageListener dispatch;
+        private final Subscription    subscription;
+
+        private Subscriber(Subscription subscription, MessageListener dispatch) {
+            this.subscription = subscription;
+            this.dispatch = dispatch;
+        }
+
+        public Subscription getSubscription() {
+            return subscription;
+        }
+
+        @Override
+        public void onMessage(ClientSessionChannel channel, Message message) {
+            received(channel, message, System.currentTimeMillis());
+        }
+
+        /**
+         * @param received
+         *            - when the message was received, in milliseconds since
+         *            the epoch
+         */
+        public void received(ClientSessionChannel channel, Message message,
+                             long received) {
+            if (!subscription.accept(message)) {
+                Metrics.getDefault().channel(message.getChannel()).onFiltered();
+                return;
+            }
+            DeliveryLatency.getDefault().record(server, message, received);
+            CaptureLog log = engine.getCaptureLog();
+            if (log != null) {
+                try {
+                    log.append(received, message);
+                } catch (IOException e) {
+                    System.out.println("Unable to capture "
+                                       + message.getChannel() + ": " + e);
+                }
+            }
+            dispatch.onMessage(channel, message);
+        }
+    }
+
+    public static enum Transport {
+        LONG_POLLING, WEBSOCKET;
+    }
 
     private static final String DEFAULT_CONFIGURATION_FILE = "config.yml";
 
@@ -69,95 +153,534 @@ public class Debugger {
         } else if (argv.length == 1) {
             configFile = argv[0];
         }
-        new Debugger(Configuration.fromYaml(new FileInputStream(configFile))).run();
+        new StreamingEngine(
+                            Configuration.fromYaml(new FileInputStream(
+                                                                       configFile))).run();
     }
 
-    private static void waitForHandshake(BayeuxClient client,
-                                         long timeoutInMilliseconds,
-                                         long intervalInMilliseconds) {
-        long start = System.currentTimeMillis();
-        long end = start + timeoutInMilliseconds;
-        while (System.currentTimeMillis() < end) {
-            if (client.isHandshook()) {
-                return;
-            }
-            try {
-                Thread.sleep(intervalInMilliseconds);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * @return true if the unsuccessful meta message indicates that the session
+     *         id used to authorize the exchanges is no longer valid
+     */
+    static boolean isSessionInvalid(Message message) {
+        String error = (String) message.get("error");
+        if (error != null && error.startsWith("401")) {
+            return true;
         }
-        throw new IllegalStateException("Client did not handshake with server");
+        Object exception = message.get("exception");
+        return exception instanceof Throwable
+               && String.valueOf(((Throwable) exception).getMessage()).contains(" 401");
     }
 
-    private final Configuration configuration;
+    /**
+     * @return true if the server advised the client not to reconnect
+     */
+    static boolean isTerminal(Message message) {
+        Map<String, Object> advice = message.getAdvice();
+        return advice != null && "none".equals(advice.get(Message.RECONNECT_FIELD));
+    }
+
+    private final Backoff                                       backoff;
+    private volatile BayeuxClient                               client;
+    private final Configuration                                 configuration;
+    private final SessionCredentials                            credentials;
+    private final StreamingEngine                               engine;
+    private final SettableFuture<Message>                       handshaken    = new SettableFuture<Message>();
+    private final SessionMetrics                                metrics;
+    private volatile String                                     server;
+    private final AtomicReference<State>                        state         = new AtomicReference<State>(
+                                                                                                         State.STARTING);
+    private final ConcurrentMap<String, SettableFuture<Message>> subscribed    = new ConcurrentHashMap<String, SettableFuture<Message>>();
+    private final ConcurrentMap<String, Subscriber>             subscribers   = new ConcurrentHashMap<String, Subscriber>();
+    private final ConcurrentMap<String, Subscriber>             subscriptions = new ConcurrentHashMap<String, Subscriber>();
+    private final AdaptiveTimeouts                              timeouts;
+    private final ConcurrentMap<String, Validator>              validators    = new ConcurrentHashMap<String, Validator>();
 
-    public Debugger(Configuration configuration) {
+    /**
+     * @param configuration
+     *            - the configuration of this session
+     * @param engine
+     *            - the started engine, whose http client, login service,
+     *            dispatcher and scheduler the session shares. When the engine
+     *            is part of a cluster, the cluster decides which of the
+     *            configured channels the session subscribes to.
+     */
+    public Debugger(Configuration configuration, StreamingEngine engine) {
         this.configuration = configuration;
+        this.engine = engine;
+        backoff = new Backoff(configuration.getBackoffInitial(),
+                              configuration.getBackoffMax());
+        credentials = new SessionCredentials(engine.getLoginService(),
+                                             configuration,
+                                             engine.getScheduler());
+        metrics = Metrics.getDefault().session(configuration.getUsername());
+        timeouts = configuration.isAdaptiveTimeouts() ? new AdaptiveTimeouts(
+                                                                              configuration,
+                                                                              metrics)
+                                                     : null;
+        if (engine.getCluster() == null) {
+            for (String channel : configuration.getChannels()) {
+                Subscriber subscriber = subscriber(channel);
+                subscriptions.put(subscriber.subscription.getName(),
+                                  subscriber);
+            }
+        }
     }
 
-    public void run() throws Exception {
-        if (!configuration.isDebug()) {
-            ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("root")).setLevel(Level.INFO);
+    /**
+     * @return the configured channels the session is subscribed to
+     */
+    public Set<String> getChannels() {
+        Set<String> channels = new HashSet<String>();
+        for (Subscriber subscriber : subscriptions.values()) {
+            channels.add(subscriber.subscription.getChannel());
         }
-        System.out.println("Running streaming client ...");
+        return channels;
+    }
 
-        final BayeuxClient client = makeClient();
+    public Configuration getConfiguration() {
+        return configuration;
+    }
 
-        client.getChannel(Channel.META_HANDSHAKE).addListener(handshakeListener());
-        client.getChannel(Channel.META_CONNECT).addListener(connectListener());
-        client.getChannel(Channel.META_SUBSCRIBE).addListener(subscribeListener());
+    public State getState() {
+        return state.get();
+    }
 
-        client.handshake();
-        System.out.println("Waiting for handshake");
-        waitForHandshake(client, 30 * 1000, 1000);
+    /**
+     * @param channel
+     *            - the name of the channel subscribed to, which messages are
+     *            delivered on
+     * @return the listener the channel is subscribed with, which captures and
+     *         dispatches its messages, or null if the channel is not
+     *         subscribed
+     */
+    public Subscriber getSubscriber(String channel) {
+        return subscriptions.get(channel);
+    }
 
-        if (!client.isHandshook()) {
-            System.out.println("Failed to handshake");
-            System.exit(1);
-        }
+    /**
+     * @param channel
+     *            - the name of the channel subscribed to
+     * @return the future completed by the server's reply to the latest
+     *         subscription of the channel, or null if the channel has not
+     *         been subscribed yet
+     */
+    public Future<Message> getSubscription(String channel) {
+        return subscribed.get(channel);
+    }
 
-        if (configuration.getChannel() != null) {
-            System.out.println("Subscribing for channel: "
-                               + configuration.getChannel());
-            client.getChannel(configuration.getChannel()).subscribe(messageListener());
-        } else {
+    /**
+     * Log in and handshake, asynchronously. The configured channels are
+     * subscribed by the handshake listener the moment the server acknowledges
+     * the handshake, and messages are delivered on the threads of the shared
+     * http client.
+     * 
+     * @return the future completed by the first successful handshake, or
+     *         failed if the session could not log in
+     */
+    public SettableFuture<Message> start() {
+        System.out.println("Starting session for: "
+                           + configuration.getUsername());
+        if (subscriptions.isEmpty()) {
             System.out.println("No channel to subscribe to");
         }
-        System.out.println("Waiting for streamed data from salesforce ...");
-        while (true) {
-            Thread.sleep(4000);
+        for (String channel : configuration.getChannels()) {
+            String query = configuration.getSubscription(channel).getQuery();
+            if (query != null) {
+                System.out.println("PushTopic query of " + channel + ": "
+                                   + query);
+            }
         }
+        engine.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    login();
+                    connect();
+                } catch (Throwable e) {
+                    state.set(State.STOPPED);
+                    handshaken.setException(e);
+                }
+            }
+        });
+        return handshaken;
     }
 
-    private BayeuxClient makeClient() throws Exception {
-        HttpClient httpClient = new HttpClient();
-        httpClient.setConnectTimeout(configuration.getConnectTimeout());
-        httpClient.setTimeout(configuration.getReadTimeout());
-        httpClient.start();
+    /**
+     * Disconnect the session from the server
+     */
+    public void stop() {
+        state.set(State.STOPPED);
+        credentials.stop();
+        BayeuxClient current = client;
+        if (current != null) {
+            current.disconnect();
+        }
+    }
 
-        String[] pair = SoapLoginUtil.login(configuration, httpClient);
-        if (pair == null) {
-            System.exit(1);
+    /**
+     * Subscribe to a channel, at once if the session is connected, and
+     * otherwise as soon as it handshakes. The channel is subscribed as
+     * declared in the configuration's <code>subscriptions</code>.
+     */
+    public void subscribe(String channel) {
+        Subscriber subscriber = subscriber(channel);
+        if (subscriptions.putIfAbsent(subscriber.subscription.getName(),
+                                      subscriber) != null) {
+            return;
+        }
+        BayeuxClient current = client;
+        if (current != null && state.get() == State.CONNECTED) {
+            subscribe(current, subscriber);
+        }
+    }
+
+    /**
+     * Unsubscribe from a channel. Messages of the channel already received
+     * are still handled.
+     */
+    public void unsubscribe(String channel) {
+        String name = configuration.getSubscription(channel).getName();
+        Subscriber subscriber = subscriptions.remove(name);
+        if (subscriber == null) {
+            return;
+        }
+        SettableFuture<Message> pending = subscribed.remove(name);
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        BayeuxClient current = client;
+        if (current != null) {
+            System.out.println("Unsubscribing from channel: " + name);
+            current.getChannel(name).unsubscribe(subscriber);
         }
-        assert pair.length == 2;
-        String sessionid = pair[0];
-        String endpoint = pair[1];
-        System.out.println("Login successful!\nEndpoint: " + endpoint
-                           + "\nSessionid=" + sessionid);
+    }
 
+    /**
+     * Create a new BayeuxClient for the current session id and start its
+     * handshake. The configured transport is negotiated during the
+     * handshake.
+     */
+    private void connect() throws MalformedURLException {
         Map<String, Object> options = new HashMap<String, Object>();
         options.put(ClientTransport.TIMEOUT_OPTION,
                     configuration.getReadTimeout());
-        return new BayeuxClient(salesforceStreamingEndpoint(endpoint),
-                                new AuthorizedLongPollingTransport(sessionid,
-                                                                   options,
-                                                                   httpClient));
+        options.put(WebSocketTransport.CONNECT_TIMEOUT_OPTION,
+                    timeouts == null ? configuration.getConnectTimeout()
+                                    : timeouts.getConnectTimeout());
+        AuthorizedLongPollingTransport longPolling = new AuthorizedLongPollingTransport(
+                                                                                        credentials,
+                                                                                        options,
+                                                                                        engine.getHttpClient(),
+                                                                                        configuration.isCompression());
+        longPolling.setTimeouts(timeouts);
+        BayeuxClient newClient;
+        if (configuration.getTransport() == Transport.WEBSOCKET) {
+            AuthorizedWebSocketTransport webSocket = new AuthorizedWebSocketTransport(
+                                                                                      credentials,
+                                                                                      options,
+                                                                                      engine.getWebSocketClientFactory(),
+                                                                                      engine.getScheduler());
+            webSocket.setTimeouts(timeouts);
+            newClient = new BayeuxClient(salesforceStreamingEndpoint(),
+                                         webSocket, longPolling);
+        } else {
+            newClient = new BayeuxClient(salesforceStreamingEndpoint(),
+                                         longPolling);
+        }
+        if (configuration.isRawPayload()) {
+            longPolling.setRawReceiver(newClient);
+        }
+
+        if (timeouts != null) {
+            newClient.addExtension(timeouts);
+        }
+        if (engine.getCheckpointStore() != null) {
+            newClient.addExtension(new ReplayExtension(
+                                                       engine.getCheckpointStore(),
+                                                       configuration.getUsername()));
+        }
+        newClient.getChannel(Channel.META_HANDSHAKE).addListener(handshakeListener());
+        newClient.getChannel(Channel.META_CONNECT).addListener(connectListener());
+        newClient.getChannel(Channel.META_SUBSCRIBE).addListener(subscribeListener());
+
+        server = DeliveryLatency.server(new URL(credentials.getEndpoint()));
+        client = newClient;
+        state.set(State.HANDSHAKING);
+        newClient.handshake();
+    }
+
+    /**
+     * Record the replay id of the processed message, so that a restarted
+     * session resumes after it
+     */
+    private void checkpoint(Message message) {
+        CheckpointStore store = engine.getCheckpointStore();
+        Long replayId = store == null ? null : ReplayExtension.replayId(message);
+        if (replayId == null) {
+            return;
+        }
+        try {
+            store.checkpoint(CheckpointStore.key(configuration.getUsername(),
+                                                 message.getChannel()),
+                             replayId);
+        } catch (IOException e) {
+            System.out.println("Unable to checkpoint " + message.getChannel()
+                               + ": " + e);
+        }
+    }
+
+    /**
+     * @return the listener that hands the channel's messages over to the
+     *         dispatcher. When a dispatch key is set, messages are counted in
+     *         the channel's order, validated and printed in parallel lanes, in
+     *         the order of their key, and checkpointed once every earlier
+     *         message has been handled.
+     */
+    private MessageListener dispatch(String channel) {
+        Dispatcher dispatcher = engine.getDispatcher();
+        String key = configuration.getDispatchKey();
+        if (key == null) {
+            return dispatcher.dispatch(channel, messageListener());
+        }
+        return dispatcher.dispatch(channel, countListener(), key,
+                                   configuration.getDispatchLanes(),
+                                   laneHandlers(), checkpointListener());
+    }
+
+    /**
+     * @return true if the message was delivered by a client this session has
+     *         since replaced
+     */
+    private boolean isStale(ClientSessionChannel channel) {
+        return channel.getSession() != client;
+    }
+
+    private void login() throws Exception {
+        credentials.login();
+        System.out.println("Login successful!\nEndpoint: "
+                           + credentials.getEndpoint() + "\nSessionid="
+                           + credentials.getToken());
     }
 
-    private String salesforceStreamingEndpoint(String endpoint)
-                                                               throws MalformedURLException {
-        return new URL(endpoint + configuration.getStreamingUri()).toExternalForm();
+    /**
+     * Print the message, projected by its subscription, if printing is on
+     */
+    private void print(Message message) {
+        if (configuration.isPrintMessages()) {
+            System.out.println("Received Message: "
+                               + subscription(message.getChannel()).project(message));
+        }
+    }
+
+    /**
+     * Replace the failed client after a backoff. Only one recovery is in
+     * progress at any time.
+     * 
+     * @param relogin
+     *            - true if the session id must be renewed
+     */
+    private void recover(final boolean relogin) {
+        State current = state.get();
+        if (current == State.STOPPED || current == State.RECOVERING
+            || !state.compareAndSet(current, State.RECOVERING)) {
+            return;
+        }
+        metrics.onRecovery();
+        scheduleReconnect(client, relogin);
+    }
+
+    private void reconnect(BayeuxClient failed, boolean relogin) {
+        if (state.get() == State.STOPPED) {
+            return;
+        }
+        failed.abort();
+        try {
+            if (relogin
+                && credentials.refresh(credentials.getToken()) == null) {
+                throw new IllegalStateException("Login failed for: "
+                                                + configuration.getUsername());
+            }
+            connect();
+        } catch (Exception e) {
+            System.out.println("Recovery of session for: "
+                               + configuration.getUsername() + " failed: " + e);
+            scheduleReconnect(failed, relogin);
+        }
+    }
+
+    private String salesforceStreamingEndpoint() throws MalformedURLException {
+        return new URL(credentials.getEndpoint()
+                       + configuration.getStreamingUri()).toExternalForm();
+    }
+
+    private void scheduleReconnect(final BayeuxClient failed,
+                                   final boolean relogin) {
+        long delay = backoff.next();
+        System.out.println("Recovering session for: "
+                           + configuration.getUsername() + " in " + delay
+                           + " ms" + (relogin ? ", logging in again" : ""));
+        engine.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect(failed, relogin);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void subscribe(BayeuxClient handshook, Subscriber subscriber) {
+        String name = subscriber.subscription.getName();
+        ClientSessionChannel channel = handshook.getChannel(name);
+        if (channel.getSubscribers().contains(subscriber)) {
+            return;
+        }
+        System.out.println("Subscribing for channel: " + name);
+        SettableFuture<Message> reply = new SettableFuture<Message>();
+        SettableFuture<Message> previous = subscribed.put(name, reply);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        channel.subscribe(subscriber);
+    }
+
+    private void subscribeAll(BayeuxClient handshook) {
+        for (Subscriber subscriber : subscriptions.values()) {
+            subscribe(handshook, subscriber);
+        }
+    }
+
+    /**
+     * @return the subscription of the channel messages are delivered on
+     */
+    private Subscription subscription(String name) {
+        Subscriber subscriber = subscriptions.get(name);
+        return subscriber == null ? configuration.getSubscription(name)
+                                 : subscriber.subscription;
+    }
+
+    /**
+     * @return the subscriber of the channel, created with its dispatch queue
+     *         the first time the channel is subscribed
+     */
+    private Subscriber subscriber(String channel) {
+        Subscriber subscriber = subscribers.get(channel);
+        if (subscriber == null) {
+            Subscription subscription = configuration.getSubscription(channel);
+            subscriber = new Subscriber(subscription,
+                                        dispatch(subscription.getName()));
+            Subscriber existing = subscribers.putIfAbsent(channel, subscriber);
+            if (existing != null) {
+                subscriber = existing;
+            }
+        }
+        return subscriber;
+    }
+
+    /**
+     * Complete the pending subscription future of the channel in the
+     * subscribe reply
+     */
+    private void subscribed(Message message) {
+        Object channel = message.get(Message.SUBSCRIPTION_FIELD);
+        SettableFuture<Message> reply = channel == null ? null
+                                                       : subscribed.get(channel.toString());
+        if (reply == null) {
+            return;
+        }
+        if (message.isSuccessful()) {
+            reply.set(message);
+        } else {
+            reply.setException(new IllegalStateException(
+                                                          "Subscription to "
+                                                                  + channel
+                                                                  + " failed: "
+                                                                  + message.get("error")));
+        }
+    }
+
+    /**
+     * Route an unsuccessful meta message to the recovery that fixes it
+     */
+    private void unsuccessful(String meta, Message message) {
+        String error = (String) message.get("error");
+        if (error != null) {
+            System.out.println("Error during " + meta + ": " + error);
+        }
+        if (timeouts != null
+            && message.get("exception") instanceof TimeoutException) {
+            timeouts.onExpire();
+        }
+        if (isSessionInvalid(message)) {
+            recover(true);
+        } else if (isTerminal(message)) {
+            recover(false);
+        }
+    }
+
+    /**
+     * Count the message, and check it with the validator of its channel
+     */
+    private void validate(Message message) {
+        Metrics.getDefault().channel(message.getChannel()).onMessage();
+        if (configuration.isValidate()) {
+            validator(message.getChannel()).validate(message);
+        }
+    }
+
+    /**
+     * @return the validator of the channel messages are delivered on, which
+     *         may be one of many matched by a wildcard subscription
+     */
+    private Validator validator(String channel) {
+        Validator validator = validators.get(channel);
+        if (validator == null) {
+            validator = new Validator(channel,
+                                      configuration.getValidationWindow(),
+                                      configuration.getValidationRecentIds(),
+                                      configuration.isContiguousReplayIds()
+                                              && !subscription(channel).isFiltered());
+            Validator existing = validators.putIfAbsent(channel, validator);
+            if (existing != null) {
+                validator = existing;
+            }
+        }
+        return validator;
+    }
+
+    /**
+     * @return the validator of the slice of the channel's messages handled by
+     *         a lane of the dispatch key. The replay ids of a slice are never
+     *         consecutive, and each lane remembers its share of the recent
+     *         identities.
+     */
+    private Validator validator(String channel, int lane) {
+        String name = channel + "#" + lane;
+        Validator validator = validators.get(name);
+        if (validator == null) {
+            validator = new Validator(channel,
+                                      configuration.getValidationWindow(),
+                                      configuration.getValidationRecentIds()
+                                              / configuration.getDispatchLanes(),
+                                      false);
+            Validator existing = validators.putIfAbsent(name, validator);
+            if (existing != null) {
+                validator = existing;
+            }
+        }
+        return validator;
+    }
+
+    /**
+     * @return the listener that checkpoints messages partitioned by the
+     *         dispatch key, once every earlier message has been handled
+     */
+    protected MessageListener checkpointListener() {
+        return new MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel channel, Message message) {
+                checkpoint(message);
+            }
+        };
     }
 
     /**
@@ -167,20 +690,33 @@ public class Debugger {
         return new ClientSessionChannel.MessageListener() {
             @Override
             public void onMessage(ClientSessionChannel channel, Message message) {
+                if (isStale(channel)) {
+                    return;
+                }
                 System.out.println("[CHANNEL:META_CONNECT]: " + message);
-                boolean success = message.isSuccessful();
-                if (!success) {
-                    String error = (String) message.get("error");
-                    if (error != null) {
-                        System.out.println("Error during CONNECT: " + error);
-                        System.out.println("Exiting...");
-                        System.exit(1);
-                    }
+                metrics.onConnect(message.isSuccessful());
+                if (message.isSuccessful()) {
+                    backoff.reset();
+                } else {
+                    unsuccessful("CONNECT", message);
                 }
             }
         };
     }
 
+    /**
+     * @return the listener that counts messages partitioned by the dispatch
+     *         key, in the channel's order
+     */
+    protected MessageListener countListener() {
+        return new MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel channel, Message message) {
+                Metrics.getDefault().channel(message.getChannel()).onMessage();
+            }
+        };
+    }
+
     /**
      * @return
      */
@@ -188,20 +724,44 @@ public class Debugger {
         return new ClientSessionChannel.MessageListener() {
             @Override
             public void onMessage(ClientSessionChannel channel, Message message) {
+                if (isStale(channel)) {
+                    return;
+                }
                 System.out.println("[CHANNEL:META_HANDSHAKE]: " + message);
-                boolean success = message.isSuccessful();
-                if (!success) {
-                    String error = (String) message.get("error");
-                    if (error != null) {
-                        System.out.println("Error during HANDSHAKE: " + error);
-                        System.out.println("Exiting...");
-                        System.exit(1);
-                    }
+                metrics.onHandshake(message.isSuccessful());
+                if (message.isSuccessful()) {
+                    state.compareAndSet(State.HANDSHAKING, State.CONNECTED);
+                    subscribeAll((BayeuxClient) channel.getSession());
+                    handshaken.set(message);
+                } else {
+                    unsuccessful("HANDSHAKE", message);
                 }
             }
         };
     }
 
+    /**
+     * @return the handlers of the lanes of the dispatch key, each of which
+     *         validates its slice of the channel's messages and prints them
+     */
+    protected LaneHandlers laneHandlers() {
+        return new LaneHandlers() {
+            @Override
+            public MessageListener handler(final int lane) {
+                return new MessageListener() {
+                    @Override
+                    public void onMessage(ClientSessionChannel channel,
+                                          Message message) {
+                        if (configuration.isValidate()) {
+                            validator(message.getChannel(), lane).validate(message);
+                        }
+                        print(message);
+                    }
+                };
+            }
+        };
+    }
+
     /**
      * @return
      */
@@ -209,7 +769,9 @@ public class Debugger {
         return new MessageListener() {
             @Override
             public void onMessage(ClientSessionChannel channel, Message message) {
-                System.out.println("Received Message: " + message);
+                validate(message);
+                print(message);
+                checkpoint(message);
             }
         };
     }
@@ -221,15 +783,14 @@ public class Debugger {
         return new ClientSessionChannel.MessageListener() {
             @Override
             public void onMessage(ClientSessionChannel channel, Message message) {
+                if (isStale(channel)) {
+                    return;
+                }
                 System.out.println("[CHANNEL:META_SUBSCRIBE]: " + message);
-                boolean success = message.isSuccessful();
-                if (!success) {
-                    String error = (String) message.get("error");
-                    if (error != null) {
-                        System.out.println("Error during SUBSCRIBE: " + error);
-                        System.out.println("Exiting...");
-                        System.exit(1);
-                    }
+                metrics.onSubscribe(message.isSuccessful());
+                subscribed(message);
+                if (!message.isSuccessful()) {
+                    unsuccessful("SUBSCRIBE", message);
                 }
             }
         };
@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.Message;
+
+/**
+ * Measures the end to end latency of events, from the <code>createdDate</code>
+ * the server stamped them with to their receipt, into the
+ * {@link Metrics.ChannelMetrics} of their channel.
+ * 
+ * The local clock is corrected by the offset of the clock of the server that
+ * delivered the event, estimated from the <code>Date</code> header of its
+ * responses. Offsets are kept per server, as the servers of different
+ * instances, and the login server, keep clocks of their own. A header dated
+ * <code>d</code>, to the second, of a request sent at local time
+ * <code>s</code> and answered at <code>r</code> bounds the offset to
+ * <code>(d - r, d + 1000 - s)</code>; the estimate is the middle of the
+ * intersection of these bounds over every response of the server, which
+ * narrows as responses arrive at different points of the server's second.
+ * The intersection starts over from the latest response should it become
+ * empty, as it does when either clock is stepped.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public final class DeliveryLatency {
+    /**
+     * The estimate of the offset of one server's clock
+     */
+    private static class ClockOffset {
+        private long          lower = Long.MIN_VALUE;
+        private volatile long offset;
+        private long          upper = Long.MAX_VALUE;
+
+        private synchronized void onServerDate(long date, long sent,
+                                               long received) {
+            long low = date - received;
+            long high = date + 1000 - sent;
+            if (low > upper || high < lower) {
+                lower = low;
+                upper = high;
+            } else {
+                lower = Math.max(lower, low);
+                upper = Math.min(upper, high);
+            }
+            offset = lower + (upper - lower) / 2;
+        }
+    }
+
+    private static final DeliveryLatency DEFAULT = new DeliveryLatency();
+
+    /**
+     * @return the created date of the event the message carries, or null
+     */
+    @SuppressWarnings("unchecked")
+    public static String createdDate(Message message) {
+        if (message instanceof RawMessage) {
+            return ((RawMessage) message).getCreatedDate();
+        }
+        Object data = message.getData();
+        if (!(data instanceof Map)) {
+            return null;
+        }
+        Object event = ((Map<String, Object>) data).get("event");
+        if (!(event instanceof Map)) {
+            return null;
+        }
+        Object createdDate = ((Map<String, Object>) event).get("createdDate");
+        return createdDate instanceof String ? (String) createdDate : null;
+    }
+
+    public static DeliveryLatency getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the name clock offsets are kept under for the server at the
+     *         host and port
+     */
+    public static String server(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * @return the name clock offsets are kept under for the server of the URL
+     */
+    public static String server(URL url) {
+        return server(url.getHost(),
+                      url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+    }
+
+    /**
+     * Parse an ISO 8601 timestamp, such as
+     * <code>2012-10-18T12:00:00.000+0000</code>, without allocating. The
+     * fraction of a second is optional and of any precision, and the zone is
+     * <code>Z</code> or an offset of the form <code>+hhmm</code>,
+     * <code>+hh:mm</code> or <code>+hh</code>.
+     * 
+     * @return the timestamp in milliseconds since the epoch, or
+     *         {@link Long#MIN_VALUE} if it is malformed
+     */
+    public static long parseTimestamp(CharSequence timestamp) {
+        int length = timestamp.length();
+        if (length < 19 || timestamp.charAt(4) != '-'
+            || timestamp.charAt(7) != '-' || timestamp.charAt(10) != 'T'
+            || timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(timestamp, 0, 4);
+        int month = digits(timestamp, 5, 2);
+        int day = digits(timestamp, 8, 2);
+        int hour = digits(timestamp, 11, 2);
+        int minute = digits(timestamp, 14, 2);
+        int second = digits(timestamp, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+            || hour < 0 || minute < 0 || second < 0) {
+            return Long.MIN_VALUE;
+        }
+        int position = 19;
+        long millis = 0;
+        if (position < length && timestamp.charAt(position) == '.') {
+            int scale = 100;
+            while (++position < length
+                   && Character.isDigit(timestamp.charAt(position))) {
+                millis += (timestamp.charAt(position) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        long offset = 0;
+        if (position < length && timestamp.charAt(position) != 'Z') {
+            char sign = timestamp.charAt(position);
+            int hours = digits(timestamp, position + 1, 2);
+            int colon = position + 3 < length
+                        && timestamp.charAt(position + 3) == ':' ? 1 : 0;
+            int minutes = position + 3 + colon < length ? digits(timestamp,
+                                                                 position
+                                                                         + 3
+                                                                         + colon,
+                                                                 2) : 0;
+            if ((sign != '+' && sign != '-') || hours < 0 || minutes < 0) {
+                return Long.MIN_VALUE;
+            }
+            offset = (hours * 60 + minutes) * 60 * 1000L;
+            if (sign == '-') {
+                offset = -offset;
+            }
+        }
+        long seconds = ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute)
+                       * 60 + second;
+        return seconds * 1000 + millis - offset;
+    }
+
+    /**
+     * @return the number of days from the epoch to the date of the
+     *         proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+                         - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                        + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the value of the decimal digits, or -1 if they are not all
+     *         digits
+     */
+    private static int digits(CharSequence chars, int start, int count) {
+        if (start + count > chars.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = chars.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private final ConcurrentMap<String, ClockOffset> offsets = new ConcurrentHashMap<String, ClockOffset>();
+
+    private DeliveryLatency() {
+    }
+
+    /**
+     * @param server
+     *            - the server, as named by {@link #server(String, int)}
+     * @return the estimated offset of the server's clock from the local one,
+     *         in milliseconds, 0 until a response of the server has been
+     *         dated
+     */
+    public long getClockOffset(String server) {
+        ClockOffset clock = server == null ? null : offsets.get(server);
+        return clock == null ? 0 : clock.offset;
+    }
+
+    /**
+     * @return the estimated offset of each server's clock from the local one,
+     *         in milliseconds
+     */
+    public Map<String, Long> getClockOffsets() {
+        Map<String, Long> clocks = new TreeMap<String, Long>();
+        for (Map.Entry<String, ClockOffset> entry : offsets.entrySet()) {
+            clocks.put(entry.getKey(), entry.getValue().offset);
+        }
+        return clocks;
+    }
+
+    /**
+     * Narrow the estimate of a server's clock offset
+     * 
+     * @param server
+     *            - the server, as named by {@link #server(String, int)}
+     * @param date
+     *            - the <code>Date</code> of the server's response, in
+     *            milliseconds since the epoch
+     * @param sent
+     *            - the local time the request was sent
+     * @param received
+     *            - the local time the response was received
+     */
+    public void onServerDate(String server, long date, long sent, long received) {
+        ClockOffset clock = offsets.get(server);
+        if (clock == null) {
+            clock = new ClockOffset();
+            ClockOffset existing = offsets.putIfAbsent(server, clock);
+            if (existing != null) {
+                clock = existing;
+            }
+        }
+        clock.onServerDate(date, sent, received);
+    }
+
+    /**
+     * Record the latency of the event carried by a message, if it carries a
+     * created date
+     * 
+     * @param server
+     *            - the server that delivered the message, as named by
+     *            {@link #server(String, int)}, or null if it is not known
+     * @param received
+     *            - the local time the message was received, in milliseconds
+     *            since the epoch
+     */
+    public void record(String server, Message message, long received) {
+        String createdDate = createdDate(message);
+        if (createdDate == null) {
+            return;
+        }
+        long created = parseTimestamp(createdDate);
+        if (created == Long.MIN_VALUE) {
+            return;
+        }
+        long latency = received + getClockOffset(server) - created;
+        Metrics.getDefault().channel(message.getChannel()).onLatency(TimeUnit.MILLISECONDS.toNanos(latency));
+    }
+}
@@ -0,0 +1,672 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.text.ParseException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
+
+import com.salesforce.streaming.EventLog.Level;
+import com.salesforce.streaming.Metrics.ChannelMetrics;
+import com.salesforce.streaming.Metrics.LaneMetrics;
+
+/**
+ * Decouples the delivery of messages from their handling. The transport
+ * thread that delivered a long poll response only enqueues each message on
+ * the bounded queue of its channel and returns to the next
+ * <code>/meta/connect</code>; the handlers run on a separate worker pool. The
+ * queue of a channel is drained by at most one worker at a time, so every
+ * channel's messages are handled in order.
+ * 
+ * The messages of a channel may also be partitioned by the value of a
+ * payload field, such as the sObject <code>Id</code>, across a number of
+ * lanes. Messages with the same key are handled in order, on one lane at a
+ * time, while the lanes run in parallel. Handled messages are completed in
+ * the channel's order, so a checkpoint never passes a message still being
+ * handled.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Dispatcher {
+
+    /**
+     * Creates the handlers of the lanes of a partitioned channel
+     */
+    public static interface LaneHandlers {
+        /**
+         * @param lane
+         *            - the index of the lane
+         * @return the listener that handles the messages of the lane, one at
+         *         a time
+         */
+        MessageListener handler(int lane);
+    }
+
+    /**
+     * What to do with a message whose channel queue is full
+     */
+    public static enum Overflow {
+        /**
+         * Block the delivering thread until there is room
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued message
+         */
+        DROP_OLDEST,
+        /**
+         * Append the message to a spill file on disk, to be handled once the
+         * queue has drained
+         */
+        SPILL;
+    }
+
+    private static class Delivery {
+        private final ClientSessionChannel channel;
+        private volatile boolean           done;
+        private final long                 enqueued;
+        private final Message              message;
+
+        private Delivery(ClientSessionChannel channel, Message message,
+                         long enqueued) {
+            this.channel = channel;
+            this.message = message;
+            this.enqueued = enqueued;
+        }
+    }
+
+    /**
+     * The queue of a channel, and the task that drains it
+     */
+    private class Lane implements Runnable {
+        private volatile ClientSessionChannel channel;
+        private final MessageListener         handler;
+        private final ChannelMetrics          metrics;
+        private Partition                     partition;
+        private final BlockingQueue<Delivery> queue;
+        private final AtomicBoolean           scheduled = new AtomicBoolean();
+        private Spill                         spill;
+
+        private Lane(String channel, MessageListener handler) {
+            this.handler = handler;
+            queue = new ArrayBlockingQueue<Delivery>(capacity);
+            metrics = Metrics.getDefault().channel(channel);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    if (partition != null && partition.pause()) {
+                        break;
+                    }
+                    Delivery delivery = poll();
+                    if (delivery == null) {
+                        break;
+                    }
+                    metrics.onDequeued(System.nanoTime() - delivery.enqueued);
+                    try {
+                        handler.onMessage(delivery.channel, delivery.message);
+                    } catch (Throwable e) {
+                        EventLog.getDefault().log(Level.ERROR, e,
+                                                  "Error handling message on: %s",
+                                                  delivery.message.getChannel());
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (!isEmpty() && (partition == null || !partition.isPaused())) {
+                    schedule();
+                }
+            }
+        }
+
+        private void enqueue(ClientSessionChannel channel, Message message)
+                                                                           throws InterruptedException {
+            this.channel = channel;
+            Delivery delivery = new Delivery(channel, message,
+                                             System.nanoTime());
+            metrics.onQueued();
+            if (stopped) {
+                metrics.onDropped();
+                return;
+            }
+            switch (overflow) {
+                case BLOCK:
+                    queue.put(delivery);
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(delivery)) {
+                        if (queue.poll() != null) {
+                            metrics.onDropped();
+                        }
+                    }
+                    break;
+                case SPILL:
+                    synchronized (this) {
+                        if ((spill != null && !spill.isEmpty())
+                            || !queue.offer(delivery)) {
+                            if (stopped) {
+                                // the spill file has been deleted
+                                metrics.onDropped();
+                                return;
+                            }
+                            spill(delivery);
+                        }
+                    }
+                    break;
+            }
+            if (!schedule()) {
+                metrics.onDropped();
+            }
+        }
+
+        private synchronized boolean isEmpty() {
+            return queue.isEmpty() && (spill == null || spill.isEmpty());
+        }
+
+        private Delivery poll() {
+            Delivery delivery = queue.poll();
+            if (delivery != null || overflow != Overflow.SPILL) {
+                return delivery;
+            }
+            synchronized (this) {
+                delivery = queue.poll();
+                if (delivery != null || spill == null || spill.isEmpty()) {
+                    return delivery;
+                }
+                try {
+                    return spill.read(channel);
+                } catch (IOException e) {
+                    EventLog.getDefault().log(Level.ERROR, e,
+                                              "Unable to read spilled messages of: %s",
+                                              channel.getId());
+                    spill.clear();
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * @return false if the workers have been stopped
+         */
+        private boolean schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void spill(Delivery delivery) {
+            try {
+                if (spill == null) {
+                    spill = new Spill(File.createTempFile("spill-", ".dat",
+                                                          spillDirectory));
+                }
+                spill.write(delivery);
+                metrics.onSpilled();
+            } catch (IOException e) {
+                metrics.onDropped();
+                EventLog.getDefault().log(Level.ERROR, e,
+                                          "Unable to spill message of: %s",
+                                          delivery.message.getChannel());
+            }
+        }
+    }
+
+    /**
+     * One of the lanes a partitioned channel's messages are spread across
+     */
+    private class KeyLane implements Runnable {
+        private final MessageListener handler;
+        private final LaneMetrics     metrics;
+        private final Partition       partition;
+        private final Queue<Delivery> queue     = new ConcurrentLinkedQueue<Delivery>();
+        private final AtomicBoolean   scheduled = new AtomicBoolean();
+
+        private KeyLane(Partition partition, MessageListener handler,
+                        LaneMetrics metrics) {
+            this.partition = partition;
+            this.handler = handler;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Delivery delivery = queue.poll();
+                    if (delivery == null) {
+                        break;
+                    }
+                    metrics.onDequeued();
+                    try {
+                        handler.onMessage(delivery.channel, delivery.message);
+                    } catch (Throwable e) {
+                        EventLog.getDefault().log(Level.ERROR, e,
+                                                  "Error handling message on: %s",
+                                                  delivery.message.getChannel());
+                    }
+                    metrics.onHandled(System.nanoTime() - delivery.enqueued);
+                    delivery.done = true;
+                    partition.complete();
+                }
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void enqueue(Delivery delivery) {
+            metrics.onQueued();
+            queue.add(delivery);
+            if (!schedule()) {
+                partition.source.metrics.onDropped();
+            }
+        }
+
+        /**
+         * @return false if the workers have been stopped
+         */
+        private boolean schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Spreads the messages of a channel across its lanes by the hash of their
+     * key, and completes them in the order they were partitioned. At most
+     * capacity messages are partitioned and not yet completed; beyond that,
+     * the channel's queue is paused until half of them have completed, so
+     * that its overflow policy applies.
+     */
+    private class Partition {
+        private final MessageListener completed;
+        private final AtomicBoolean   completing = new AtomicBoolean();
+        private final AtomicInteger   inFlight   = new AtomicInteger();
+        private final String          key;
+        private final KeyLane[]       keyLanes;
+        private final Queue<Delivery> order      = new ConcurrentLinkedQueue<Delivery>();
+        private final AtomicBoolean   paused     = new AtomicBoolean();
+        private Lane                  source;
+
+        private Partition(String channel, String key, int lanes,
+                          LaneHandlers handlers, MessageListener completed) {
+            this.key = key;
+            this.completed = completed;
+            keyLanes = new KeyLane[lanes];
+            for (int i = 0; i < lanes; i++) {
+                keyLanes[i] = new KeyLane(this, handlers.handler(i),
+                                          Metrics.getDefault().lane(channel, i));
+            }
+        }
+
+        /**
+         * Complete the handled messages at the head of the partition's
+         * order, and resume the channel's queue once enough have completed
+         */
+        private void complete() {
+            do {
+                if (!completing.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    Delivery head;
+                    while ((head = order.peek()) != null && head.done) {
+                        order.poll();
+                        inFlight.decrementAndGet();
+                        try {
+                            completed.onMessage(head.channel, head.message);
+                        } catch (Throwable e) {
+                            EventLog.getDefault().log(Level.ERROR, e,
+                                                      "Error completing message on: %s",
+                                                      head.message.getChannel());
+                        }
+                    }
+                } finally {
+                    completing.set(false);
+                }
+                if (inFlight.get() <= capacity / 2
+                    && paused.compareAndSet(true, false)) {
+                    source.schedule();
+                }
+                // a lane may have finished the head while this thread held it
+            } while (order.peek() != null && order.peek().done);
+        }
+
+        private void enqueue(ClientSessionChannel channel, Message message) {
+            Delivery delivery = new Delivery(channel, message,
+                                             System.nanoTime());
+            inFlight.incrementAndGet();
+            order.add(delivery);
+            keyLanes[lane(Subscription.sobjectField(message, key))].enqueue(delivery);
+        }
+
+        private boolean isIdle() {
+            return inFlight.get() == 0;
+        }
+
+        private boolean isPaused() {
+            return paused.get();
+        }
+
+        private int lane(String value) {
+            if (value == null) {
+                return 0;
+            }
+            int hash = value.hashCode();
+            hash ^= hash >>> 16;
+            return (hash & Integer.MAX_VALUE) % keyLanes.length;
+        }
+
+        /**
+         * @return true if the channel's queue must stop feeding the partition
+         *         until it is resumed
+         */
+        private boolean pause() {
+            if (inFlight.get() < capacity) {
+                return false;
+            }
+            paused.set(true);
+            // recheck, lest the last completion missed the pause
+            if (inFlight.get() < capacity) {
+                paused.set(false);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * An append only file of the messages that overflowed a channel queue.
+     * The file is truncated whenever it has been read to its end.
+     */
+    private static class Spill {
+        private final RandomAccessFile file;
+        private final File             path;
+        private long                   readPosition;
+        private long                   writePosition;
+
+        private Spill(File file) throws IOException {
+            file.deleteOnExit();
+            path = file;
+            this.file = new RandomAccessFile(file, "rw");
+        }
+
+        private void clear() {
+            readPosition = writePosition = 0;
+            try {
+                file.setLength(0);
+            } catch (IOException e) {
+                // the positions have been reset regardless
+            }
+        }
+
+        /**
+         * Close and delete the file, discarding the messages not yet read
+         */
+        private void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // deleted regardless
+            }
+            path.delete();
+        }
+
+        private boolean isEmpty() {
+            return readPosition == writePosition;
+        }
+
+        private Delivery read(ClientSessionChannel channel) throws IOException {
+            file.seek(readPosition);
+            long enqueued = file.readLong();
+            byte[] json = new byte[file.readInt()];
+            file.readFully(json);
+            readPosition = file.getFilePointer();
+            if (isEmpty()) {
+                clear();
+            }
+            try {
+                return new Delivery(channel, RawMessage.parse(json, 0,
+                                                              json.length).get(0),
+                                    enqueued);
+            } catch (ParseException e) {
+                throw new IOException("Corrupt spilled message: "
+                                      + new String(json, "UTF-8"), e);
+            }
+        }
+
+        private void write(Delivery delivery) throws IOException {
+            byte[] json = delivery.message.getJSON().getBytes("UTF-8");
+            file.seek(writePosition);
+            file.writeLong(delivery.enqueued);
+            file.writeInt(json.length);
+            file.write(json);
+            writePosition = file.getFilePointer();
+        }
+    }
+
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * @param threads
+     *            - the number of platform threads, if virtual threads are not
+     *            used
+     * @param virtual
+     *            - use a virtual thread per task, when the runtime supports
+     *            them
+     * @return the pool the handlers run on
+     */
+    static ExecutorService newWorkerPool(int threads, boolean virtual) {
+        if (virtual) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (Exception e) {
+                // not supported by this runtime
+            }
+        }
+        return Executors.newFixedThreadPool(threads,
+                                            new DaemonThreadFactory(
+                                                                    "Dispatcher"));
+    }
+
+    private final int             capacity;
+    private final List<Lane>      lanes      = new CopyOnWriteArrayList<Lane>();
+    private final Overflow        overflow;
+    private final List<Partition> partitions = new CopyOnWriteArrayList<Partition>();
+    private final File            spillDirectory;
+    private volatile boolean      stopped;
+    private final ExecutorService workers;
+
+    /**
+     * @param workers
+     *            - the pool handlers run on
+     * @param capacity
+     *            - the capacity of each channel's queue
+     * @param overflow
+     *            - what to do when a channel's queue is full
+     * @param spillDirectory
+     *            - where spill files are created
+     */
+    public Dispatcher(ExecutorService workers, int capacity,
+                      Overflow overflow, File spillDirectory) {
+        this.workers = workers;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @param channel
+     *            - the channel the listener is subscribed to
+     * @param handler
+     *            - the listener that handles the channel's messages
+     * @return a listener that hands each message over to the handler, on the
+     *         dispatcher's workers. Every call creates a new queue.
+     */
+    public MessageListener dispatch(String channel, MessageListener handler) {
+        Lane lane = new Lane(channel, handler);
+        lanes.add(lane);
+        return listener(lane);
+    }
+
+    /**
+     * @param channel
+     *            - the channel the listener is subscribed to
+     * @param ordered
+     *            - the listener that first handles each message, in the
+     *            channel's order
+     * @param key
+     *            - the payload field messages are partitioned by
+     * @param lanes
+     *            - the number of lanes messages are partitioned across
+     * @param handlers
+     *            - the listeners that then handle each message, one for each
+     *            lane, in the order of the messages with the same key
+     * @param completed
+     *            - the listener that is finally called with each message, in
+     *            the channel's order, once it and every earlier message have
+     *            been handled
+     * @return a listener that hands each message over to the listeners, on
+     *         the dispatcher's workers. Every call creates a new queue and
+     *         lanes.
+     */
+    public MessageListener dispatch(String channel,
+                                    final MessageListener ordered, String key,
+                                    int lanes, LaneHandlers handlers,
+                                    MessageListener completed) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be positive: "
+                                               + lanes);
+        }
+        final Partition partition = new Partition(channel, key, lanes,
+                                                  handlers, completed);
+        Lane lane = new Lane(channel, new MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel channel, Message message) {
+                try {
+                    ordered.onMessage(channel, message);
+                } finally {
+                    partition.enqueue(channel, message);
+                }
+            }
+        });
+        lane.partition = partition;
+        partition.source = lane;
+        partitions.add(partition);
+        this.lanes.add(lane);
+        return listener(lane);
+    }
+
+    /**
+     * @return true if no message is queued or being handled
+     */
+    public boolean isIdle() {
+        for (Lane lane : lanes) {
+            if (lane.scheduled.get() || !lane.isEmpty()) {
+                return false;
+            }
+        }
+        for (Partition partition : partitions) {
+            if (!partition.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop the workers, waiting briefly for the handlers already running,
+     * and delete the spill files. Messages delivered afterwards are dropped.
+     */
+    public void stop() {
+        stopped = true;
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                if (lane.spill != null) {
+                    lane.spill.close();
+                    lane.spill = null;
+                }
+            }
+        }
+    }
+
+    private MessageListener listener(final Lane lane) {
+        return new MessageListener() {
+            @Override
+            public void onMessage(ClientSessionChannel channel, Message message) {
+                try {
+                    lane.enqueue(channel, message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous log for events raised on Jetty's I/O threads. Producers
+ * claim a slot in a fixed size ring with a single CAS and store the format
+ * string and its arguments; nothing is formatted on the calling thread. A
+ * daemon writer drains the ring in batches, formats the records and writes
+ * each batch to the output stream with one call. When the ring is full,
+ * records are dropped and counted rather than blocking the producer.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public final class EventLog {
+    public static enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR;
+    }
+
+    private static class Slot {
+        private Object        a0;
+        private Object        a1;
+        private Object        a2;
+        private String        format;
+        private Level         level;
+        private volatile long sequence = -1;
+        private Throwable     thrown;
+    }
+
+    private static final int      BATCH_SIZE   = 256;
+    private static final int      DEFAULT_SIZE = 8192;
+    private static final long     IDLE_PARK    = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final EventLog DEFAULT      = new EventLog(DEFAULT_SIZE,
+                                                              System.out);
+
+    public static EventLog getDefault() {
+        return DEFAULT;
+    }
+
+    private final StringBuilder   batch        = new StringBuilder();
+    private final AtomicLong      claimed      = new AtomicLong();
+    private final AtomicLong      consumed     = new AtomicLong();
+    private final AtomicLong      dropped      = new AtomicLong();
+    private long                  droppedReported;
+    private volatile Level        level        = Level.TRACE;
+    private final int             mask;
+    private final PrintStream     out;
+    private final Slot[]          ring;
+    private final Object          writerLock   = new Object();
+
+    /**
+     * @param size
+     *            - the capacity of the ring, rounded up to a power of two
+     * @param out
+     *            - the stream the writer thread prints to
+     */
+    public EventLog(int size, PrintStream out) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        mask = capacity - 1;
+        this.out = out;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    if (drain() == 0) {
+                        LockSupport.parkNanos(IDLE_PARK);
+                    }
+                }
+            }
+        }, "Event log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Write out every record published so far on the calling thread
+     */
+    public void flush() {
+        while (drain() == BATCH_SIZE) {
+            // keep draining
+        }
+    }
+
+    public void log(Level level, String format, Object a0) {
+        append(level, format, a0, null, null, null);
+    }
+
+    public void log(Level level, String format, Object a0, Object a1) {
+        append(level, format, a0, a1, null, null);
+    }
+
+    public void log(Level level, String format, Object a0, Object a1,
+                    Object a2) {
+        append(level, format, a0, a1, a2, null);
+    }
+
+    public void log(Level level, Throwable thrown, String format, Object a0) {
+        append(level, format, a0, null, null, thrown);
+    }
+
+    private void append(Level level, String format, Object a0, Object a1,
+                        Object a2, Throwable thrown) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Slot slot = ring[(int) (sequence & mask)];
+        slot.level = level;
+        slot.format = format;
+        slot.a0 = a0;
+        slot.a1 = a1;
+        slot.a2 = a2;
+        slot.thrown = thrown;
+        slot.sequence = sequence;
+    }
+
+    /**
+     * Format and print up to one batch of published records
+     * 
+     * @return the number of records written
+     */
+    private int drain() {
+        synchronized (writerLock) {
+            long next = consumed.get();
+            int count = 0;
+            batch.setLength(0);
+            while (count < BATCH_SIZE) {
+                Slot slot = ring[(int) (next & mask)];
+                if (slot.sequence != next) {
+                    break;
+                }
+                format(slot);
+                slot.a0 = slot.a1 = slot.a2 = null;
+                slot.thrown = null;
+                next++;
+                count++;
+                consumed.lazySet(next);
+            }
+            long lost = dropped.get();
+            if (lost != droppedReported) {
+                batch.append("Event log dropped ").append(lost - droppedReported).append(" records\n");
+                droppedReported = lost;
+            }
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+            }
+            return count;
+        }
+    }
+
+    private void format(Slot slot) {
+        try {
+            batch.append(String.format(slot.format, slot.a0, slot.a1,
+                                       slot.a2));
+        } catch (RuntimeException e) {
+            batch.append(slot.format).append(" (").append(e).append(')');
+        }
+        batch.append('\n');
+        if (slot.thrown != null) {
+            out.print(batch);
+            batch.setLength(0);
+            slot.thrown.printStackTrace(out);
+        }
+    }
+}
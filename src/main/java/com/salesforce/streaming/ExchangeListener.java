@@ -28,34 +28,76 @@ package com.salesforce.streaming;
 
 import java.io.IOException;
 
-import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.CachedExchange;
 import org.eclipse.jetty.client.HttpEventListener;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.io.Buffer;
 
+import com.salesforce.streaming.EventLog.Level;
+import com.salesforce.streaming.Metrics.EndpointMetrics;
+
 /**
+ * Traces the life cycle of an exchange. Events are handed to the
+ * {@link EventLog} rather than printed, as these callbacks run on Jetty's I/O
+ * threads. The time to first byte, total exchange time and failures are
+ * recorded in the {@link Metrics} of the exchange's endpoint and, unless the
+ * exchange is not dated, the <code>Date</code> of the response refines the
+ * estimate of the server's clock offset kept by {@link DeliveryLatency}.
+ * 
  * @author hhildebrand
  * 
  */
 public class ExchangeListener implements HttpEventListener {
-    private final ContentExchange   exchange;
-    private final HttpEventListener previous;
+    private final boolean            dated;
+    private final CachedExchange     exchange;
+    private final EventLog           log = EventLog.getDefault();
+    private volatile EndpointMetrics metrics;
+    private final HttpEventListener  previous;
+    private volatile long            sent;
+    private volatile long            started;
+
+    /**
+     * @param exchange
+     */
+    public ExchangeListener(CachedExchange exchange) {
+        this(exchange, true);
+    }
 
     /**
      * @param exchange
+     * @param dated
+     *            - true if the date of the response is to refine the estimate
+     *            of the server's clock offset
      */
-    public ExchangeListener(ContentExchange exchange) {
+    public ExchangeListener(CachedExchange exchange, boolean dated) {
         this.exchange = exchange;
+        this.dated = dated;
         previous = exchange.getEventListener();
         exchange.setEventListener(this);
     }
 
+    private EndpointMetrics metrics() {
+        EndpointMetrics current = metrics;
+        if (current == null) {
+            String uri = exchange.getRequestURI();
+            int query = uri.indexOf('?');
+            current = Metrics.getDefault().endpoint(query < 0 ? uri
+                                                             : uri.substring(0,
+                                                                             query));
+            metrics = current;
+        }
+        return current;
+    }
+
     @Override
     public void onConnectionFailed(Throwable ex) {
         if (previous != null) {
             previous.onConnectionFailed(ex);
         }
-        System.out.println(String.format("Connection failed: %s",
-                                         exchange.getRequestURI()));
+        metrics().onConnectionFailed();
+        log.log(Level.WARN, "Connection failed: %s", exchange.getRequestURI());
     }
 
     @Override
@@ -63,9 +105,9 @@ public class ExchangeListener implements HttpEventListener {
         if (previous != null) {
             previous.onException(ex);
         }
-        System.out.println(String.format("Exception during request: %s",
-                                         exchange.getRequestURI()));
-        ex.printStackTrace();
+        metrics().onException();
+        log.log(Level.ERROR, ex, "Exception during request: %s",
+                exchange.getRequestURI());
     }
 
     @Override
@@ -73,19 +115,21 @@ public class ExchangeListener implements HttpEventListener {
         if (previous != null) {
             previous.onExpire();
         }
-        System.out.println(String.format("Request: %s expired",
-                                         exchange.getRequestURI()));
+        metrics().onExpire();
+        log.log(Level.WARN, "Request: %s expired", exchange.getRequestURI());
     }
 
     @Override
     public void onRequestCommitted() throws IOException {
+        started = System.nanoTime();
+        sent = System.currentTimeMillis();
         if (previous != null) {
             previous.onRequestCommitted();
         }
-        StringBuilder builder = new StringBuilder();
-        builder.append("Sending request: ").append(exchange.getRequestURI()).append('\n');
-        builder.append(exchange.getRequestFields()).append('\n');
-        System.out.println(builder.toString());
+        if (log.isEnabled(Level.TRACE)) {
+            log.log(Level.TRACE, "Sending request: %s%n%s",
+                    exchange.getRequestURI(), exchange.getRequestFields());
+        }
     }
 
     @Override
@@ -100,14 +144,15 @@ public class ExchangeListener implements HttpEventListener {
         if (previous != null) {
             previous.onResponseComplete();
         }
+        metrics().onComplete(System.nanoTime() - started);
     }
 
     @Override
     public void onResponseContent(Buffer content) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        builder.append("Receiving response: ").append(exchange.getRequestURI()).append('\n');
-        builder.append(exchange.getResponseFields()).append('\n');
-        System.out.println(builder.toString());
+        if (log.isEnabled(Level.TRACE)) {
+            log.log(Level.TRACE, "Receiving response: %s%n%s",
+                    exchange.getRequestURI(), exchange.getResponseFields());
+        }
         if (previous != null) {
             previous.onResponseContent(content);
         }
@@ -118,6 +163,18 @@ public class ExchangeListener implements HttpEventListener {
         if (previous != null) {
             previous.onResponseHeader(name, value);
         }
+        if (dated
+            && HttpHeaders.CACHE.getOrdinal(name) == HttpHeaders.DATE_ORDINAL) {
+            long date = HttpFields.parseDate(value.toString());
+            if (date >= 0) {
+                Address address = exchange.getAddress();
+                DeliveryLatency.getDefault().onServerDate(DeliveryLatency.server(address.getHost(),
+                                                                                 address.getPort()),
+                                                          date,
+                                                          sent,
+                                                          System.currentTimeMillis());
+            }
+        }
     }
 
     @Override
@@ -130,11 +187,14 @@ public class ExchangeListener implements HttpEventListener {
     @Override
     public void onResponseStatus(Buffer version, int status, Buffer reason)
                                                                            throws IOException {
+        metrics().onFirstByte(System.nanoTime() - started);
         if (previous != null) {
             previous.onResponseStatus(version, status, reason);
         }
-        System.out.println(String.format("Response status: %s for: %s", status,
-                                         exchange.getRequestURI()));
+        if (log.isEnabled(Level.DEBUG)) {
+            log.log(Level.DEBUG, "Response status: %s for: %s", status,
+                    exchange.getRequestURI());
+        }
     }
 
     @Override
@@ -142,7 +202,7 @@ public class ExchangeListener implements HttpEventListener {
         if (previous != null) {
             previous.onRetry();
         }
-        System.out.println(String.format("Retrying request: %s",
-                                         exchange.getRequestURI()));
+        metrics().onRetry();
+        log.log(Level.WARN, "Retrying request: %s", exchange.getRequestURI());
     }
 }
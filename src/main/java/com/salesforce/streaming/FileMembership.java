@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A membership kept in a directory shared by the nodes, on one host or a
+ * shared file system. Every node owns a file named after it, whose
+ * modification time it renews; a node whose file has not been renewed for
+ * the expiry is dead.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class FileMembership implements Membership {
+    private static final String SUFFIX = ".member";
+
+    private final File    directory;
+    private final long    expiry;
+    private volatile File file;
+
+    /**
+     * @param directory
+     *            - the directory shared by the nodes
+     * @param expiry
+     *            - how long a node's membership lasts without being renewed,
+     *            in milliseconds
+     */
+    public FileMembership(File directory, long expiry) {
+        this.directory = directory;
+        this.expiry = expiry;
+    }
+
+    @Override
+    public Set<String> getMembers() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list members in: " + directory);
+        }
+        long oldest = System.currentTimeMillis() - expiry;
+        Set<String> members = new HashSet<String>();
+        for (File member : files) {
+            if (member.equals(file) || member.lastModified() >= oldest) {
+                String name = member.getName();
+                members.add(name.substring(0, name.length() - SUFFIX.length()));
+            }
+        }
+        return members;
+    }
+
+    @Override
+    public void join(String node) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create membership directory: "
+                                  + directory);
+        }
+        File member = new File(directory, node + SUFFIX);
+        if (!member.createNewFile() && !member.isFile()) {
+            throw new IOException("Unable to create member: " + member);
+        }
+        file = member;
+        renew();
+    }
+
+    @Override
+    public void leave() throws IOException {
+        File current = file;
+        file = null;
+        if (current != null && !current.delete()) {
+            throw new IOException("Unable to delete member: " + current);
+        }
+    }
+
+    @Override
+    public void renew() throws IOException {
+        File current = file;
+        if (current != null
+            && !current.setLastModified(System.currentTimeMillis())) {
+            throw new IOException("Unable to renew member: " + current);
+        }
+    }
+}
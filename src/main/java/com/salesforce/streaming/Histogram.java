@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of positive long values with HDR style log linear
+ * buckets. Values below 128 are counted exactly; above that every power of two
+ * is split into 64 buckets, bounding the relative error of a reported value to
+ * under 2%. Recording is a handful of atomic increments and never allocates.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Histogram {
+
+    /**
+     * An immutable copy of the histogram's counts
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long   count;
+        private final long   max;
+        private final long   min;
+        private final long   sum;
+
+        private Snapshot(long[] counts, long count, long sum, long min,
+                         long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @param percentile
+         *            - between 0 and 100
+         * @return the highest value equivalent to the value at the percentile
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1,
+                                   (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(max, highestEquivalentValue(i));
+                }
+            }
+            return max;
+        }
+    }
+
+    private static final int  SUB_BUCKET_BITS  = 7;
+    private static final int  SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int  SUB_BUCKET_HALF  = SUB_BUCKET_COUNT >> 1;
+    private static final int  BUCKETS          = (64 - SUB_BUCKET_BITS + 1)
+                                                 * SUB_BUCKET_HALF
+                                                 + SUB_BUCKET_HALF;
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long sub = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return (sub << shift) + (1L << shift) - 1;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value)
+                    - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    private final AtomicLong      count  = new AtomicLong();
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      max    = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong      min    = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong      sum    = new AtomicLong();
+
+    /**
+     * @param value
+     *            - the value to record; negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        sum.addAndGet(value);
+        count.incrementAndGet();
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+        while (value < (current = min.get())) {
+            if (min.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        if (total == 0) {
+            return new Snapshot(copy, 0, 0, 0, 0);
+        }
+        return new Snapshot(copy, total, sum.get(), min.get(), max.get());
+    }
+}
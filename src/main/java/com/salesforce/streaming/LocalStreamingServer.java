@@ -0,0 +1,991 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.GzipHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketHandler;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+/**
+ * A local stand in for the Salesforce SOAP login and Streaming API endpoints,
+ * for exercising the client offline. Any username and password log in. The
+ * server publishes synthetic events on a configurable number of
+ * <code>/topic/</code> channels at a configurable rate and size, implements
+ * Bayeux handshake, connect, subscribe, unsubscribe, disconnect and the replay
+ * extension over long polling and, optionally, WebSocket, and injects latency, 401s and dropped connections
+ * on request. Like PushTopics, channels are filtered by the sobject field
+ * values in the query string of the subscribed name, e.g.
+ * <code>/topic/LoadTest0?Id=001000000000007</code>, and filtered events are
+ * delivered on that name.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class LocalStreamingServer {
+
+    public static class Settings {
+        public static Settings fromYaml(InputStream yaml) throws IOException {
+            Settings settings = new ObjectMapper(new YAMLFactory()).readValue(yaml,
+                                                                              Settings.class);
+            yaml.close();
+            return settings;
+        }
+
+        @JsonProperty
+        private String  channelPrefix    = "/topic/LoadTest";
+        @JsonProperty
+        private int     channels         = 1;
+        @JsonProperty
+        private double  dropRate         = 0;
+        @JsonProperty
+        private double  eventsPerSecond  = 10;
+        @JsonProperty
+        private boolean gzip             = true;
+        @JsonProperty
+        private long    latency          = 0;
+        @JsonProperty
+        private long    longPollTimeout  = 110 * 1000;
+        @JsonProperty
+        private int     maxBatch         = 1000;
+        @JsonProperty
+        private int     maxQueue         = 100 * 1000;
+        @JsonProperty
+        private int     maxThreads       = 256;
+        @JsonProperty
+        private int     payloadSize      = 256;
+        @JsonProperty
+        private int     port             = 0;
+        @JsonProperty
+        private int     retained         = 10 * 1000;
+        @JsonProperty
+        private long    sessionTtl       = 0;
+        @JsonProperty
+        private String  soapPartnerUri   = "/services/Soap/u/22.0/";
+        @JsonProperty
+        private String  streamingUri     = "/cometd/23.0";
+        @JsonProperty
+        private double  unauthorizedRate = 0;
+        @JsonProperty
+        private boolean webSocket        = true;
+
+        public String getChannelPrefix() {
+            return channelPrefix;
+        }
+
+        /**
+         * @return the number of channels events are published on
+         */
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return the probability that a request's connection is closed
+         *         without a response
+         */
+        public double getDropRate() {
+            return dropRate;
+        }
+
+        /**
+         * @return the rate events are published at, per channel
+         */
+        public double getEventsPerSecond() {
+            return eventsPerSecond;
+        }
+
+        /**
+         * @return the delay added to every response, in milliseconds
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return the timeout advised to, and held for, long polls, in
+         *         milliseconds
+         */
+        public long getLongPollTimeout() {
+            return longPollTimeout;
+        }
+
+        /**
+         * @return the most events delivered in one connect response
+         */
+        public int getMaxBatch() {
+            return maxBatch;
+        }
+
+        /**
+         * @return the most events queued for a client; older ones are dropped
+         */
+        public int getMaxQueue() {
+            return maxQueue;
+        }
+
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+
+        /**
+         * @return the size of the padding field of each event, in characters
+         */
+        public int getPayloadSize() {
+            return payloadSize;
+        }
+
+        /**
+         * @return the port to listen on, or 0 for any free port
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return the number of events retained per channel for replay
+         */
+        public int getRetained() {
+            return retained;
+        }
+
+        /**
+         * @return how long a session id stays valid, in milliseconds, or 0 to
+         *         never expire
+         */
+        public long getSessionTtl() {
+            return sessionTtl;
+        }
+
+        public String getSoapPartnerUri() {
+            return soapPartnerUri;
+        }
+
+        public String getStreamingUri() {
+            return streamingUri;
+        }
+
+        /**
+         * @return the probability that a Streaming API request is answered
+         *         with a 401, invalidating its session
+         */
+        public double getUnauthorizedRate() {
+            return unauthorizedRate;
+        }
+
+        /**
+         * @return true if responses are gzip compressed for clients that
+         *         accept it
+         */
+        public boolean isGzip() {
+            return gzip;
+        }
+
+        /**
+         * @return true if the Streaming API accepts WebSocket upgrades, as
+         *         well as long polling
+         */
+        public boolean isWebSocket() {
+            return webSocket;
+        }
+
+        public void setChannelPrefix(String channelPrefix) {
+            this.channelPrefix = channelPrefix;
+        }
+
+        public void setChannels(int channels) {
+            this.channels = channels;
+        }
+
+        public void setDropRate(double dropRate) {
+            this.dropRate = dropRate;
+        }
+
+        public void setEventsPerSecond(double eventsPerSecond) {
+            this.eventsPerSecond = eventsPerSecond;
+        }
+
+        public void setGzip(boolean gzip) {
+            this.gzip = gzip;
+        }
+
+        public void setLatency(long latency) {
+            this.latency = latency;
+        }
+
+        public void setLongPollTimeout(long longPollTimeout) {
+            this.longPollTimeout = longPollTimeout;
+        }
+
+        public void setMaxBatch(int maxBatch) {
+            this.maxBatch = maxBatch;
+        }
+
+        public void setMaxQueue(int maxQueue) {
+            this.maxQueue = maxQueue;
+        }
+
+        public void setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+        }
+
+        public void setPayloadSize(int payloadSize) {
+            this.payloadSize = payloadSize;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public void setRetained(int retained) {
+            this.retained = retained;
+        }
+
+        public void setSessionTtl(long sessionTtl) {
+            this.sessionTtl = sessionTtl;
+        }
+
+        public void setSoapPartnerUri(String soapPartnerUri) {
+            this.soapPartnerUri = soapPartnerUri;
+        }
+
+        public void setStreamingUri(String streamingUri) {
+            this.streamingUri = streamingUri;
+        }
+
+        public void setUnauthorizedRate(double unauthorizedRate) {
+            this.unauthorizedRate = unauthorizedRate;
+        }
+
+        public void setWebSocket(boolean webSocket) {
+            this.webSocket = webSocket;
+        }
+    }
+
+    /**
+     * A handshaken Bayeux client, and the events waiting for its next connect
+     */
+    private class Client {
+        private final String                                   id;
+        private volatile long                                  lastSeen = System.currentTimeMillis();
+        private final LinkedBlockingQueue<Map<String, Object>> queue    = new LinkedBlockingQueue<Map<String, Object>>(
+                                                                                                             settings.maxQueue);
+        private final Set<Filter>                              filters  = new CopyOnWriteArraySet<Filter>();
+
+        private Client(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Queue the event, dropping the oldest one if the queue is full
+         */
+        private void deliver(Map<String, Object> event) {
+            if (!queue.offer(event)) {
+                queue.poll();
+                queue.offer(event);
+            }
+        }
+
+        /**
+         * Wait for events, up to the timeout
+         */
+        private List<Map<String, Object>> poll(long timeout)
+                                                            throws InterruptedException {
+            lastSeen = System.currentTimeMillis();
+            List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+            Map<String, Object> first = timeout > 0 ? queue.poll(timeout,
+                                                                  TimeUnit.MILLISECONDS)
+                                                   : queue.poll();
+            if (first != null) {
+                events.add(first);
+                queue.drainTo(events, settings.maxBatch - 1);
+            }
+            lastSeen = System.currentTimeMillis();
+            return events;
+        }
+
+        private void release() {
+            for (Filter filter : filters) {
+                filter.topic.subscribers.remove(filter);
+            }
+            filters.clear();
+        }
+    }
+
+    /**
+     * A client's subscription of a topic, by a channel name that may carry the
+     * values events must have in the fields of their sobject
+     */
+    private static class Filter {
+        private final Client              client;
+        private final Map<String, String> fields = new LinkedHashMap<String, String>();
+        private final String              name;
+        private final Topic               topic;
+
+        private Filter(Client client, Topic topic, String name) {
+            this.client = client;
+            this.topic = topic;
+            this.name = name;
+            int query = name.indexOf('?');
+            if (query >= 0) {
+                for (String condition : name.substring(query + 1).split("&")) {
+                    int equals = condition.indexOf('=');
+                    if (equals > 0) {
+                        fields.put(condition.substring(0, equals),
+                                   condition.substring(equals + 1));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Filter)) {
+                return false;
+            }
+            Filter other = (Filter) object;
+            return client == other.client && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return client.hashCode() * 31 + name.hashCode();
+        }
+
+        /**
+         * Deliver the event to the client, on the subscribed name, if it
+         * passes the filter
+         */
+        @SuppressWarnings("unchecked")
+        private void deliver(Map<String, Object> event) {
+            if (fields.isEmpty()) {
+                client.deliver(event);
+                return;
+            }
+            Map<String, Object> data = (Map<String, Object>) event.get(Message.DATA_FIELD);
+            Map<String, Object> sobject = (Map<String, Object>) data.get("sobject");
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                if (!field.getValue().equals(String.valueOf(sobject.get(field.getKey())))) {
+                    return;
+                }
+            }
+            Map<String, Object> filtered = new LinkedHashMap<String, Object>(
+                                                                             event);
+            filtered.put(Message.CHANNEL_FIELD, name);
+            client.deliver(filtered);
+        }
+    }
+
+    /**
+     * A channel of synthetic events
+     */
+    private class Topic {
+        private double                           due;
+        private final String                     name;
+        private final AtomicLong                 replayId    = new AtomicLong();
+        private final Deque<Map<String, Object>> retained    = new ArrayDeque<Map<String, Object>>();
+        private final Set<Filter>                subscribers = new CopyOnWriteArraySet<Filter>();
+
+        private Topic(String name) {
+            this.name = name;
+        }
+
+        private void publish(String createdDate) {
+            Map<String, Object> sobject = new LinkedHashMap<String, Object>();
+            sobject.put("Name", padding);
+            Map<String, Object> event = new LinkedHashMap<String, Object>();
+            event.put("createdDate", createdDate);
+            event.put("type", "updated");
+            Map<String, Object> data = new LinkedHashMap<String, Object>();
+            data.put("event", event);
+            data.put("sobject", sobject);
+            Map<String, Object> message = new LinkedHashMap<String, Object>();
+            message.put(Message.CHANNEL_FIELD, name);
+            message.put(Message.DATA_FIELD, data);
+            synchronized (retained) {
+                long id = replayId.incrementAndGet();
+                event.put("replayId", id);
+                sobject.put("Id", String.format("001%012d", id % 1000));
+                retained.addLast(message);
+                if (retained.size() > settings.retained) {
+                    retained.removeFirst();
+                }
+                for (Filter filter : subscribers) {
+                    filter.deliver(message);
+                }
+            }
+        }
+
+        /**
+         * Subscribe the client by the name, first delivering the retained
+         * events after the replay id; -2 replays every retained event, and -1
+         * or null none
+         */
+        @SuppressWarnings("unchecked")
+        private void subscribe(Client client, String name, Long from) {
+            Filter filter = new Filter(client, this, name);
+            synchronized (retained) {
+                if (from != null && from != -1) {
+                    for (Map<String, Object> event : retained) {
+                        Map<String, Object> data = (Map<String, Object>) event.get(Message.DATA_FIELD);
+                        long id = (Long) ((Map<String, Object>) data.get("event")).get("replayId");
+                        if (from == -2 || id > from) {
+                            filter.deliver(event);
+                        }
+                    }
+                }
+                subscribers.add(filter);
+            }
+            client.filters.add(filter);
+        }
+
+        private void unsubscribe(Client client, String name) {
+            Filter filter = new Filter(client, this, name);
+            subscribers.remove(filter);
+            client.filters.remove(filter);
+        }
+    }
+
+    /**
+     * A Bayeux client's WebSocket. Each frame is processed on the server's
+     * thread pool, as a long polling request is, so that a held /meta/connect
+     * does not hold up the frames that follow it.
+     */
+    private class BayeuxWebSocket implements WebSocket.OnTextMessage {
+        private volatile Connection connection;
+        private final String        sid;
+
+        private BayeuxWebSocket(String sid) {
+            this.sid = sid;
+        }
+
+        @Override
+        public void onClose(int closeCode, String message) {
+        }
+
+        @Override
+        public void onMessage(final String data) {
+            server.getThreadPool().dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if (!delay()) {
+                        return;
+                    }
+                    if (random.nextDouble() < settings.dropRate) {
+                        connection.close();
+                        return;
+                    }
+                    if (!authorize(sid)) {
+                        connection.close(POLICY_VIOLATION,
+                                         "401::Authentication invalid");
+                        return;
+                    }
+                    try {
+                        @SuppressWarnings("unchecked")
+                        List<Map<String, Object>> messages = MAPPER.readValue(data,
+                                                                              List.class);
+                        connection.sendMessage(MAPPER.writeValueAsString(process(messages)));
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onOpen(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static final ThreadLocal<SimpleDateFormat> CREATED_DATE     = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+    private static final ObjectMapper                  MAPPER           = new ObjectMapper();
+    private static final int                           POLICY_VIOLATION = 1008;
+    private static final long                          TICK             = 10;
+    private static final Pattern                       USERNAME         = Pattern.compile("<urn:username>(.*?)</urn:username>");
+
+    public static void main(String[] argv) throws Exception {
+        Settings settings = argv.length == 1 ? Settings.fromYaml(new FileInputStream(
+                                                                                    argv[0]))
+                                            : new Settings();
+        LocalStreamingServer server = new LocalStreamingServer(settings);
+        server.start();
+        System.out.println("Local streaming server running, loginEndpoint: "
+                           + server.getLoginEndpoint());
+        server.server.join();
+    }
+
+    private final ConcurrentMap<String, Client> clients  = new ConcurrentHashMap<String, Client>();
+    private final String                        padding;
+    private final ScheduledExecutorService      publisher;
+    private final Random                        random   = new Random();
+    private final Server                        server;
+    private final ConcurrentMap<String, Long>   sessions = new ConcurrentHashMap<String, Long>();
+    private final Settings                      settings;
+    private final Map<String, Topic>            topics   = new LinkedHashMap<String, Topic>();
+
+    public LocalStreamingServer(Settings settings) {
+        this.settings = settings;
+        for (int i = 0; i < settings.channels; i++) {
+            String name = settings.channelPrefix + i;
+            topics.put(name, new Topic(name));
+        }
+        char[] pad = new char[settings.payloadSize];
+        Arrays.fill(pad, 'x');
+        padding = new String(pad);
+
+        server = new Server();
+        QueuedThreadPool threadPool = new QueuedThreadPool(settings.maxThreads);
+        threadPool.setName("Local streaming server");
+        threadPool.setDaemon(true);
+        server.setThreadPool(threadPool);
+        server.setSendDateHeader(true);
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(settings.port);
+        server.addConnector(connector);
+        WebSocketHandler webSockets = new WebSocketHandler() {
+            @Override
+            public WebSocket doWebSocketConnect(HttpServletRequest request,
+                                                String protocol) {
+                String sid = sessionId(request);
+                if (!LocalStreamingServer.this.settings.webSocket
+                    || !request.getRequestURI().startsWith(LocalStreamingServer.this.settings.streamingUri)
+                    || !authorize(sid)) {
+                    return null;
+                }
+                return new BayeuxWebSocket(sid);
+            }
+        };
+        AbstractHandler handler = new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest,
+                               HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                LocalStreamingServer.this.handle(target, baseRequest, request,
+                                                 response);
+            }
+        };
+        if (settings.gzip) {
+            GzipHandler gzip = new GzipHandler();
+            gzip.setHandler(handler);
+            webSockets.setHandler(gzip);
+        } else {
+            webSockets.setHandler(handler);
+        }
+        server.setHandler(webSockets);
+        publisher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                                                                                       "Local streaming publisher"));
+    }
+
+    /**
+     * @return the endpoint to configure as the client's loginEndpoint
+     */
+    public String getLoginEndpoint() {
+        return "http://localhost:" + getPort();
+    }
+
+    public int getPort() {
+        return server.getConnectors()[0].getLocalPort();
+    }
+
+    /**
+     * @return the names of the channels events are published on
+     */
+    public List<String> getTopics() {
+        return new ArrayList<String>(topics.keySet());
+    }
+
+    /**
+     * Publish one event on the channel now, in addition to the configured
+     * rate
+     */
+    public void publish(String channel) {
+        Topic topic = topics.get(channel);
+        if (topic == null) {
+            throw new IllegalArgumentException("Unknown channel: " + channel);
+        }
+        topic.publish(CREATED_DATE.get().format(new Date()));
+    }
+
+    public void start() throws Exception {
+        server.start();
+        publisher.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                String now = CREATED_DATE.get().format(new Date());
+                double perTick = settings.eventsPerSecond * TICK / 1000.0;
+                for (Topic topic : topics.values()) {
+                    topic.due += perTick;
+                    while (topic.due >= 1) {
+                        topic.due--;
+                        topic.publish(now);
+                    }
+                }
+                expireClients();
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() throws Exception {
+        publisher.shutdownNow();
+        server.stop();
+    }
+
+    private Map<String, Object> advice(String reconnect) {
+        Map<String, Object> advice = new LinkedHashMap<String, Object>();
+        advice.put(Message.RECONNECT_FIELD, reconnect);
+        advice.put(Message.INTERVAL_FIELD, 0);
+        advice.put(Message.TIMEOUT_FIELD, settings.longPollTimeout);
+        return advice;
+    }
+
+    /**
+     * @return true if the session id is valid, and not chosen to be
+     *         invalidated
+     */
+    private boolean authorize(String sid) {
+        if (!isValid(sid) || random.nextDouble() < settings.unauthorizedRate) {
+            if (sid != null) {
+                sessions.remove(sid);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void bayeux(HttpServletRequest request,
+                        HttpServletResponse response) throws IOException {
+        if (!authorize(sessionId(request))) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+                               "401::Authentication invalid");
+            return;
+        }
+        if (!"POST".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                               "Bayeux messages must be POSTed");
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> messages = MAPPER.readValue(request.getInputStream(),
+                                                              List.class);
+        response.setContentType("application/json;charset=UTF-8");
+        MAPPER.writeValue(response.getOutputStream(), process(messages));
+    }
+
+    private Client client(Map<String, Object> message) {
+        Object id = message.get(Message.CLIENT_ID_FIELD);
+        return id == null ? null : clients.get(id);
+    }
+
+    private List<Map<String, Object>> connect(Client client,
+                                              Map<String, Object> message) {
+        long timeout = settings.longPollTimeout;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> advice = (Map<String, Object>) message.get(Message.ADVICE_FIELD);
+        if (advice != null && advice.get(Message.TIMEOUT_FIELD) instanceof Number) {
+            timeout = Math.min(timeout,
+                               ((Number) advice.get(Message.TIMEOUT_FIELD)).longValue());
+        }
+        List<Map<String, Object>> replies;
+        try {
+            replies = client.poll(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            replies = new ArrayList<Map<String, Object>>();
+        }
+        Map<String, Object> reply = reply(message, true);
+        reply.put(Message.ADVICE_FIELD, advice("retry"));
+        replies.add(reply);
+        return replies;
+    }
+
+    /**
+     * Add the configured latency
+     * 
+     * @return false if interrupted
+     */
+    private boolean delay() {
+        if (settings.latency > 0) {
+            try {
+                Thread.sleep(settings.latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release the clients that have not polled for two long poll timeouts,
+     * whether or not events are still queued for them. Clients that were
+     * abandoned without a disconnect never drain their queue.
+     */
+    private void expireClients() {
+        long expired = System.currentTimeMillis() - 2
+                       * settings.longPollTimeout;
+        for (Client client : clients.values()) {
+            if (client.lastSeen < expired) {
+                clients.remove(client.id);
+                client.release();
+            }
+        }
+    }
+
+    private void handle(String target, Request baseRequest,
+                        HttpServletRequest request, HttpServletResponse response)
+                                                                                 throws IOException {
+        if (!delay()) {
+            return;
+        }
+        if (random.nextDouble() < settings.dropRate) {
+            baseRequest.getConnection().getEndPoint().close();
+            return;
+        }
+        if (target.startsWith(settings.soapPartnerUri)) {
+            login(request, response);
+        } else if (target.startsWith(settings.streamingUri)) {
+            bayeux(request, response);
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    private Map<String, Object> handshake(Map<String, Object> message) {
+        Client client = new Client(UUID.randomUUID().toString());
+        clients.put(client.id, client);
+        Map<String, Object> reply = reply(message, true);
+        reply.put(Message.CLIENT_ID_FIELD, client.id);
+        reply.put(Message.VERSION_FIELD, "1.0");
+        reply.put(Message.SUPPORTED_CONNECTION_TYPES_FIELD,
+                  settings.webSocket ? Arrays.asList("websocket",
+                                                     "long-polling")
+                                    : Collections.singletonList("long-polling"));
+        reply.put(Message.ADVICE_FIELD, advice("retry"));
+        reply.put(Message.EXT_FIELD,
+                  Collections.singletonMap("replay", Boolean.TRUE));
+        return reply;
+    }
+
+    private boolean isValid(String sid) {
+        Long expires = sid == null ? null : sessions.get(sid);
+        return expires != null
+               && (expires == 0 || expires > System.currentTimeMillis());
+    }
+
+    private void login(HttpServletRequest request, HttpServletResponse response)
+                                                                                throws IOException {
+        StringBuilder body = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        InputStream in = request.getInputStream();
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            body.append(new String(buffer, 0, read, "UTF-8"));
+        }
+        Matcher username = USERNAME.matcher(body);
+        if (!username.find()) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                               "INVALID_LOGIN");
+            return;
+        }
+        String sid = "00D000000000001!" + UUID.randomUUID();
+        sessions.put(sid, settings.sessionTtl == 0 ? 0
+                                                  : System.currentTimeMillis()
+                                                    + settings.sessionTtl);
+        String base = request.getScheme() + "://" + request.getServerName()
+                      + ":" + request.getServerPort();
+        response.setContentType("text/xml;charset=UTF-8");
+        response.getOutputStream().write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                                          + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns=\"urn:partner.soap.sforce.com\">"
+                                          + "<soapenv:Body><loginResponse><result>"
+                                          + "<metadataServerUrl>"
+                                          + base
+                                          + "/services/Soap/m/22.0/00D000000000001</metadataServerUrl>"
+                                          + "<passwordExpired>false</passwordExpired><sandbox>false</sandbox>"
+                                          + "<serverUrl>"
+                                          + base
+                                          + settings.soapPartnerUri
+                                          + "00D000000000001</serverUrl>"
+                                          + "<sessionId>"
+                                          + sid
+                                          + "</sessionId><userId>005000000000001</userId>"
+                                          + "</result></loginResponse></soapenv:Body></soapenv:Envelope>").getBytes("UTF-8"));
+    }
+
+    /**
+     * @return the replies to the messages, followed by the events delivered
+     *         to a /meta/connect among them
+     */
+    private List<Map<String, Object>> process(List<Map<String, Object>> messages) {
+        List<Map<String, Object>> replies = new ArrayList<Map<String, Object>>();
+        Map<String, Object> connect = null;
+        for (Map<String, Object> message : messages) {
+            String channel = (String) message.get(Message.CHANNEL_FIELD);
+            Client client = client(message);
+            if (Channel.META_HANDSHAKE.equals(channel)) {
+                replies.add(handshake(message));
+            } else if (client == null) {
+                Map<String, Object> reply = reply(message, false);
+                reply.put(Message.ERROR_FIELD, "403::Unknown client");
+                reply.put(Message.ADVICE_FIELD, advice("handshake"));
+                replies.add(reply);
+            } else if (Channel.META_CONNECT.equals(channel)) {
+                connect = message;
+            } else if (Channel.META_SUBSCRIBE.equals(channel)) {
+                replies.add(subscribe(client, message));
+            } else if (Channel.META_UNSUBSCRIBE.equals(channel)) {
+                String name = (String) message.get(Message.SUBSCRIPTION_FIELD);
+                Topic topic = topic(name);
+                if (topic != null) {
+                    topic.unsubscribe(client, name);
+                }
+                Map<String, Object> reply = reply(message, true);
+                reply.put(Message.SUBSCRIPTION_FIELD,
+                          message.get(Message.SUBSCRIPTION_FIELD));
+                replies.add(reply);
+            } else if (Channel.META_DISCONNECT.equals(channel)) {
+                clients.remove(client.id);
+                client.release();
+                replies.add(reply(message, true));
+            } else {
+                replies.add(reply(message, true));
+            }
+        }
+        if (connect != null) {
+            Client client = client(connect);
+            if (client != null) {
+                replies.addAll(connect(client, connect));
+            }
+        }
+        return replies;
+    }
+
+    private Map<String, Object> reply(Map<String, Object> message,
+                                      boolean successful) {
+        Map<String, Object> reply = new LinkedHashMap<String, Object>();
+        reply.put(Message.CHANNEL_FIELD, message.get(Message.CHANNEL_FIELD));
+        if (message.get(Message.ID_FIELD) != null) {
+            reply.put(Message.ID_FIELD, message.get(Message.ID_FIELD));
+        }
+        if (message.get(Message.CLIENT_ID_FIELD) != null) {
+            reply.put(Message.CLIENT_ID_FIELD,
+                      message.get(Message.CLIENT_ID_FIELD));
+        }
+        reply.put(Message.SUCCESSFUL_FIELD, successful);
+        return reply;
+    }
+
+    private String sessionId(HttpServletRequest request) {
+        String authorization = request.getHeader("Authorization");
+        return authorization != null && authorization.startsWith("OAuth ") ? authorization.substring(6)
+                                                                          : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> subscribe(Client client,
+                                          Map<String, Object> message) {
+        String channel = (String) message.get(Message.SUBSCRIPTION_FIELD);
+        Topic topic = topic(channel);
+        Map<String, Object> reply = reply(message, topic != null);
+        reply.put(Message.SUBSCRIPTION_FIELD, channel);
+        if (topic == null) {
+            reply.put(Message.ERROR_FIELD,
+                      "400::The channel you requested to subscribe to does not exist {"
+                              + channel + "}");
+            return reply;
+        }
+        Long from = null;
+        Map<String, Object> ext = (Map<String, Object>) message.get(Message.EXT_FIELD);
+        if (ext != null && ext.get("replay") instanceof Map) {
+            Object replayId = ((Map<String, Object>) ext.get("replay")).get(channel);
+            if (replayId instanceof Number) {
+                from = ((Number) replayId).longValue();
+            }
+        }
+        topic.subscribe(client, channel, from);
+        return reply;
+    }
+
+    /**
+     * @return the topic of the channel name, ignoring any filter, or null
+     */
+    private Topic topic(String name) {
+        if (name == null) {
+            return null;
+        }
+        int query = name.indexOf('?');
+        return topics.get(query < 0 ? name : name.substring(0, query));
+    }
+}
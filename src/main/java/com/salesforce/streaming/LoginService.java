@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jetty.client.HttpClient;
+
+/**
+ * Logs sessions in through {@link SoapLoginUtil}, shared by every session of
+ * the process. Session ids and server urls are cached per username and login
+ * endpoint until their time to live elapses, or the session expires on the
+ * server if that is sooner, or until a session reports the id as invalid. Concurrent logins for the same credentials collapse into a
+ * single SOAP call.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class LoginService {
+    private static class Session {
+        private final long     expires;
+        private final String[] pair;
+
+        private Session(String[] pair, long expires) {
+            this.pair = pair;
+            this.expires = expires;
+        }
+    }
+
+    private static String key(Configuration configuration) {
+        return configuration.getUsername() + " "
+               + configuration.getLoginEndpoint()
+               + configuration.getSoapPartnerUri();
+    }
+
+    private final ConcurrentMap<String, Session>                  cache    = new ConcurrentHashMap<String, Session>();
+    private final HttpClient                                      httpClient;
+    private final ConcurrentMap<String, SettableFuture<String[]>> inFlight = new ConcurrentHashMap<String, SettableFuture<String[]>>();
+    private final long                                            ttl;
+
+    /**
+     * @param httpClient
+     *            - the client used for the SOAP login calls
+     * @param ttl
+     *            - how long a session id is reused, in milliseconds
+     */
+    public LoginService(HttpClient httpClient, long ttl) {
+        this.httpClient = httpClient;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the time the cached session id of the configuration's user
+     *         expires, in milliseconds since the epoch, or 0 if the session id
+     *         is not cached
+     */
+    public long getExpiry(Configuration configuration, String sessionId) {
+        Session cached = cache.get(key(configuration));
+        return cached != null && cached.pair[0].equals(sessionId) ? cached.expires
+                                                                 : 0;
+    }
+
+    /**
+     * Discard the cached session of the configuration, if it is still the
+     * given session id. A newer session, logged in after the invalid one was
+     * handed out, is kept.
+     */
+    public void invalidate(Configuration configuration, String sessionId) {
+        String key = key(configuration);
+        Session cached = cache.get(key);
+        if (cached != null && cached.pair[0].equals(sessionId)) {
+            cache.remove(key, cached);
+        }
+    }
+
+    /**
+     * @return the session id and server endpoint of the configuration's user,
+     *         or null if the login failed
+     */
+    public String[] login(Configuration configuration) throws Exception {
+        String key = key(configuration);
+        String[] pair = cached(key);
+        if (pair != null) {
+            return pair;
+        }
+        SettableFuture<String[]> call = new SettableFuture<String[]>();
+        SettableFuture<String[]> pending = inFlight.putIfAbsent(key, call);
+        if (pending != null) {
+            try {
+                return pending.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            pair = cached(key);
+            if (pair == null) {
+                pair = SoapLoginUtil.login(configuration, httpClient);
+                if (pair != null) {
+                    cache.put(key,
+                              new Session(pair, System.currentTimeMillis()
+                                                + ttl(pair)));
+                }
+            }
+            call.set(pair);
+            return pair;
+        } catch (Exception e) {
+            call.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    /**
+     * @return how long the session id is reused: the configured time to live,
+     *         unless the server says the session is valid for less
+     */
+    long ttl(String[] pair) {
+        if (pair.length < 3 || pair[2] == null) {
+            return ttl;
+        }
+        long secondsValid = Long.parseLong(pair[2]);
+        return secondsValid >= ttl / 1000 ? ttl : secondsValid * 1000;
+    }
+
+    private String[] cached(String key) {
+        Session cached = cache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expires <= System.currentTimeMillis()) {
+            cache.remove(key, cached);
+            return null;
+        }
+        return cached.pair;
+    }
+}
@@ -0,0 +1,555 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The registry of the client's metrics: exchange latencies and outcomes per
+ * HTTP endpoint, message counts per channel, and meta exchange outcomes per
+ * session. Every metric is updated without locks.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public final class Metrics {
+
+    /**
+     * Metrics of the messages delivered on a channel. Times are in
+     * nanoseconds.
+     */
+    public static class ChannelMetrics {
+        private final AtomicLong dropped    = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong filtered   = new AtomicLong();
+        private final Histogram  handoff    = new Histogram();
+        private final AtomicLong late       = new AtomicLong();
+        private final Histogram  latency    = new Histogram();
+        private final AtomicLong messages   = new AtomicLong();
+        private final AtomicLong missing    = new AtomicLong();
+        private final AtomicLong outOfOrder = new AtomicLong();
+        private final AtomicLong queued     = new AtomicLong();
+        private final AtomicLong spilled    = new AtomicLong();
+
+        /**
+         * @return the fraction of the events expected so far that were
+         *         received, counting each event once
+         */
+        public double getCompleteness() {
+            long received = messages.get() - duplicates.get();
+            long expected = received + missing.get();
+            return expected <= 0 ? 1.0 : (double) received / expected;
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getDuplicates() {
+            return duplicates.get();
+        }
+
+        /**
+         * @return the number of messages discarded by the client side filter
+         *         of their subscription
+         */
+        public long getFiltered() {
+            return filtered.get();
+        }
+
+        /**
+         * @return the time messages waited in the dispatch queue
+         */
+        public Histogram getHandoff() {
+            return handoff;
+        }
+
+        /**
+         * @return the number of events too old to be validated
+         */
+        public long getLate() {
+            return late.get();
+        }
+
+        /**
+         * @return the time from the creation of events on the server to
+         *         their receipt, corrected for the server's clock offset
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getMessages() {
+            return messages.get();
+        }
+
+        /**
+         * @return the number of skipped replay ids that have not arrived
+         *         since
+         */
+        public long getMissing() {
+            return missing.get();
+        }
+
+        public long getOutOfOrder() {
+            return outOfOrder.get();
+        }
+
+        /**
+         * @return the number of messages waiting to be handled
+         */
+        public long getQueueDepth() {
+            return queued.get();
+        }
+
+        public long getSpilled() {
+            return spilled.get();
+        }
+
+        public void onDequeued(long waited) {
+            queued.decrementAndGet();
+            handoff.record(waited);
+        }
+
+        public void onDropped() {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+
+        public void onDuplicate() {
+            duplicates.incrementAndGet();
+        }
+
+        public void onFiltered() {
+            filtered.incrementAndGet();
+        }
+
+        public void onLate() {
+            late.incrementAndGet();
+        }
+
+        public void onLatency(long nanos) {
+            latency.record(nanos);
+        }
+
+        public void onMessage() {
+            messages.incrementAndGet();
+        }
+
+        /**
+         * Missing events are only counted for channels whose replay ids are
+         * known to be consecutive
+         * 
+         * @param events
+         *            - the number of events newly missing, negative when
+         *            missing events arrive
+         */
+        public void onMissing(long events) {
+            missing.addAndGet(events);
+        }
+
+        public void onOutOfOrder() {
+            outOfOrder.incrementAndGet();
+        }
+
+        public void onQueued() {
+            queued.incrementAndGet();
+        }
+
+        public void onSpilled() {
+            spilled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Metrics of the exchanges with an HTTP endpoint. Times are in nanoseconds.
+     */
+    public static class EndpointMetrics {
+        private final AtomicLong contentBytes    = new AtomicLong();
+        private final AtomicLong exceptions      = new AtomicLong();
+        private final AtomicLong exchanges       = new AtomicLong();
+        private final Histogram  exchangeTime    = new Histogram();
+        private final AtomicLong expires         = new AtomicLong();
+        private final AtomicLong failures        = new AtomicLong();
+        private final AtomicLong retries         = new AtomicLong();
+        private final Histogram  timeToFirstByte = new Histogram();
+        private final AtomicLong wireBytes       = new AtomicLong();
+
+        /**
+         * @return the bytes of response content, once decoded
+         */
+        public long getContentBytes() {
+            return contentBytes.get();
+        }
+
+        public long getExceptions() {
+            return exceptions.get();
+        }
+
+        public long getExchanges() {
+            return exchanges.get();
+        }
+
+        public Histogram getExchangeTime() {
+            return exchangeTime;
+        }
+
+        public long getExpires() {
+            return expires.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        public Histogram getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+
+        /**
+         * @return the bytes of response content as received, compressed or
+         *         not
+         */
+        public long getWireBytes() {
+            return wireBytes.get();
+        }
+
+        public void onComplete(long nanos) {
+            exchanges.incrementAndGet();
+            exchangeTime.record(nanos);
+        }
+
+        public void onConnectionFailed() {
+            failures.incrementAndGet();
+        }
+
+        public void onContent(long wire, long content) {
+            wireBytes.addAndGet(wire);
+            contentBytes.addAndGet(content);
+        }
+
+        public void onException() {
+            exceptions.incrementAndGet();
+        }
+
+        public void onExpire() {
+            expires.incrementAndGet();
+        }
+
+        public void onFirstByte(long nanos) {
+            timeToFirstByte.record(nanos);
+        }
+
+        public void onRetry() {
+            retries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Metrics of one of the lanes a channel's messages are partitioned
+     * across. Times are in nanoseconds.
+     */
+    public static class LaneMetrics {
+        private final String     channel;
+        private final AtomicLong handled = new AtomicLong();
+        private final int        lane;
+        private final Histogram  lag     = new Histogram();
+        private final AtomicLong queued  = new AtomicLong();
+
+        private LaneMetrics(String channel, int lane) {
+            this.channel = channel;
+            this.lane = lane;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public long getHandled() {
+            return handled.get();
+        }
+
+        /**
+         * @return the time from the partitioning of messages to the end of
+         *         their handling
+         */
+        public Histogram getLag() {
+            return lag;
+        }
+
+        /**
+         * @return the index of the lane
+         */
+        public int getLane() {
+            return lane;
+        }
+
+        /**
+         * @return the number of messages waiting in the lane
+         */
+        public long getQueueDepth() {
+            return queued.get();
+        }
+
+        public void onDequeued() {
+            queued.decrementAndGet();
+        }
+
+        public void onHandled(long lag) {
+            handled.incrementAndGet();
+            this.lag.record(lag);
+        }
+
+        public void onQueued() {
+            queued.incrementAndGet();
+        }
+    }
+
+    /**
+     * Outcomes of the meta exchanges of a session, its recoveries, and the
+     * timeouts it derived from the server's advice and the round trips it
+     * observed. Times are in milliseconds, except for the round trips, which
+     * are in nanoseconds.
+     */
+    public static class SessionMetrics {
+        private volatile long    advisedInterval   = -1;
+        private volatile long    advisedTimeout    = -1;
+        private final AtomicLong connectFailures   = new AtomicLong();
+        private final AtomicLong connects          = new AtomicLong();
+        private final AtomicLong expirations       = new AtomicLong();
+        private final AtomicLong handshakeFailures = new AtomicLong();
+        private final AtomicLong handshakes        = new AtomicLong();
+        private volatile long    networkDelay      = -1;
+        private final AtomicLong recoveries        = new AtomicLong();
+        private final Histogram  roundTrip         = new Histogram();
+        private final AtomicLong subscribeFailures = new AtomicLong();
+        private final AtomicLong subscribes        = new AtomicLong();
+
+        /**
+         * @return the interval the server advised between connects, or -1
+         *         until advised
+         */
+        public long getAdvisedInterval() {
+            return advisedInterval;
+        }
+
+        /**
+         * @return the time the server advised it holds a connect, or -1
+         *         until advised
+         */
+        public long getAdvisedTimeout() {
+            return advisedTimeout;
+        }
+
+        public long getConnectFailures() {
+            return connectFailures.get();
+        }
+
+        public long getConnects() {
+            return connects.get();
+        }
+
+        /**
+         * @return the number of meta exchanges that expired before the
+         *         server replied
+         */
+        public long getExpirations() {
+            return expirations.get();
+        }
+
+        public long getHandshakeFailures() {
+            return handshakeFailures.get();
+        }
+
+        public long getHandshakes() {
+            return handshakes.get();
+        }
+
+        /**
+         * @return the delay allowed for the network, on top of the advised
+         *         timeout, before a meta exchange expires, or -1 if not
+         *         adapted
+         */
+        public long getNetworkDelay() {
+            return networkDelay;
+        }
+
+        /**
+         * @return the number of times the session replaced its client
+         */
+        public long getRecoveries() {
+            return recoveries.get();
+        }
+
+        /**
+         * @return the round trips of the meta exchanges, less the time the
+         *         server held them
+         */
+        public Histogram getRoundTrip() {
+            return roundTrip;
+        }
+
+        public long getSubscribeFailures() {
+            return subscribeFailures.get();
+        }
+
+        public long getSubscribes() {
+            return subscribes.get();
+        }
+
+        public void onConnect(boolean successful) {
+            (successful ? connects : connectFailures).incrementAndGet();
+        }
+
+        public void onExpire() {
+            expirations.incrementAndGet();
+        }
+
+        public void onHandshake(boolean successful) {
+            (successful ? handshakes : handshakeFailures).incrementAndGet();
+        }
+
+        public void onRecovery() {
+            recoveries.incrementAndGet();
+        }
+
+        public void onRoundTrip(long nanos) {
+            roundTrip.record(nanos);
+        }
+
+        public void onSubscribe(boolean successful) {
+            (successful ? subscribes : subscribeFailures).incrementAndGet();
+        }
+
+        public void onTimeouts(long advisedTimeout, long advisedInterval,
+                               long networkDelay) {
+            this.advisedTimeout = advisedTimeout;
+            this.advisedInterval = advisedInterval;
+            this.networkDelay = networkDelay;
+        }
+    }
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    private final ConcurrentMap<String, ChannelMetrics>  channels  = new ConcurrentHashMap<String, ChannelMetrics>();
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+    private final ConcurrentMap<String, LaneMetrics>     lanes     = new ConcurrentHashMap<String, LaneMetrics>();
+    private final ConcurrentMap<String, SessionMetrics>  sessions  = new ConcurrentHashMap<String, SessionMetrics>();
+
+    public ChannelMetrics channel(String channel) {
+        ChannelMetrics metrics = channels.get(channel);
+        if (metrics == null) {
+            metrics = new ChannelMetrics();
+            ChannelMetrics existing = channels.putIfAbsent(channel, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @param endpoint
+     *            - the path of the endpoint, without query
+     */
+    public EndpointMetrics endpoint(String endpoint) {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics == null) {
+            metrics = new EndpointMetrics();
+            EndpointMetrics existing = endpoints.putIfAbsent(endpoint, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    public Map<String, ChannelMetrics> getChannels() {
+        return channels;
+    }
+
+    public Map<String, EndpointMetrics> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the metrics of the lanes, by channel and lane index
+     */
+    public Map<String, LaneMetrics> getLanes() {
+        return lanes;
+    }
+
+    public Map<String, SessionMetrics> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @param channel
+     *            - the channel whose messages are partitioned
+     * @param lane
+     *            - the index of the lane
+     */
+    public LaneMetrics lane(String channel, int lane) {
+        String key = channel + "#" + lane;
+        LaneMetrics metrics = lanes.get(key);
+        if (metrics == null) {
+            metrics = new LaneMetrics(channel, lane);
+            LaneMetrics existing = lanes.putIfAbsent(key, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @param username
+     *            - the user of the session
+     */
+    public SessionMetrics session(String username) {
+        SessionMetrics metrics = sessions.get(username);
+        if (metrics == null) {
+            metrics = new SessionMetrics();
+            SessionMetrics existing = sessions.putIfAbsent(username, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.salesforce.streaming.EventLog.Level;
+import com.salesforce.streaming.Metrics.ChannelMetrics;
+import com.salesforce.streaming.Metrics.EndpointMetrics;
+import com.salesforce.streaming.Metrics.LaneMetrics;
+import com.salesforce.streaming.Metrics.SessionMetrics;
+
+/**
+ * Periodically exports a snapshot of the {@link Metrics}. Each snapshot is a
+ * single line JSON document, appended to the metrics file when one is
+ * configured, and otherwise written to the event log. Latencies are reported
+ * in milliseconds.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class MetricsReporter {
+    private static final double            NANOS_PER_MILLI = 1000.0 * 1000.0;
+
+    private final OutputStream             file;
+    private final ObjectMapper             mapper          = new ObjectMapper();
+    private final Metrics                  metrics;
+    private final Map<String, Long>        previousCounts  = new HashMap<String, Long>();
+    private long                           previousTime    = System.nanoTime();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param metrics
+     *            - the metrics to report
+     * @param metricsFile
+     *            - the file to append snapshots to, or null to write them to
+     *            the event log
+     */
+    public MetricsReporter(Metrics metrics, String metricsFile)
+                                                               throws IOException {
+        this.metrics = metrics;
+        file = metricsFile == null ? null : new FileOutputStream(metricsFile,
+                                                                 true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                                                                                       "Metrics reporter"));
+    }
+
+    public void start(long interval, TimeUnit unit) {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report();
+                } catch (Throwable e) {
+                    EventLog.getDefault().log(Level.ERROR, e,
+                                              "Unable to report metrics: %s",
+                                              e);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Export a snapshot of the current metrics
+     */
+    public synchronized void report() throws IOException {
+        String json = mapper.writeValueAsString(snapshot());
+        if (file == null) {
+            EventLog.getDefault().log(Level.INFO, "Metrics: %s", json);
+        } else {
+            file.write(json.getBytes("UTF-8"));
+            file.write('\n');
+            file.flush();
+        }
+    }
+
+    /**
+     * @return the current metrics, with message rates computed over the time
+     *         since the previous snapshot
+     */
+    public synchronized Map<String, Object> snapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - previousTime) / 1.0E9;
+        previousTime = now;
+
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("clockOffsets",
+                     DeliveryLatency.getDefault().getClockOffsets());
+
+        Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, EndpointMetrics> entry : metrics.getEndpoints().entrySet()) {
+            EndpointMetrics endpoint = entry.getValue();
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("exchanges", endpoint.getExchanges());
+            values.put("retries", endpoint.getRetries());
+            values.put("expires", endpoint.getExpires());
+            values.put("failures", endpoint.getFailures());
+            values.put("exceptions", endpoint.getExceptions());
+            values.put("wireBytes", endpoint.getWireBytes());
+            values.put("contentBytes", endpoint.getContentBytes());
+            values.put("compressionRatio",
+                       endpoint.getWireBytes() == 0 ? 1.0
+                                                   : (double) endpoint.getContentBytes()
+                                                     / endpoint.getWireBytes());
+            values.put("timeToFirstByte",
+                       latencies(endpoint.getTimeToFirstByte().snapshot()));
+            values.put("exchangeTime",
+                       latencies(endpoint.getExchangeTime().snapshot()));
+            endpoints.put(entry.getKey(), values);
+        }
+        snapshot.put("endpoints", endpoints);
+
+        Map<String, Object> sessions = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, SessionMetrics> entry : metrics.getSessions().entrySet()) {
+            SessionMetrics session = entry.getValue();
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("handshakes", session.getHandshakes());
+            values.put("handshakeFailures", session.getHandshakeFailures());
+            values.put("connects", session.getConnects());
+            values.put("connectFailures", session.getConnectFailures());
+            values.put("subscribes", session.getSubscribes());
+            values.put("subscribeFailures", session.getSubscribeFailures());
+            values.put("recoveries", session.getRecoveries());
+            values.put("expirations", session.getExpirations());
+            values.put("advisedTimeout", session.getAdvisedTimeout());
+            values.put("advisedInterval", session.getAdvisedInterval());
+            values.put("networkDelay", session.getNetworkDelay());
+            values.put("roundTrip", latencies(session.getRoundTrip().snapshot()));
+            sessions.put(entry.getKey(), values);
+        }
+        snapshot.put("sessions", sessions);
+
+        Map<String, Object> channels = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, ChannelMetrics> entry : metrics.getChannels().entrySet()) {
+            ChannelMetrics channel = entry.getValue();
+            long messages = channel.getMessages();
+            Long previous = previousCounts.put(entry.getKey(), messages);
+            long delta = messages - (previous == null ? 0 : previous);
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("messages", messages);
+            values.put("messagesPerSecond", delta / seconds);
+            values.putAll(channel(channel));
+            channels.put(entry.getKey(), values);
+        }
+        snapshot.put("channels", channels);
+
+        Map<String, Object> lanes = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, LaneMetrics> entry : metrics.getLanes().entrySet()) {
+            LaneMetrics lane = entry.getValue();
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            values.put("handled", lane.getHandled());
+            values.put("queueDepth", lane.getQueueDepth());
+            values.put("lag", latencies(lane.getLag().snapshot()));
+            lanes.put(entry.getKey(), values);
+        }
+        snapshot.put("lanes", lanes);
+        return snapshot;
+    }
+
+    /**
+     * @return the counts and latencies of the channel
+     */
+    static Map<String, Object> channel(ChannelMetrics channel) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("messages", channel.getMessages());
+        values.put("filtered", channel.getFiltered());
+        values.put("queueDepth", channel.getQueueDepth());
+        values.put("dropped", channel.getDropped());
+        values.put("spilled", channel.getSpilled());
+        values.put("duplicates", channel.getDuplicates());
+        values.put("outOfOrder", channel.getOutOfOrder());
+        values.put("missing", channel.getMissing());
+        values.put("late", channel.getLate());
+        values.put("completeness", channel.getCompleteness());
+        values.put("handoff", latencies(channel.getHandoff().snapshot()));
+        values.put("latency", latencies(channel.getLatency().snapshot()));
+        return values;
+    }
+
+    static Map<String, Object> latencies(Histogram.Snapshot histogram) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("count", histogram.getCount());
+        values.put("p50", histogram.getValueAtPercentile(50) / NANOS_PER_MILLI);
+        values.put("p90", histogram.getValueAtPercentile(90) / NANOS_PER_MILLI);
+        values.put("p99", histogram.getValueAtPercentile(99) / NANOS_PER_MILLI);
+        values.put("p999",
+                   histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI);
+        values.put("max", histogram.getMax() / NANOS_PER_MILLI);
+        return values;
+    }
+}
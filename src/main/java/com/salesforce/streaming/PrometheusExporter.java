@@ -0,0 +1,480 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.Map;
+
+import com.salesforce.streaming.Debugger.State;
+import com.salesforce.streaming.Metrics.ChannelMetrics;
+import com.salesforce.streaming.Metrics.EndpointMetrics;
+import com.salesforce.streaming.Metrics.LaneMetrics;
+import com.salesforce.streaming.Metrics.SessionMetrics;
+
+/**
+ * Renders the {@link Metrics} of an engine, the state of its sessions, and
+ * the heap, garbage collection and thread gauges of the JVM in the
+ * Prometheus text exposition format. Every value is read from the lock free
+ * counters and histograms the delivery path updates, so a scrape never
+ * holds up streaming. Times are in seconds.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class PrometheusExporter {
+    private static final double   NANOS_PER_SECOND = 1.0E9;
+    private static final double[] QUANTILES        = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final StreamingEngine engine;
+    private final Metrics         metrics;
+
+    /**
+     * @param engine
+     *            - the engine whose sessions are reported
+     * @param metrics
+     *            - the metrics to report
+     */
+    public PrometheusExporter(StreamingEngine engine, Metrics metrics) {
+        this.engine = engine;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the current metrics, in the text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        sessions(out);
+        endpoints(out);
+        channels(out);
+        lanes(out);
+        header(out, "streaming_clock_offset_seconds",
+               "Estimated offset of each server's clock from the local clock",
+               "gauge");
+        for (Map.Entry<String, Long> entry : DeliveryLatency.getDefault().getClockOffsets().entrySet()) {
+            sample(out, "streaming_clock_offset_seconds", "server",
+                   entry.getKey(), entry.getValue() / 1000.0);
+        }
+        jvm(out);
+        return out.toString();
+    }
+
+    private void channels(StringBuilder out) {
+        Map<String, ChannelMetrics> channels = metrics.getChannels();
+        counter(out, "streaming_channel_messages_total",
+                "Messages handled per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_messages_total", "channel",
+                   entry.getKey(), entry.getValue().getMessages());
+        }
+        counter(out, "streaming_channel_filtered_total",
+                "Messages discarded by the client side filter per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_filtered_total", "channel",
+                   entry.getKey(), entry.getValue().getFiltered());
+        }
+        counter(out, "streaming_channel_dropped_total",
+                "Messages dropped from a full dispatch queue per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_dropped_total", "channel",
+                   entry.getKey(), entry.getValue().getDropped());
+        }
+        counter(out, "streaming_channel_duplicates_total",
+                "Duplicate events per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_duplicates_total", "channel",
+                   entry.getKey(), entry.getValue().getDuplicates());
+        }
+        counter(out, "streaming_channel_out_of_order_total",
+                "Out of order events per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_out_of_order_total", "channel",
+                   entry.getKey(), entry.getValue().getOutOfOrder());
+        }
+        counter(out, "streaming_channel_spilled_total",
+                "Messages spilled to disk from a full dispatch queue per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_spilled_total", "channel",
+                   entry.getKey(), entry.getValue().getSpilled());
+        }
+        counter(out, "streaming_channel_late_total",
+                "Events too old to be validated per channel");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_late_total", "channel",
+                   entry.getKey(), entry.getValue().getLate());
+        }
+        header(out, "streaming_channel_missing",
+               "Skipped replay ids that have not arrived per channel, when replay ids are contiguous",
+               "gauge");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_missing", "channel",
+                   entry.getKey(), entry.getValue().getMissing());
+        }
+        header(out, "streaming_channel_queue_depth",
+               "Messages waiting to be handled per channel", "gauge");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_queue_depth", "channel",
+                   entry.getKey(), entry.getValue().getQueueDepth());
+        }
+        header(out, "streaming_channel_completeness",
+               "Fraction of the expected events received per channel", "gauge");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            sample(out, "streaming_channel_completeness", "channel",
+                   entry.getKey(), entry.getValue().getCompleteness());
+        }
+        header(out, "streaming_channel_latency_seconds",
+               "Time from the creation of events to their receipt per channel",
+               "summary");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            summary(out, "streaming_channel_latency_seconds", "channel",
+                    entry.getKey(), entry.getValue().getLatency().snapshot());
+        }
+        header(out, "streaming_channel_handoff_seconds",
+               "Time messages waited in the dispatch queue per channel",
+               "summary");
+        for (Map.Entry<String, ChannelMetrics> entry : channels.entrySet()) {
+            summary(out, "streaming_channel_handoff_seconds", "channel",
+                    entry.getKey(), entry.getValue().getHandoff().snapshot());
+        }
+    }
+
+    private void counter(StringBuilder out, String name, String help) {
+        header(out, name, help, "counter");
+    }
+
+    private void endpoints(StringBuilder out) {
+        Map<String, EndpointMetrics> endpoints = metrics.getEndpoints();
+        header(out, "streaming_exchange_seconds",
+               "Round trip time of the exchanges per endpoint", "summary");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            summary(out, "streaming_exchange_seconds", "endpoint",
+                    entry.getKey(), entry.getValue().getExchangeTime().snapshot());
+        }
+        header(out, "streaming_time_to_first_byte_seconds",
+               "Time to the first byte of the responses per endpoint",
+               "summary");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            summary(out, "streaming_time_to_first_byte_seconds", "endpoint",
+                    entry.getKey(),
+                    entry.getValue().getTimeToFirstByte().snapshot());
+        }
+        counter(out, "streaming_exchange_failures_total",
+                "Failed connections per endpoint");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            sample(out, "streaming_exchange_failures_total", "endpoint",
+                   entry.getKey(), entry.getValue().getFailures());
+        }
+        counter(out, "streaming_exchange_expires_total",
+                "Expired exchanges per endpoint");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            sample(out, "streaming_exchange_expires_total", "endpoint",
+                   entry.getKey(), entry.getValue().getExpires());
+        }
+        counter(out, "streaming_exchange_exceptions_total",
+                "Exchanges that failed with an exception per endpoint");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            sample(out, "streaming_exchange_exceptions_total", "endpoint",
+                   entry.getKey(), entry.getValue().getExceptions());
+        }
+        counter(out, "streaming_exchange_wire_bytes_total",
+                "Bytes of response content received per endpoint");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            sample(out, "streaming_exchange_wire_bytes_total", "endpoint",
+                   entry.getKey(), entry.getValue().getWireBytes());
+        }
+        counter(out, "streaming_exchange_content_bytes_total",
+                "Bytes of response content, once decoded, per endpoint");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            sample(out, "streaming_exchange_content_bytes_total", "endpoint",
+                   entry.getKey(), entry.getValue().getContentBytes());
+        }
+        counter(out, "streaming_exchange_retries_total",
+                "Retried exchanges per endpoint");
+        for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+            sample(out, "streaming_exchange_retries_total", "endpoint",
+                   entry.getKey(), entry.getValue().getRetries());
+        }
+    }
+
+    private void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private void header(StringBuilder out, String name, String help,
+                        String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void jvm(StringBuilder out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        header(out, "jvm_memory_heap_used_bytes", "Used heap", "gauge");
+        sample(out, "jvm_memory_heap_used_bytes", null, null, heap.getUsed());
+        header(out, "jvm_memory_heap_committed_bytes", "Committed heap",
+               "gauge");
+        sample(out, "jvm_memory_heap_committed_bytes", null, null,
+               heap.getCommitted());
+        header(out, "jvm_memory_heap_max_bytes", "Maximum heap", "gauge");
+        sample(out, "jvm_memory_heap_max_bytes", null, null, heap.getMax());
+
+        counter(out, "jvm_gc_collections_total",
+                "Garbage collections per collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collections_total", "gc", gc.getName(),
+                   gc.getCollectionCount());
+        }
+        counter(out, "jvm_gc_collection_seconds_total",
+                "Time spent in garbage collection per collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_total", "gc", gc.getName(),
+                   gc.getCollectionTime() / 1000.0);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        header(out, "jvm_threads_current", "Live threads", "gauge");
+        sample(out, "jvm_threads_current", null, null, threads.getThreadCount());
+        header(out, "jvm_threads_daemon", "Live daemon threads", "gauge");
+        sample(out, "jvm_threads_daemon", null, null,
+               threads.getDaemonThreadCount());
+        header(out, "jvm_threads_peak", "Peak live threads", "gauge");
+        sample(out, "jvm_threads_peak", null, null, threads.getPeakThreadCount());
+    }
+
+    private void lanes(StringBuilder out) {
+        Collection<LaneMetrics> lanes = metrics.getLanes().values();
+        counter(out, "streaming_lane_handled_total",
+                "Messages handled per partitioned lane");
+        for (LaneMetrics lane : lanes) {
+            sample(out, "streaming_lane_handled_total", "channel",
+                   lane.getChannel(), "lane", Integer.toString(lane.getLane()),
+                   lane.getHandled());
+        }
+        header(out, "streaming_lane_queue_depth",
+               "Messages waiting to be handled per partitioned lane", "gauge");
+        for (LaneMetrics lane : lanes) {
+            sample(out, "streaming_lane_queue_depth", "channel",
+                   lane.getChannel(), "lane", Integer.toString(lane.getLane()),
+                   lane.getQueueDepth());
+        }
+        header(out, "streaming_lane_lag_seconds",
+               "Time from the partitioning of messages to the end of their handling per lane",
+               "summary");
+        for (LaneMetrics lane : lanes) {
+            summary(out, "streaming_lane_lag_seconds", "channel",
+                    lane.getChannel(), "lane",
+                    Integer.toString(lane.getLane()), lane.getLag().snapshot());
+        }
+    }
+
+    /**
+     * Append a sample, with at most one label
+     */
+    private void sample(StringBuilder out, String name, String label,
+                        String value, double sample) {
+        sample(out, name, label, value, null, null, sample);
+    }
+
+    /**
+     * Append a counted sample, with at most one label
+     */
+    private void sample(StringBuilder out, String name, String label,
+                        String value, long sample) {
+        sample(out, name, label, value, null, null, sample);
+    }
+
+    /**
+     * Append a sample, with at most two labels
+     */
+    private void sample(StringBuilder out, String name, String label,
+                        String value, String otherLabel, String otherValue,
+                        double sample) {
+        labels(out, name, label, value, otherLabel, otherValue);
+        out.append(sample).append('\n');
+    }
+
+    /**
+     * Append a counted sample, with at most two labels
+     */
+    private void sample(StringBuilder out, String name, String label,
+                        String value, String otherLabel, String otherValue,
+                        long sample) {
+        labels(out, name, label, value, otherLabel, otherValue);
+        out.append(sample).append('\n');
+    }
+
+    private void label(StringBuilder out, String label, String value) {
+        out.append(label).append("=\"");
+        escape(out, value);
+        out.append('"');
+    }
+
+    private void labels(StringBuilder out, String name, String label,
+                        String value, String otherLabel, String otherValue) {
+        out.append(name);
+        if (label != null) {
+            out.append('{');
+            label(out, label, value);
+            if (otherLabel != null) {
+                out.append(',');
+                label(out, otherLabel, otherValue);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private void sessions(StringBuilder out) {
+        header(out, "streaming_session_state",
+               "1 for the current state of each session", "gauge");
+        for (Debugger session : engine.getSessions()) {
+            State current = session.getState();
+            for (State state : State.values()) {
+                out.append("streaming_session_state{session=\"");
+                escape(out, session.getConfiguration().getUsername());
+                out.append("\",state=\"").append(state).append("\"} ");
+                out.append(state == current ? 1 : 0).append('\n');
+            }
+        }
+        Map<String, SessionMetrics> sessions = metrics.getSessions();
+        counter(out, "streaming_handshakes_total", "Successful handshakes");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_handshakes_total", "session",
+                   entry.getKey(), entry.getValue().getHandshakes());
+        }
+        counter(out, "streaming_handshake_failures_total",
+                "Failed handshakes");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_handshake_failures_total", "session",
+                   entry.getKey(), entry.getValue().getHandshakeFailures());
+        }
+        counter(out, "streaming_connects_total", "Successful connects");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_connects_total", "session", entry.getKey(),
+                   entry.getValue().getConnects());
+        }
+        counter(out, "streaming_connect_failures_total", "Failed connects");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_connect_failures_total", "session",
+                   entry.getKey(), entry.getValue().getConnectFailures());
+        }
+        counter(out, "streaming_subscribes_total", "Successful subscriptions");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_subscribes_total", "session",
+                   entry.getKey(), entry.getValue().getSubscribes());
+        }
+        counter(out, "streaming_subscribe_failures_total",
+                "Failed subscriptions");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_subscribe_failures_total", "session",
+                   entry.getKey(), entry.getValue().getSubscribeFailures());
+        }
+        counter(out, "streaming_recoveries_total",
+                "Replacements of a session's client after a failure");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_recoveries_total", "session",
+                   entry.getKey(), entry.getValue().getRecoveries());
+        }
+        counter(out, "streaming_expirations_total",
+                "Meta exchanges that expired before the server replied");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_expirations_total", "session",
+                   entry.getKey(), entry.getValue().getExpirations());
+        }
+        header(out, "streaming_advised_timeout_seconds",
+               "Time the server advised it holds a connect", "gauge");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_advised_timeout_seconds", "session",
+                   entry.getKey(), entry.getValue().getAdvisedTimeout() / 1000.0);
+        }
+        header(out, "streaming_advised_interval_seconds",
+               "Interval the server advised between connects", "gauge");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_advised_interval_seconds", "session",
+                   entry.getKey(), entry.getValue().getAdvisedInterval() / 1000.0);
+        }
+        header(out, "streaming_network_delay_seconds",
+               "Time allowed for the network on top of the advised timeout",
+               "gauge");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            sample(out, "streaming_network_delay_seconds", "session",
+                   entry.getKey(), entry.getValue().getNetworkDelay() / 1000.0);
+        }
+        header(out, "streaming_round_trip_seconds",
+               "Round trips of the meta exchanges, less the time the server held them",
+               "summary");
+        for (Map.Entry<String, SessionMetrics> entry : sessions.entrySet()) {
+            summary(out, "streaming_round_trip_seconds", "session",
+                    entry.getKey(), entry.getValue().getRoundTrip().snapshot());
+        }
+    }
+
+    /**
+     * Append the quantiles, count and sum of a histogram of nanoseconds
+     */
+    private void summary(StringBuilder out, String name, String label,
+                         String value, Histogram.Snapshot histogram) {
+        summary(out, name, label, value, null, null, histogram);
+    }
+
+    /**
+     * Append the quantiles, count and sum of a histogram of nanoseconds, with
+     * a second label
+     */
+    private void summary(StringBuilder out, String name, String label,
+                         String value, String otherLabel, String otherValue,
+                         Histogram.Snapshot histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{');
+            label(out, label, value);
+            if (otherLabel != null) {
+                out.append(',');
+                label(out, otherLabel, otherValue);
+            }
+            out.append(",quantile=\"").append(quantile).append("\"} ");
+            out.append(histogram.getValueAtPercentile(quantile * 100)
+                       / NANOS_PER_SECOND).append('\n');
+        }
+        sample(out, name + "_count", label, value, otherLabel, otherValue,
+               histogram.getCount());
+        sample(out, name + "_sum", label, value, otherLabel, otherValue,
+               histogram.getSum() / NANOS_PER_SECOND);
+    }
+}
@@ -0,0 +1,773 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.common.HashMapMessage;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A message backed by its slice of the raw response content. The channel,
+ * id, and the replay id and created date of the event it carries are
+ * extracted when the response is scanned; everything else is decoded into a
+ * map the first time it is asked for, so a listener that only needs the raw
+ * JSON and those fields never pays for the object graph.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class RawMessage extends AbstractMap<String, Object> implements
+        Message.Mutable {
+
+    /**
+     * A single pass scanner of a Bayeux response. It splits the response into
+     * the slices of its messages and picks out the fields a RawMessage
+     * carries, skipping every other value without decoding it.
+     */
+    static class Scanner {
+        private static final int    DATA         = 1;
+        private static final int    EVENT        = 2;
+        private static final int    MESSAGE      = 0;
+        private static final int    SKIP         = -1;
+        private static final int    SOBJECT      = 3;
+        private static final byte[] CHANNEL_KEY  = ascii(Message.CHANNEL_FIELD);
+        private static final byte[] CREATED_KEY  = ascii("createdDate");
+        private static final byte[] DATA_KEY     = ascii(Message.DATA_FIELD);
+        private static final byte[] EVENT_KEY    = ascii("event");
+        private static final byte[] FALSE        = ascii("false");
+        private static final byte[] ID_KEY       = ascii(Message.ID_FIELD);
+        private static final byte[] NULL         = ascii("null");
+        private static final byte[] REPLAY_KEY   = ascii("replayId");
+        private static final byte[] SOBJECT_KEY  = ascii("sobject");
+        private static final byte[] TRUE         = ascii("true");
+
+        private static byte[] ascii(String string) {
+            return string.getBytes(UTF_8);
+        }
+
+        private String       channel;
+        private final byte[] content;
+        private String       createdDate;
+        private boolean      data;
+        private final int    end;
+        private String       id;
+        private int          position;
+        private Long         replayId;
+        private byte[]       target;
+        private String       value;
+
+        Scanner(byte[] content, int offset, int length) {
+            this.content = content;
+            position = offset;
+            end = offset + length;
+        }
+
+        /**
+         * @param name
+         *            - the name of a field of the sobject carried by the
+         *            message that is the content
+         * @return the value of the field as a string, or null if it is
+         *         missing, null or not a scalar
+         * @throws ParseException
+         *             - if the content is not well formed
+         */
+        String sobjectField(String name) throws ParseException {
+            target = ascii(name);
+            whitespace();
+            object(MESSAGE);
+            return value;
+        }
+
+        /**
+         * @return the messages of the content, which is either an array of
+         *         messages or a single message
+         * @throws ParseException
+         *             - if the content is not well formed
+         */
+        List<RawMessage> messages() throws ParseException {
+            List<RawMessage> messages = new ArrayList<RawMessage>();
+            if (whitespace() == '{') {
+                messages.add(message());
+            } else {
+                expect('[');
+                if (whitespace() == ']') {
+                    position++;
+                } else {
+                    while (true) {
+                        whitespace();
+                        messages.add(message());
+                        if (separator(']')) {
+                            break;
+                        }
+                    }
+                }
+            }
+            while (position < end && isWhitespace(content[position])) {
+                position++;
+            }
+            if (position != end) {
+                throw error("the end of the content");
+            }
+            return messages;
+        }
+
+        private void array() throws ParseException {
+            expect('[');
+            if (whitespace() == ']') {
+                position++;
+                return;
+            }
+            do {
+                whitespace();
+                value();
+            } while (!separator(']'));
+        }
+
+        private ParseException error(String expected) {
+            return new ParseException(String.format("Expected %s at: %s",
+                                                    expected, position),
+                                      position);
+        }
+
+        /**
+         * Skip the rest of an escape sequence, after its backslash
+         */
+        private void escape() throws ParseException {
+            byte c = peek();
+            position++;
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                case 'b':
+                case 'f':
+                case 'n':
+                case 'r':
+                case 't':
+                    return;
+                case 'u':
+                    for (int i = 0; i < 4; i++) {
+                        c = peek();
+                        if (!isDigit(c) && (c < 'a' || c > 'f')
+                            && (c < 'A' || c > 'F')) {
+                            throw error("a hexadecimal digit");
+                        }
+                        position++;
+                    }
+                    return;
+                default:
+                    position--;
+                    throw error("a valid escape sequence");
+            }
+        }
+
+        private void expect(char c) throws ParseException {
+            if (peek() != c) {
+                throw error("'" + c + "'");
+            }
+            position++;
+        }
+
+        /**
+         * @param key
+         *            - the content, or the decoded key if it has escapes
+         */
+        private void field(int level, byte[] key, int keyStart, int keyEnd)
+                                                                            throws ParseException {
+            byte c = peek();
+            switch (level) {
+                case MESSAGE:
+                    if (c == '"' && matches(key, keyStart, keyEnd, CHANNEL_KEY)) {
+                        channel = string();
+                        return;
+                    }
+                    if (c == '"' && matches(key, keyStart, keyEnd, ID_KEY)) {
+                        id = string();
+                        return;
+                    }
+                    if (matches(key, keyStart, keyEnd, DATA_KEY)) {
+                        data = true;
+                        if (c == '{') {
+                            object(DATA);
+                            return;
+                        }
+                    }
+                    break;
+                case DATA:
+                    if (c == '{' && matches(key, keyStart, keyEnd, EVENT_KEY)) {
+                        object(EVENT);
+                        return;
+                    }
+                    if (c == '{' && target != null
+                        && matches(key, keyStart, keyEnd, SOBJECT_KEY)) {
+                        object(SOBJECT);
+                        return;
+                    }
+                    break;
+                case EVENT:
+                    if (c == '"' && matches(key, keyStart, keyEnd, CREATED_KEY)) {
+                        createdDate = string();
+                        return;
+                    }
+                    if ((c == '-' || isDigit(c))
+                        && matches(key, keyStart, keyEnd, REPLAY_KEY)) {
+                        replayId = number();
+                        return;
+                    }
+                    break;
+                case SOBJECT:
+                    if (matches(key, keyStart, keyEnd, target)) {
+                        value = scalar();
+                        return;
+                    }
+                    break;
+            }
+            value();
+        }
+
+        private boolean isDigit(byte c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private boolean isWhitespace(byte c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+
+        private void literal(byte[] word) throws ParseException {
+            if (end - position < word.length
+                || !matches(content, position, position + word.length, word)) {
+                throw error(new String(word, UTF_8));
+            }
+            position += word.length;
+        }
+
+        private boolean matches(byte[] source, int start, int stop,
+                                byte[] name) {
+            if (stop - start != name.length) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (source[start + i] != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private RawMessage message() throws ParseException {
+            int start = position;
+            channel = createdDate = id = null;
+            replayId = null;
+            data = false;
+            object(MESSAGE);
+            return new RawMessage(content, start, position - start, channel,
+                                  id, data, replayId, createdDate);
+        }
+
+        /**
+         * @return the value of an integral number, or null if the number has
+         *         a fraction or exponent
+         */
+        private Long number() throws ParseException {
+            int start = position;
+            if (peek() == '-') {
+                position++;
+            }
+            long value = 0;
+            boolean integral = true;
+            while (position < end) {
+                byte c = content[position];
+                if (isDigit(c)) {
+                    value = value * 10 + (c - '0');
+                } else if (c == '.' || c == 'e' || c == 'E' || c == '+'
+                           || c == '-') {
+                    integral = false;
+                } else {
+                    break;
+                }
+                position++;
+            }
+            if (position == start || content[position - 1] == '-') {
+                throw error("a number");
+            }
+            if (!integral) {
+                return null;
+            }
+            return content[start] == '-' ? -value : value;
+        }
+
+        private void object(int level) throws ParseException {
+            expect('{');
+            if (whitespace() == '}') {
+                position++;
+                return;
+            }
+            do {
+                whitespace();
+                int quote = position;
+                byte[] key = content;
+                int keyStart = position + 1;
+                if (skipString()) {
+                    position = quote;
+                    key = string().getBytes(UTF_8);
+                    keyStart = 0;
+                }
+                int keyEnd = key == content ? position - 1 : key.length;
+                whitespace();
+                expect(':');
+                whitespace();
+                field(level, key, keyStart, keyEnd);
+            } while (!separator('}'));
+        }
+
+        private byte peek() throws ParseException {
+            if (position >= end) {
+                throw new ParseException("Unexpected end of content",
+                                         position);
+            }
+            return content[position];
+        }
+
+        /**
+         * @return the text of a string, number or boolean, or null for any
+         *         other value
+         */
+        private String scalar() throws ParseException {
+            byte c = peek();
+            if (c == '"') {
+                return string();
+            }
+            int start = position;
+            value();
+            if (c == '{' || c == '[' || c == 'n') {
+                return null;
+            }
+            return new String(content, start, position - start, UTF_8);
+        }
+
+        /**
+         * Consume the separator after a member or element
+         * 
+         * @return true if it closed the enclosing object or array
+         */
+        private boolean separator(char close) throws ParseException {
+            byte c = whitespace();
+            position++;
+            if (c == close) {
+                return true;
+            }
+            if (c != ',') {
+                position--;
+                throw error("',' or '" + close + "'");
+            }
+            return false;
+        }
+
+        /**
+         * Skip a string, leaving the position after its closing quote
+         * 
+         * @return true if the string contains escapes
+         */
+        private boolean skipString() throws ParseException {
+            expect('"');
+            boolean escaped = false;
+            while (true) {
+                byte c = peek();
+                position++;
+                if (c == '"') {
+                    return escaped;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    escape();
+                }
+            }
+        }
+
+        private String string() throws ParseException {
+            int start = position + 1;
+            boolean escaped = skipString();
+            String raw = new String(content, start, position - 1 - start,
+                                    UTF_8);
+            if (!escaped) {
+                return raw;
+            }
+            StringBuilder builder = new StringBuilder(raw.length());
+            try {
+                for (int i = 0; i < raw.length(); i++) {
+                    char c = raw.charAt(i);
+                    if (c != '\\') {
+                        builder.append(c);
+                        continue;
+                    }
+                    c = raw.charAt(++i);
+                    switch (c) {
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'u':
+                            builder.append((char) Integer.parseInt(raw.substring(i + 1,
+                                                                                 i + 5),
+                                                                   16));
+                            i += 4;
+                            break;
+                        default:
+                            builder.append(c);
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw error("a valid escape sequence");
+            }
+            return builder.toString();
+        }
+
+        private void value() throws ParseException {
+            byte c = peek();
+            switch (c) {
+                case '"':
+                    skipString();
+                    break;
+                case '{':
+                    object(SKIP);
+                    break;
+                case '[':
+                    array();
+                    break;
+                case 't':
+                    literal(TRUE);
+                    break;
+                case 'f':
+                    literal(FALSE);
+                    break;
+                case 'n':
+                    literal(NULL);
+                    break;
+                default:
+                    if (c != '-' && !isDigit(c)) {
+                        throw error("a value");
+                    }
+                    number();
+            }
+        }
+
+        /**
+         * Skip whitespace
+         * 
+         * @return the next byte, which is not consumed
+         */
+        private byte whitespace() throws ParseException {
+            while (isWhitespace(peek())) {
+                position++;
+            }
+            return content[position];
+        }
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Charset      UTF_8  = Charset.forName("UTF-8");
+
+    /**
+     * @param content
+     *            - the content of a response
+     * @param offset
+     *            - where the content starts
+     * @param length
+     *            - the length of the content
+     * @return the messages of the content, backed by the content array, which
+     *         must not be modified afterwards
+     * @throws ParseException
+     *             - if the content is not a well formed message, or array of
+     *             messages
+     */
+    public static List<RawMessage> parse(byte[] content, int offset,
+                                         int length) throws ParseException {
+        return new Scanner(content, offset, length).messages();
+    }
+
+    private final String            channel;
+    private final byte[]            content;
+    private final String            createdDate;
+    private final boolean           data;
+    private volatile HashMapMessage decoded;
+    private final String            id;
+    private final int               length;
+    private final int               offset;
+    private final Long              replayId;
+
+    RawMessage(byte[] content, int offset, int length, String channel,
+               String id, boolean data, Long replayId, String createdDate) {
+        this.content = content;
+        this.offset = offset;
+        this.length = length;
+        this.channel = channel;
+        this.id = id;
+        this.data = data;
+        this.replayId = replayId;
+        this.createdDate = createdDate;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return decoded().containsKey(key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return decoded().entrySet();
+    }
+
+    @Override
+    public Object get(Object key) {
+        return decoded().get(key);
+    }
+
+    @Override
+    public Map<String, Object> getAdvice() {
+        return decoded().getAdvice();
+    }
+
+    @Override
+    public Map<String, Object> getAdvice(boolean create) {
+        return decoded().getAdvice(create);
+    }
+
+    /**
+     * @return the raw JSON of the message, sharing the response content
+     */
+    public Buffer getBuffer() {
+        return new ByteArrayBuffer(content, offset, length, Buffer.READONLY);
+    }
+
+    @Override
+    public String getChannel() {
+        HashMapMessage current = decoded;
+        return current == null ? channel : current.getChannel();
+    }
+
+    @Override
+    public ChannelId getChannelId() {
+        String name = getChannel();
+        return name == null ? null : new ChannelId(name);
+    }
+
+    @Override
+    public String getClientId() {
+        return decoded().getClientId();
+    }
+
+    /**
+     * @return the created date of the event the message carries, as sent, or
+     *         null
+     */
+    public String getCreatedDate() {
+        return createdDate;
+    }
+
+    @Override
+    public Object getData() {
+        return decoded().getData();
+    }
+
+    @Override
+    public Map<String, Object> getDataAsMap() {
+        return decoded().getDataAsMap();
+    }
+
+    @Override
+    public Map<String, Object> getDataAsMap(boolean create) {
+        return decoded().getDataAsMap(create);
+    }
+
+    @Override
+    public Map<String, Object> getExt() {
+        return decoded().getExt();
+    }
+
+    @Override
+    public Map<String, Object> getExt(boolean create) {
+        return decoded().getExt(create);
+    }
+
+    @Override
+    public String getId() {
+        HashMapMessage current = decoded;
+        return current == null ? id : current.getId();
+    }
+
+    @Override
+    public String getJSON() {
+        HashMapMessage current = decoded;
+        return current == null ? new String(content, offset, length, UTF_8)
+                              : current.getJSON();
+    }
+
+    /**
+     * @return the replay id of the event the message carries, or null
+     */
+    public Long getReplayId() {
+        return replayId;
+    }
+
+    /**
+     * @param name
+     *            - the name of a field of the sobject the event carries
+     * @return the value of the field as a string, or null if it is missing,
+     *         null or not a scalar. Unless the message has been decoded, its
+     *         JSON is scanned for the field rather than decoded.
+     */
+    public String getSObjectField(String name) {
+        HashMapMessage current = decoded;
+        if (current != null) {
+            return Subscription.sobjectField(current, name);
+        }
+        try {
+            return new Scanner(content, offset, length).sobjectField(name);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Unable to scan message: "
+                                            + getJSON(), e);
+        }
+    }
+
+    /**
+     * @return true if the message has been decoded into a map
+     */
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    @Override
+    public boolean isMeta() {
+        String name = getChannel();
+        return name != null && ChannelId.isMeta(name);
+    }
+
+    @Override
+    public boolean isPublishReply() {
+        HashMapMessage current = decoded;
+        return current == null ? !isMeta() && !data
+                              : current.isPublishReply();
+    }
+
+    @Override
+    public boolean isSuccessful() {
+        return decoded().isSuccessful();
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return decoded().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return decoded().remove(key);
+    }
+
+    @Override
+    public void setChannel(String channel) {
+        decoded().setChannel(channel);
+    }
+
+    @Override
+    public void setClientId(String clientId) {
+        decoded().setClientId(clientId);
+    }
+
+    @Override
+    public void setData(Object data) {
+        decoded().setData(data);
+    }
+
+    @Override
+    public void setId(String id) {
+        decoded().setId(id);
+    }
+
+    @Override
+    public void setSuccessful(boolean successful) {
+        decoded().setSuccessful(successful);
+    }
+
+    @Override
+    public int size() {
+        return decoded().size();
+    }
+
+    @Override
+    public String toString() {
+        return getJSON();
+    }
+
+    @SuppressWarnings("unchecked")
+    private HashMapMessage decoded() {
+        HashMapMessage current = decoded;
+        if (current == null) {
+            synchronized (this) {
+                current = decoded;
+                if (current == null) {
+                    current = new HashMapMessage();
+                    try {
+                        current.putAll(MAPPER.readValue(content, offset,
+                                                        length, Map.class));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(
+                                                        "Unable to decode message: "
+                                                                + getJSON(), e);
+                    }
+                    decoded = current;
+                }
+            }
+        }
+        return current;
+    }
+}
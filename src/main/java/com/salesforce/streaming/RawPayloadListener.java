@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cometd.client.BayeuxClient;
+import org.eclipse.jetty.client.HttpEventListener;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.salesforce.streaming.EventLog.Level;
+
+/**
+ * Keeps the events of a long poll response away from CometD's decoder. The
+ * response content is collected into a single array, which is scanned once
+ * when the response completes: every non meta message is handed to the
+ * session as a {@link RawMessage} backed by that array, and only the meta
+ * messages are passed on to the transport to be decoded as usual. Responses
+ * that are not successful, or cannot be scanned, are passed on untouched.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class RawPayloadListener implements HttpEventListener {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private byte[]                  content = new byte[INITIAL_CAPACITY];
+    private final HttpExchange      exchange;
+    private int                     length;
+    private final EventLog          log     = EventLog.getDefault();
+    private final HttpEventListener previous;
+    private final BayeuxClient      receiver;
+    private volatile int            status;
+
+    /**
+     * @param exchange
+     *            - the long poll exchange
+     * @param receiver
+     *            - the session the raw messages are delivered to
+     */
+    public RawPayloadListener(HttpExchange exchange, BayeuxClient receiver) {
+        this.exchange = exchange;
+        this.receiver = receiver;
+        previous = exchange.getEventListener();
+        exchange.setEventListener(this);
+    }
+
+    @Override
+    public void onConnectionFailed(Throwable ex) {
+        previous.onConnectionFailed(ex);
+    }
+
+    @Override
+    public void onException(Throwable ex) {
+        previous.onException(ex);
+    }
+
+    @Override
+    public void onExpire() {
+        previous.onExpire();
+    }
+
+    @Override
+    public void onRequestCommitted() throws IOException {
+        previous.onRequestCommitted();
+    }
+
+    @Override
+    public void onRequestComplete() throws IOException {
+        previous.onRequestComplete();
+    }
+
+    @Override
+    public void onResponseComplete() throws IOException {
+        if (length > 0) {
+            previous.onResponseContent(status == 200 ? deliver()
+                                                    : new ByteArrayBuffer(
+                                                                          content,
+                                                                          0,
+                                                                          length));
+        }
+        previous.onResponseComplete();
+    }
+
+    @Override
+    public void onResponseContent(Buffer buffer) throws IOException {
+        int available = buffer.length();
+        if (length + available > content.length) {
+            byte[] grown = new byte[Math.max(content.length * 2, length
+                                                                 + available)];
+            System.arraycopy(content, 0, grown, 0, length);
+            content = grown;
+        }
+        length += buffer.peek(buffer.getIndex(), content, length, available);
+    }
+
+    @Override
+    public void onResponseHeader(Buffer name, Buffer value) throws IOException {
+        previous.onResponseHeader(name, value);
+    }
+
+    @Override
+    public void onResponseHeaderComplete() throws IOException {
+        previous.onResponseHeaderComplete();
+    }
+
+    @Override
+    public void onResponseStatus(Buffer version, int status, Buffer reason)
+                                                                           throws IOException {
+        this.status = status;
+        previous.onResponseStatus(version, status, reason);
+    }
+
+    @Override
+    public void onRetry() {
+        length = 0;
+        previous.onRetry();
+    }
+
+    /**
+     * Deliver the events of the response to the session
+     * 
+     * @return the content left for the transport: an array of the response's
+     *         meta messages
+     */
+    private Buffer deliver() {
+        List<RawMessage> messages;
+        try {
+            messages = RawMessage.parse(content, 0, length);
+        } catch (ParseException e) {
+            log.log(Level.WARN, e, "Unable to scan response of: %s",
+                    exchange.getRequestURI());
+            return new ByteArrayBuffer(content, 0, length);
+        }
+        List<RawMessage> events = new ArrayList<RawMessage>(messages.size());
+        ByteArrayBuffer meta = new ByteArrayBuffer(length + 2);
+        meta.put((byte) '[');
+        for (RawMessage message : messages) {
+            if (message.getChannel() == null || message.isMeta()) {
+                if (meta.length() > 1) {
+                    meta.put((byte) ',');
+                }
+                meta.put(message.getBuffer());
+            } else {
+                events.add(message);
+            }
+        }
+        meta.put((byte) ']');
+        for (RawMessage event : events) {
+            receiver.receive(event);
+        }
+        return meta;
+    }
+}
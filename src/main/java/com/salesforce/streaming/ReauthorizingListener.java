@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpEventListener;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.salesforce.streaming.EventLog.Level;
+
+/**
+ * Retries an exchange the server rejected as unauthorized. The first 401
+ * response is held back from the transport; the token the exchange was sent
+ * with is refreshed through the {@link CredentialSupplier}, off the I/O
+ * thread, and the same exchange is sent again with the new token, so the
+ * Bayeux client and its subscriptions survive the rotation. If no token can
+ * be obtained, or the retry fails, the held back response is passed on and
+ * the session recovers as from any other 401.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ReauthorizingListener implements HttpEventListener {
+    private static final String AUTHORIZATION = "Authorization";
+    private static final String OAUTH         = "OAuth ";
+
+    /**
+     * @return a read only copy of a buffer the parser will reuse
+     */
+    private static Buffer copy(Buffer buffer) {
+        return buffer == null ? null : new ByteArrayBuffer(buffer.asArray());
+    }
+
+    private final HttpClient         client;
+    private final List<Buffer>       content = new ArrayList<Buffer>();
+    private final CredentialSupplier credentials;
+    private final HttpExchange       exchange;
+    private final List<Buffer>       headers = new ArrayList<Buffer>();
+    private final HttpEventListener  previous;
+    private Buffer                   reason;
+    private volatile boolean         retried;
+    private volatile String          token;
+    private volatile boolean         unauthorized;
+    private Buffer                   version;
+
+    /**
+     * @param exchange
+     *            - the exchange, not yet sent
+     * @param credentials
+     *            - the supplier of the exchange's token
+     * @param client
+     *            - the client the exchange is sent again by
+     */
+    public ReauthorizingListener(HttpExchange exchange,
+                                 CredentialSupplier credentials,
+                                 HttpClient client) {
+        this.exchange = exchange;
+        this.credentials = credentials;
+        this.client = client;
+        token = credentials.getToken();
+        exchange.setRequestHeader(AUTHORIZATION, OAUTH + token);
+        previous = exchange.getEventListener();
+        exchange.setEventListener(this);
+    }
+
+    @Override
+    public void onConnectionFailed(Throwable ex) {
+        previous.onConnectionFailed(ex);
+    }
+
+    @Override
+    public void onException(Throwable ex) {
+        previous.onException(ex);
+    }
+
+    @Override
+    public void onExpire() {
+        previous.onExpire();
+    }
+
+    @Override
+    public void onRequestCommitted() throws IOException {
+        previous.onRequestCommitted();
+    }
+
+    @Override
+    public void onRequestComplete() throws IOException {
+        previous.onRequestComplete();
+    }
+
+    @Override
+    public void onResponseComplete() throws IOException {
+        if (!unauthorized) {
+            previous.onResponseComplete();
+            return;
+        }
+        client.getThreadPool().dispatch(new Runnable() {
+            @Override
+            public void run() {
+                retry();
+            }
+        });
+    }
+
+    @Override
+    public void onResponseContent(Buffer content) throws IOException {
+        if (unauthorized) {
+            this.content.add(copy(content));
+        } else {
+            previous.onResponseContent(content);
+        }
+    }
+
+    @Override
+    public void onResponseHeader(Buffer name, Buffer value) throws IOException {
+        if (unauthorized) {
+            headers.add(copy(name));
+            headers.add(copy(value));
+        } else {
+            previous.onResponseHeader(name, value);
+        }
+    }
+
+    @Override
+    public void onResponseHeaderComplete() throws IOException {
+        if (!unauthorized) {
+            previous.onResponseHeaderComplete();
+        }
+    }
+
+    @Override
+    public void onResponseStatus(Buffer version, int status, Buffer reason)
+                                                                           throws IOException {
+        if (status == 401 && !retried) {
+            unauthorized = true;
+            this.version = copy(version);
+            this.reason = copy(reason);
+            return;
+        }
+        previous.onResponseStatus(version, status, reason);
+    }
+
+    @Override
+    public void onRetry() {
+        previous.onRetry();
+    }
+
+    /**
+     * Pass the held back 401 response on to the transport
+     */
+    private void reject() throws IOException {
+        previous.onResponseStatus(version, 401, reason);
+        for (int i = 0; i < headers.size(); i += 2) {
+            previous.onResponseHeader(headers.get(i), headers.get(i + 1));
+        }
+        previous.onResponseHeaderComplete();
+        for (Buffer buffer : content) {
+            previous.onResponseContent(buffer);
+        }
+        previous.onResponseComplete();
+    }
+
+    /**
+     * Refresh the rejected token and send the exchange again, once
+     */
+    private void retry() {
+        retried = true;
+        String refreshed = credentials.refresh(token);
+        try {
+            if (refreshed == null) {
+                reject();
+                return;
+            }
+            EventLog.getDefault().log(Level.INFO,
+                                      "Retrying unauthorized request: %s",
+                                      exchange.getRequestURI());
+            unauthorized = false;
+            token = refreshed;
+            exchange.reset();
+            exchange.setRequestHeader(AUTHORIZATION, OAUTH + token);
+            client.send(exchange);
+        } catch (IOException e) {
+            previous.onException(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSession;
+
+/**
+ * The Streaming API's replay extension. The handshake announces support for
+ * replay, and when the server confirms it, every subscription carries the
+ * last replay id checkpointed for its channel, so the server resumes the
+ * channel right after the last event this session processed.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ReplayExtension extends ClientSession.Extension.Adapter {
+    private static final String EXTENSION_NAME = "replay";
+
+    /**
+     * @return the replay id of the event carried by the message, or null
+     */
+    @SuppressWarnings("unchecked")
+    public static Long replayId(Message message) {
+        if (message instanceof RawMessage) {
+            return ((RawMessage) message).getReplayId();
+        }
+        Object data = message.getData();
+        if (!(data instanceof Map)) {
+            return null;
+        }
+        Object event = ((Map<String, Object>) data).get("event");
+        if (!(event instanceof Map)) {
+            return null;
+        }
+        Object replayId = ((Map<String, Object>) event).get("replayId");
+        return replayId instanceof Number ? ((Number) replayId).longValue()
+                                         : null;
+    }
+
+    private final String          session;
+    private final CheckpointStore store;
+    private volatile boolean      supported;
+
+    /**
+     * @param store
+     *            - the store of checkpointed replay ids
+     * @param session
+     *            - the session whose checkpoints are replayed
+     */
+    public ReplayExtension(CheckpointStore store, String session) {
+        this.store = store;
+        this.session = session;
+    }
+
+    @Override
+    public boolean rcvMeta(ClientSession client, Message.Mutable message) {
+        if (Channel.META_HANDSHAKE.equals(message.getChannel())) {
+            Map<String, Object> ext = message.getExt(false);
+            supported = ext != null
+                        && Boolean.TRUE.equals(ext.get(EXTENSION_NAME));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean sendMeta(ClientSession client, Message.Mutable message) {
+        if (Channel.META_HANDSHAKE.equals(message.getChannel())) {
+            message.getExt(true).put(EXTENSION_NAME, Boolean.TRUE);
+        } else if (supported
+                   && Channel.META_SUBSCRIBE.equals(message.getChannel())) {
+            String channel = (String) message.get(Message.SUBSCRIPTION_FIELD);
+            Long replayId = store.get(CheckpointStore.key(session, channel));
+            if (replayId != null) {
+                message.getExt(true).put(EXTENSION_NAME,
+                                         Collections.singletonMap(channel,
+                                                                  replayId));
+            }
+        }
+        return true;
+    }
+}
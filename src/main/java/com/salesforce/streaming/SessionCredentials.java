@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.salesforce.streaming.EventLog.Level;
+
+/**
+ * Supplies the session id of a session's user, logged in through the shared
+ * {@link LoginService}. The session is renewed in the background
+ * <code>credentialRefreshAhead</code> milliseconds before it expires, at the
+ * end of its time to live or of the <code>sessionSecondsValid</code> of the
+ * login response, whichever is sooner, and on demand when the server rejects
+ * it.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SessionCredentials implements CredentialSupplier {
+    private final Configuration            configuration;
+    private volatile String                endpoint;
+    private final LoginService             loginService;
+    private ScheduledFuture<?>             renewal;
+    private final ScheduledExecutorService scheduler;
+    private volatile String                token;
+
+    /**
+     * @param loginService
+     *            - the service that logs the user in
+     * @param configuration
+     *            - the configuration of the session
+     * @param scheduler
+     *            - the scheduler of the background renewals
+     */
+    public SessionCredentials(LoginService loginService,
+                              Configuration configuration,
+                              ScheduledExecutorService scheduler) {
+        this.loginService = loginService;
+        this.configuration = configuration;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the server endpoint of the session, or null if not logged in
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Log in, unless already logged in
+     * 
+     * @throws IllegalStateException
+     *             - if the login failed
+     */
+    public synchronized void login() throws Exception {
+        if (token == null) {
+            renew(null);
+        }
+    }
+
+    @Override
+    public synchronized String refresh(String rejected) {
+        if (token != null && !token.equals(rejected)) {
+            return token;
+        }
+        try {
+            renew(rejected);
+        } catch (Exception e) {
+            EventLog.getDefault().log(Level.ERROR, e,
+                                      "Unable to renew the session of: %s",
+                                      configuration.getUsername());
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Cancel the background renewal
+     */
+    public synchronized void stop() {
+        if (renewal != null) {
+            renewal.cancel(false);
+            renewal = null;
+        }
+    }
+
+    /**
+     * Replace the session, discarding the previous one from the login cache,
+     * and schedule the renewal of the new one
+     */
+    private void renew(String previous) throws Exception {
+        if (previous != null) {
+            loginService.invalidate(configuration, previous);
+        }
+        String[] pair = loginService.login(configuration);
+        if (pair == null) {
+            throw new IllegalStateException("Login failed for: "
+                                            + configuration.getUsername());
+        }
+        token = pair[0];
+        endpoint = pair[1];
+        EventLog.getDefault().log(Level.INFO, "Session of: %s renewed",
+                                  configuration.getUsername());
+        stop();
+        long delay = loginService.getExpiry(configuration, token)
+                     - configuration.getCredentialRefreshAhead()
+                     - System.currentTimeMillis();
+        if (delay > 0) {
+            final String renewed = token;
+            renewal = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(renewed);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future completed explicitly, typically by the listener of a meta channel
+ * reply. Callbacks run on the thread that completes the future, or on the
+ * registering thread if it is already complete, so they must not block.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SettableFuture<T> implements Future<T> {
+    public static interface Callback<T> {
+        void onFailure(Throwable failure);
+
+        void onSuccess(T value);
+    }
+
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+    private boolean                         done;
+    private Throwable                       failure;
+    private final CountDownLatch            latch     = new CountDownLatch(1);
+    private T                               value;
+
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (callbacks) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException());
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return value();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                                             ExecutionException,
+                                             TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return value();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (callbacks) {
+            return failure instanceof CancellationException;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (callbacks) {
+            return done;
+        }
+    }
+
+    /**
+     * @return true if this call completed the future
+     */
+    public boolean set(T value) {
+        return complete(value, null);
+    }
+
+    /**
+     * @return true if this call completed the future
+     */
+    public boolean setException(Throwable failure) {
+        return complete(null, failure);
+    }
+
+    private boolean complete(T value, Throwable failure) {
+        List<Callback<? super T>> notifying;
+        synchronized (callbacks) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            this.value = value;
+            this.failure = failure;
+            notifying = new ArrayList<Callback<? super T>>(callbacks);
+            callbacks.clear();
+        }
+        latch.countDown();
+        for (Callback<? super T> callback : notifying) {
+            notify(callback);
+        }
+        return true;
+    }
+
+    private void notify(Callback<? super T> callback) {
+        if (failure == null) {
+            callback.onSuccess(value);
+        } else {
+            callback.onFailure(failure);
+        }
+    }
+
+    private T value() throws ExecutionException {
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+}
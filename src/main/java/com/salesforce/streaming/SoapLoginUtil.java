@@ -27,19 +27,15 @@
 package com.salesforce.streaming;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.nio.charset.Charset;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
-import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.CachedExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.eclipse.jetty.io.Buffer;
 
 /**
  * @author hhildebrand
@@ -47,11 +43,377 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public final class SoapLoginUtil {
 
-    private static final String ENV_START = "<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/' "
-                                            + "xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' "
-                                            + "xmlns:urn='urn:partner.soap.sforce.com'><soapenv:Body>";
+    /**
+     * Feeds each chunk of the response straight into the parser instead of
+     * buffering the body. Once the parser has found the session id and server
+     * url, the remaining content is ignored. Only the first
+     * {@link #FAULT_LIMIT} bytes are kept, to report failed logins.
+     */
+    private static class LoginExchange extends CachedExchange {
+        private final ByteArrayOutputStream head   = new ByteArrayOutputStream();
+        private final LoginResponseParser   parser = new LoginResponseParser();
+
+        private LoginExchange() {
+            super(false);
+        }
+
+        @Override
+        protected synchronized void onResponseContent(Buffer content)
+                                                                     throws IOException {
+            if (parser.isFinished()) {
+                return;
+            }
+            int length = Math.min(content.length(), FAULT_LIMIT - head.size());
+            for (int i = 0; i < length; i++) {
+                head.write(content.peek(content.getIndex() + i));
+            }
+            parser.parse(content);
+        }
+    }
+
+    /**
+     * An incremental scanner of the SOAP login response. Only the text of the
+     * <code>sessionId</code>, <code>serverUrl</code> and
+     * <code>sessionSecondsValid</code> elements is collected; the scanner's
+     * state is kept between chunks, so element names
+     * and values may be split across any number of buffers. Comments,
+     * processing instructions and CDATA sections are recognized, as are
+     * quoted attribute values containing <code>&gt;</code>. Document type
+     * declarations, which SOAP forbids, are rejected.
+     */
+    static class LoginResponseParser {
+        private static enum State {
+            ATTRIBUTES, BANG, CDATA, COMMENT, INSTRUCTION, MARKUP, TAG, TEXT;
+        }
+
+        private static final byte[]         CDATA_OPEN    = "[CDATA[".getBytes(UTF_8);
+        private static final byte[]         COMMENT_OPEN  = "--".getBytes(UTF_8);
+        private static final int            MAX_NAME      = 64;
+        private static final byte[]         SECONDS_VALID = "sessionSecondsValid".getBytes(UTF_8);
+        private static final byte[]         SERVER_URL    = "serverUrl".getBytes(UTF_8);
+        private static final byte[]         SESSION_ID    = "sessionId".getBytes(UTF_8);
+
+        private int                         bang;
+        private boolean                     closing;
+        private boolean                     empty;
+        private String                      error;
+        private final byte[]                name          = new byte[MAX_NAME];
+        private int                         nameLength;
+        private byte[]                      opening;
+        private byte                        previous;
+        private byte                        quote;
+        private byte[]                      reading;
+        private int                         run;
+        private long                        secondsValid  = -1;
+        private String                      serverUrl;
+        private String                      sessionId;
+        private State                       state         = State.TEXT;
+        private final StringBuilder         text          = new StringBuilder();
+        private final ByteArrayOutputStream value         = new ByteArrayOutputStream();
+
+        /**
+         * @return why the response was rejected, or null
+         */
+        String getError() {
+            return error;
+        }
+
+        /**
+         * @return how long the session is valid, in seconds, or -1 if the
+         *         response does not say
+         */
+        long getSecondsValid() {
+            return secondsValid;
+        }
+
+        String getServerUrl() {
+            return serverUrl;
+        }
+
+        String getSessionId() {
+            return sessionId;
+        }
+
+        boolean isComplete() {
+            return sessionId != null && serverUrl != null;
+        }
+
+        /**
+         * @return true if the rest of the response can be skipped
+         */
+        boolean isFinished() {
+            return error != null || (isComplete() && secondsValid >= 0);
+        }
+
+        /**
+         * Scan the readable bytes of the buffer, without consuming them
+         * 
+         * @return true if the session id and server url have both been found
+         */
+        boolean parse(Buffer content) {
+            int end = content.putIndex();
+            for (int i = content.getIndex(); i < end && !isFinished(); i++) {
+                next(content.peek(i));
+            }
+            return isComplete();
+        }
+
+        /**
+         * Collect the closing brackets held back while looking for the end of
+         * a CDATA section
+         */
+        private void brackets(int count) {
+            if (reading != null) {
+                for (int i = 0; i < count; i++) {
+                    value.write(']');
+                }
+            }
+        }
+
+        /**
+         * The end of a start or end tag
+         */
+        private void endTag() {
+            state = State.TEXT;
+            if (closing) {
+                if (reading != null) {
+                    flush(true);
+                    String collected = text.toString();
+                    if (reading == SESSION_ID) {
+                        sessionId = collected;
+                    } else if (reading == SERVER_URL) {
+                        serverUrl = collected;
+                    } else {
+                        secondsValid(collected.trim());
+                    }
+                    reading = null;
+                }
+            } else if (!empty && reading == null) {
+                if (matches(SESSION_ID)) {
+                    reading = SESSION_ID;
+                } else if (matches(SERVER_URL)) {
+                    reading = SERVER_URL;
+                } else if (matches(SECONDS_VALID)) {
+                    reading = SECONDS_VALID;
+                }
+                text.setLength(0);
+                value.reset();
+            }
+        }
+
+        /**
+         * Append the bytes collected since the last flush to the text of the
+         * element being read
+         * 
+         * @param escaped
+         *            - true if the bytes are character data, rather than the
+         *            content of a CDATA section
+         */
+        private void flush(boolean escaped) {
+            String collected = new String(value.toByteArray(), UTF_8);
+            value.reset();
+            if (escaped) {
+                unescape(collected);
+            } else {
+                text.append(collected);
+            }
+        }
+
+        private boolean matches(byte[] element) {
+            if (nameLength != element.length) {
+                return false;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                if (name[i] != element[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void next(byte b) {
+            switch (state) {
+                case TEXT:
+                    if (b == '<') {
+                        if (reading != null) {
+                            flush(true);
+                        }
+                        state = State.MARKUP;
+                    } else if (reading != null) {
+                        value.write(b);
+                    }
+                    break;
+                case MARKUP:
+                    closing = false;
+                    empty = false;
+                    nameLength = 0;
+                    if (b == '!') {
+                        bang = 0;
+                        state = State.BANG;
+                    } else if (b == '?') {
+                        previous = 0;
+                        state = State.INSTRUCTION;
+                    } else if (b == '/') {
+                        closing = true;
+                        state = State.TAG;
+                    } else {
+                        state = State.TAG;
+                        tagName(b);
+                    }
+                    break;
+                case BANG:
+                    if (bang == 0) {
+                        opening = b == '-' ? COMMENT_OPEN : CDATA_OPEN;
+                    }
+                    if (b != opening[bang]) {
+                        error = "Unsupported markup in login response: <!"
+                                + new String(opening, 0, bang, UTF_8)
+                                + (char) b;
+                    } else if (++bang == opening.length) {
+                        run = 0;
+                        state = opening == COMMENT_OPEN ? State.COMMENT
+                                                       : State.CDATA;
+                    }
+                    break;
+                case COMMENT:
+                    if (b == '>' && run >= 2) {
+                        state = State.TEXT;
+                    } else {
+                        run = b == '-' ? run + 1 : 0;
+                    }
+                    break;
+                case CDATA:
+                    if (b == '>' && run >= 2) {
+                        brackets(run - 2);
+                        if (reading != null) {
+                            flush(false);
+                        }
+                        state = State.TEXT;
+                    } else if (b == ']') {
+                        run++;
+                    } else {
+                        brackets(run);
+                        run = 0;
+                        if (reading != null) {
+                            value.write(b);
+                        }
+                    }
+                    break;
+                case INSTRUCTION:
+                    if (b == '>' && previous == '?') {
+                        state = State.TEXT;
+                    }
+                    previous = b;
+                    break;
+                case TAG:
+                    if (b == '>') {
+                        endTag();
+                    } else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                        state = State.ATTRIBUTES;
+                    } else if (b == '/') {
+                        empty = true;
+                    } else {
+                        tagName(b);
+                    }
+                    break;
+                case ATTRIBUTES:
+                    if (quote != 0) {
+                        if (b == quote) {
+                            quote = 0;
+                        }
+                    } else if (b == '"' || b == '\'') {
+                        quote = b;
+                    } else if (b == '>') {
+                        endTag();
+                    } else if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                        empty = b == '/';
+                    }
+                    break;
+            }
+        }
+
+        private void secondsValid(String collected) {
+            try {
+                secondsValid = Long.parseLong(collected);
+            } catch (NumberFormatException e) {
+                secondsValid = -1;
+            }
+            if (secondsValid < 0) {
+                error = "Invalid sessionSecondsValid in login response: "
+                        + collected;
+            }
+        }
+
+        private void tagName(byte b) {
+            if (b == ':') {
+                nameLength = 0;
+            } else if (nameLength < MAX_NAME) {
+                name[nameLength++] = b;
+            }
+        }
+
+        /**
+         * Append character data to the text of the element being read,
+         * replacing its entity and character references
+         */
+        private void unescape(String data) {
+            int from = 0;
+            for (int amp = data.indexOf('&'); amp >= 0; amp = data.indexOf('&',
+                                                                            from)) {
+                text.append(data, from, amp);
+                int semicolon = data.indexOf(';', amp);
+                if (semicolon < 0) {
+                    error = "Unterminated reference in login response: "
+                            + data.substring(amp);
+                    return;
+                }
+                String entity = data.substring(amp + 1, semicolon);
+                if (entity.equals("lt")) {
+                    text.append('<');
+                } else if (entity.equals("gt")) {
+                    text.append('>');
+                } else if (entity.equals("quot")) {
+                    text.append('"');
+                } else if (entity.equals("apos")) {
+                    text.append('\'');
+                } else if (entity.equals("amp")) {
+                    text.append('&');
+                } else if (entity.startsWith("#")) {
+                    int codePoint;
+                    try {
+                        codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2),
+                                                                               16)
+                                                            : Integer.parseInt(entity.substring(1));
+                    } catch (NumberFormatException e) {
+                        codePoint = -1;
+                    }
+                    if (!Character.isValidCodePoint(codePoint)
+                        || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                        error = "Invalid character reference in login response: &"
+                                + entity + ";";
+                        return;
+                    }
+                    text.appendCodePoint(codePoint);
+                } else {
+                    error = "Unknown entity in login response: &" + entity
+                            + ";";
+                    return;
+                }
+                from = semicolon + 1;
+            }
+            text.append(data, from, data.length());
+        }
+    }
 
-    private static final String ENV_END   = "</soapenv:Body></soapenv:Envelope>";
+    private static final String  ENV_START   = "<soapenv:Envelope xmlns:soapenv='http://schemas.xmlsoap.org/soap/envelope/' "
+                                               + "xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' "
+                                               + "xmlns:urn='urn:partner.soap.sforce.com'><soapenv:Body>";
+
+    private static final String  ENV_END     = "</soapenv:Body></soapenv:Envelope>";
+
+    private static final int     FAULT_LIMIT = 16 * 1024;
+
+    private static final Charset UTF_8       = Charset.forName("UTF-8");
 
     private static byte[] soapXmlForLogin(String username, String password)
                                                                            throws UnsupportedEncodingException {
@@ -60,14 +422,17 @@ public final class SoapLoginUtil {
                 + "</urn:password>" + "  </urn:login>" + ENV_END).getBytes("UTF-8");
     }
 
+    /**
+     * @return the session id, the server endpoint and how long the session is
+     *         valid in seconds, or null if the login failed. The seconds are
+     *         null if the response does not say.
+     */
     public static String[] login(Configuration configuration, HttpClient client)
                                                                                 throws IOException,
-                                                                                InterruptedException,
-                                                                                SAXException,
-                                                                                ParserConfigurationException {
+                                                                                InterruptedException {
         String soapURL = new URL(new URL(configuration.getLoginEndpoint())
                                  + configuration.getSoapPartnerUri()).toExternalForm();
-        ContentExchange exchange = new ContentExchange();
+        LoginExchange exchange = new LoginExchange();
         exchange.setMethod("POST");
         exchange.setURL(soapURL);
         exchange.setRequestContentSource(new ByteArrayInputStream(
@@ -75,74 +440,36 @@ public final class SoapLoginUtil {
                                                                                   configuration.getPassword())));
         exchange.setRequestHeader("Content-Type", "text/xml");
         exchange.setRequestHeader("SOAPAction", "''");
-        exchange.setRequestHeader("PrettyPrint", "Yes");
-        new ExchangeListener(exchange);
+        // the login server's clock says nothing of the streaming servers'
+        new ExchangeListener(exchange, false);
+        new CompressionListener(exchange, configuration.isCompression());
 
         client.send(exchange);
         exchange.waitForDone();
-        String response = exchange.getResponseContent();
-
-        SAXParserFactory spf = SAXParserFactory.newInstance();
-        spf.setNamespaceAware(true);
-        SAXParser saxParser = spf.newSAXParser();
-
-        LoginResponseParser parser = new LoginResponseParser();
-        saxParser.parse(new ByteArrayInputStream(response.getBytes("UTF-8")),
-                        parser);
 
-        if (parser.sessionId == null || parser.serverUrl == null) {
+        LoginResponseParser parser = exchange.parser;
+        if (parser.getError() != null) {
+            System.out.println("Login Failed for username=["
+                               + configuration.getUsername() + "]: "
+                               + parser.getError());
+            return null;
+        }
+        if (!parser.isComplete()) {
             System.out.println("Login Failed for username=["
                                + configuration.getUsername() + "] SOAP-URL: ["
-                               + soapURL + "]\n" + response);
+                               + soapURL + "]\n"
+                               + exchange.head.toString("UTF-8"));
             return null;
         }
 
-        URL soapEndpoint = new URL(parser.serverUrl);
+        URL soapEndpoint = new URL(parser.getServerUrl());
         StringBuilder endpoint = new StringBuilder().append(soapEndpoint.getProtocol()).append("://").append(soapEndpoint.getHost());
         if (soapEndpoint.getPort() > 0)
             endpoint.append(":").append(soapEndpoint.getPort());
-        return new String[] { parser.sessionId, endpoint.toString() };
-    }
-
-    private static class LoginResponseParser extends DefaultHandler {
-
-        private boolean inSessionId;
-        private String  sessionId;
-
-        private boolean inServerUrl;
-        private String  serverUrl;
-
-        @Override
-        public void characters(char[] ch, int start, int length) {
-            if (inSessionId)
-                sessionId = new String(ch, start, length);
-            if (inServerUrl)
-                serverUrl = new String(ch, start, length);
-        }
-
-        @Override
-        public void endElement(String uri, String localName, String qName) {
-            if (localName != null) {
-                if (localName.equals("sessionId")) {
-                    inSessionId = false;
-                }
-                if (localName.equals("serverUrl")) {
-                    inServerUrl = false;
-                }
-            }
-        }
-
-        @Override
-        public void startElement(String uri, String localName, String qName,
-                                 Attributes attributes) {
-            if (localName != null) {
-                if (localName.equals("sessionId")) {
-                    inSessionId = true;
-                }
-                if (localName.equals("serverUrl")) {
-                    inServerUrl = true;
-                }
-            }
-        }
+        return new String[] {
+                parser.getSessionId(),
+                endpoint.toString(),
+                parser.getSecondsValid() < 0 ? null
+                                            : Long.toString(parser.getSecondsValid()) };
     }
 }
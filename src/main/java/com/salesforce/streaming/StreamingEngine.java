@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.Message;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.WebSocketClientFactory;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+
+import com.salesforce.streaming.Debugger.Transport;
+
+/**
+ * Runs any number of org sessions in one process. Every session has its own
+ * login and BayeuxClient, subscribed to its own channels, but all of them
+ * share two pooled Jetty HttpClients, each with its own bounded thread pool
+ * and connections: one for streaming, and one for logging in, so that a slow
+ * login never holds up a streaming connection.
+ * 
+ * When a cluster directory is configured, the engine is one node of a
+ * {@link Cluster}, and subscribes only to its share of the channels. When a
+ * control port is configured, the subscriptions of the running sessions are
+ * controlled through a {@link ControlServer}.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class StreamingEngine {
+    private HttpClient               adminHttpClient;
+    private CaptureLog               captureLog;
+    private CheckpointStore          checkpointStore;
+    private Cluster                  cluster;
+    private final Configuration      configuration;
+    private ControlServer            controlServer;
+    private Dispatcher               dispatcher;
+    private volatile boolean         failed;
+    private HttpClient               httpClient;
+    private LoginService             loginService;
+    private MetricsReporter          reporter;
+    private ScheduledExecutorService scheduler;
+    private final List<Debugger>     sessions = new CopyOnWriteArrayList<Debugger>();
+    private final CountDownLatch     stopped  = new CountDownLatch(1);
+    private WebSocketClientFactory   webSocketClientFactory;
+
+    public StreamingEngine(Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * @return the http client of logins and other administrative calls
+     */
+    public HttpClient getAdminHttpClient() {
+        return adminHttpClient;
+    }
+
+    /**
+     * @return the capture of received messages, or null if none is configured
+     */
+    public CaptureLog getCaptureLog() {
+        return captureLog;
+    }
+
+    /**
+     * @return the store of processed replay ids, or null if none is configured
+     */
+    public CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * @return the cluster splitting the channels between its nodes, or null
+     *         if the engine subscribes to every channel
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return the endpoint controlling the sessions' subscriptions, or null
+     *         if none is configured
+     */
+    public ControlServer getControlServer() {
+        return controlServer;
+    }
+
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return the http client of the streaming connections
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public LoginService getLoginService() {
+        return loginService;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the factory of the sessions' websocket clients, or null if no
+     *         session uses the WebSocket transport
+     */
+    public WebSocketClientFactory getWebSocketClientFactory() {
+        return webSocketClientFactory;
+    }
+
+    /**
+     * @return the running session of the user, or null
+     */
+    public Debugger getSession(String username) {
+        for (Debugger session : sessions) {
+            if (username.equals(session.getConfiguration().getUsername())) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the running sessions
+     */
+    public List<Debugger> getSessions() {
+        return new ArrayList<Debugger>(sessions);
+    }
+
+    /**
+     * Start the engine, then block until it is stopped
+     * 
+     * @throws IllegalStateException
+     *             if the engine stopped because none of its sessions could be
+     *             started
+     */
+    public void run() throws Exception {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StreamingEngine.this.stop();
+            }
+        }, "Streaming engine shutdown"));
+        start();
+        System.out.println("Waiting for streamed data from salesforce ...");
+        stopped.await();
+        if (failed) {
+            throw new IllegalStateException("No session could be started");
+        }
+    }
+
+    /**
+     * Start the shared http client and every configured session. Sessions log
+     * in and handshake concurrently, in the background; a session that fails
+     * to log in is removed, and the engine stops once no session is left.
+     */
+    public void start() throws Exception {
+        startStages(true);
+        System.out.println("Running streaming client ...");
+        httpClient = makeHttpClient("streaming", configuration.getMaxThreads());
+        adminHttpClient = makeHttpClient("admin",
+                                         configuration.getAdminMaxThreads());
+        for (Configuration session : configuration.getSessions()) {
+            if (session.getTransport() == Transport.WEBSOCKET) {
+                webSocketClientFactory = new WebSocketClientFactory(
+                                                                    httpClient.getThreadPool());
+                webSocketClientFactory.start();
+                break;
+            }
+        }
+        if (configuration.getCaptureDirectory() != null) {
+            captureLog = new CaptureLog(
+                                        new File(
+                                                 configuration.getCaptureDirectory()),
+                                        configuration.getCaptureSegmentSize());
+            long interval = configuration.getCaptureSyncInterval();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    captureLog.sync();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        loginService = new LoginService(adminHttpClient,
+                                        configuration.getSessionTtl());
+        if (configuration.getClusterDirectory() != null) {
+            cluster = new Cluster(
+                                  this,
+                                  new FileMembership(
+                                                     new File(
+                                                              configuration.getClusterDirectory()),
+                                                     configuration.getClusterExpiry()),
+                                  configuration.getClusterNode(),
+                                  new File(configuration.getClusterDirectory()),
+                                  configuration.getClusterVirtualNodes());
+        }
+        for (Configuration session : configuration.getSessions()) {
+            sessions.add(newSession(session));
+        }
+        if (cluster != null) {
+            cluster.start(configuration.getClusterHeartbeat());
+        }
+        if (configuration.getControlPort() >= 0) {
+            controlServer = new ControlServer(this,
+                                              configuration.getControlHost(),
+                                              configuration.getControlPort());
+            controlServer.start();
+        }
+        for (final Debugger debugger : sessions) {
+            debugger.start().addCallback(new SettableFuture.Callback<Message>() {
+                @Override
+                public void onFailure(Throwable failure) {
+                    System.out.println("Session for: "
+                                       + debugger.getConfiguration().getUsername()
+                                       + " failed to start: " + failure);
+                    sessions.remove(debugger);
+                    if (sessions.isEmpty()) {
+                        failed = true;
+                        stop();
+                    }
+                }
+
+                @Override
+                public void onSuccess(Message handshake) {
+                    System.out.println("Session for: "
+                                       + debugger.getConfiguration().getUsername()
+                                       + " handshaken");
+                }
+            });
+        }
+    }
+
+    /**
+     * Start the stages that handle messages, and create every configured
+     * session without starting it, so that messages can be fed to the
+     * sessions' subscriptions without a server. Nothing is captured or
+     * checkpointed, so the checkpoints of the live sessions are left as they
+     * are.
+     */
+    public void startOffline() throws Exception {
+        startStages(false);
+        for (Configuration session : configuration.getSessions()) {
+            sessions.add(newSession(session));
+        }
+    }
+
+    /**
+     * @param session
+     *            - the configuration of the session
+     * @return a new, unstarted session of this engine
+     */
+    protected Debugger newSession(Configuration session) {
+        return new Debugger(session, this);
+    }
+
+    /**
+     * Disconnect every session and stop the shared http client
+     */
+    public void stop() {
+        if (controlServer != null) {
+            try {
+                controlServer.stop();
+            } catch (Exception e) {
+                System.out.println("Error stopping control server: " + e);
+            }
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        for (Debugger debugger : sessions) {
+            debugger.stop();
+        }
+        sessions.clear();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        // nothing may be delivered, dispatched or checkpointed once the
+        // capture log and checkpoint store are closed
+        if (webSocketClientFactory != null) {
+            try {
+                webSocketClientFactory.stop();
+            } catch (Exception e) {
+                System.out.println("Error stopping websocket client factory: "
+                                   + e);
+            }
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.stop();
+            } catch (Exception e) {
+                System.out.println("Error stopping http client: " + e);
+            }
+        }
+        if (adminHttpClient != null) {
+            try {
+                adminHttpClient.stop();
+            } catch (Exception e) {
+                System.out.println("Error stopping admin http client: " + e);
+            }
+        }
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+        if (checkpointStore != null) {
+            try {
+                checkpointStore.close();
+            } catch (IOException e) {
+                System.out.println("Error closing checkpoint store: " + e);
+            }
+        }
+        if (captureLog != null) {
+            try {
+                captureLog.close();
+            } catch (IOException e) {
+                System.out.println("Error closing capture log: " + e);
+            }
+        }
+        if (reporter != null) {
+            reporter.stop();
+        }
+        EventLog.getDefault().flush();
+        stopped.countDown();
+    }
+
+    /**
+     * Start the logging, metrics, scheduler, checkpoint store and dispatcher
+     * 
+     * @param checkpoint
+     *            - true if the configured checkpoint store is to be opened
+     */
+    private void startStages(boolean checkpoint) throws IOException {
+        if (!configuration.isDebug()) {
+            ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("root")).setLevel(Level.INFO);
+        }
+        EventLog.getDefault().setLevel(configuration.getLogLevel());
+        if (configuration.getMetricsInterval() > 0) {
+            reporter = new MetricsReporter(Metrics.getDefault(),
+                                           configuration.getMetricsFile());
+            reporter.start(configuration.getMetricsInterval(),
+                           TimeUnit.SECONDS);
+        }
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                     new DaemonThreadFactory(
+                                                                             "Session recovery"));
+        File checkpointFile = null;
+        if (checkpoint && configuration.getClusterDirectory() != null) {
+            File directory = new File(configuration.getClusterDirectory());
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create cluster directory: "
+                                      + directory);
+            }
+            checkpointFile = Cluster.checkpointFile(directory,
+                                                    configuration.getClusterNode());
+        } else if (checkpoint && configuration.getCheckpointFile() != null) {
+            checkpointFile = new File(configuration.getCheckpointFile());
+        }
+        if (checkpointFile != null) {
+            checkpointStore = new CheckpointStore(checkpointFile);
+            long interval = configuration.getCheckpointSyncInterval();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkpointStore.sync();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        dispatcher = new Dispatcher(
+                                    Dispatcher.newWorkerPool(configuration.getDispatchThreads(),
+                                                             configuration.isDispatchVirtualThreads()),
+                                    configuration.getDispatchQueueSize(),
+                                    configuration.getDispatchOverflow(),
+                                    new File(configuration.getSpillDirectory()));
+    }
+
+    /**
+     * @return a started http client, pooling keep alive connections and TLS
+     *         sessions as configured
+     */
+    private HttpClient makeHttpClient(String name, int maxThreads)
+                                                                  throws Exception {
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads);
+        threadPool.setName(name);
+        threadPool.setDaemon(true);
+
+        HttpClient client = new HttpClient();
+        client.setThreadPool(threadPool);
+        client.setConnectTimeout(configuration.getConnectTimeout());
+        client.setTimeout(configuration.getReadTimeout());
+        client.setIdleTimeout(configuration.getIdleTimeout());
+        client.setMaxConnectionsPerAddress(configuration.getMaxConnectionsPerAddress());
+        client.setRequestBufferSize(configuration.getRequestBufferSize());
+        client.setResponseBufferSize(configuration.getResponseBufferSize());
+        SslContextFactory ssl = client.getSslContextFactory();
+        ssl.setSessionCachingEnabled(configuration.isTlsSessionCache());
+        ssl.setSslSessionCacheSize(configuration.getTlsSessionCacheSize());
+        ssl.setSslSessionTimeout(configuration.getTlsSessionTimeout());
+        client.start();
+        return client;
+    }
+}
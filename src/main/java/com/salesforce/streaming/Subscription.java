@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cometd.bayeux.Message;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The declaration of a channel subscription that selects a slice of the
+ * channel's events. The <code>filter</code> maps sobject fields to the values
+ * events must carry in them, and <code>fields</code> projects the sobject of
+ * each printed event onto the listed fields.
+ * 
+ * Where the Streaming API filters a channel itself - PushTopic and generic
+ * streaming channels - the filter is compiled into the query string of the
+ * subscribed channel name, e.g. <code>/topic/Accounts?Industry=Banking</code>,
+ * so that events outside the slice never cross the wire. Otherwise it is a
+ * predicate applied as each event is received, before it is captured,
+ * dispatched or decoded. When the <code>sobject</code> of a PushTopic is
+ * given, the subscription also compiles into the query of a PushTopic that
+ * selects the same slice.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Subscription {
+    private static final String SOBJECT = "sobject";
+
+    /**
+     * @param channel
+     * @return an unfiltered subscription of the channel
+     */
+    public static Subscription of(String channel) {
+        Subscription subscription = new Subscription();
+        subscription.channel = channel;
+        return subscription;
+    }
+
+    /**
+     * @return the value of a field of the sobject carried by the message, as
+     *         a string, or null if it is missing, null or not a scalar
+     */
+    @SuppressWarnings("unchecked")
+    static String sobjectField(Message message, String name) {
+        if (message instanceof RawMessage) {
+            return ((RawMessage) message).getSObjectField(name);
+        }
+        Object data = message.getData();
+        if (!(data instanceof Map)) {
+            return null;
+        }
+        Object sobject = ((Map<String, Object>) data).get(SOBJECT);
+        if (!(sobject instanceof Map)) {
+            return null;
+        }
+        Object value = ((Map<String, Object>) sobject).get(name);
+        return value == null || value instanceof Map || value instanceof List ? null
+                                                                             : value.toString();
+    }
+
+    private String              channel;
+    @JsonProperty
+    private List<String>        fields       = new ArrayList<String>();
+    @JsonProperty
+    private Map<String, String> filter       = new LinkedHashMap<String, String>();
+    @JsonProperty
+    private boolean             serverFilter = true;
+    @JsonProperty
+    private String              sobject;
+
+    /**
+     * @return true if the message is in the slice of the channel the
+     *         subscription selects. Messages of a filter the server applies
+     *         are always accepted.
+     */
+    public boolean accept(Message message) {
+        if (filter.isEmpty() || isServerFiltered()) {
+            return true;
+        }
+        for (Map.Entry<String, String> condition : filter.entrySet()) {
+            if (!condition.getValue().equals(sobjectField(message,
+                                                          condition.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the channel as configured
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the sobject fields printed events are projected onto, or an
+     *         empty list for the whole event
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the values of the sobject fields the subscription selects
+     */
+    public Map<String, String> getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the name of the channel subscribed to, which carries the filter
+     *         when the server applies it. The events of the subscription are
+     *         delivered on this channel.
+     */
+    public String getName() {
+        if (!isServerFiltered()) {
+            return channel;
+        }
+        StringBuilder name = new StringBuilder(channel);
+        char separator = '?';
+        for (Map.Entry<String, String> condition : filter.entrySet()) {
+            name.append(separator).append(condition.getKey()).append('=');
+            name.append(condition.getValue());
+            separator = '&';
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return the SOQL query of a PushTopic that selects the fields and the
+     *         slice of the subscription, or null if no sobject is configured
+     */
+    public String getQuery() {
+        if (sobject == null) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder("SELECT Id");
+        for (String field : fields) {
+            if (!"Id".equals(field)) {
+                query.append(", ").append(field);
+            }
+        }
+        for (String field : filter.keySet()) {
+            if (!"Id".equals(field) && !fields.contains(field)) {
+                query.append(", ").append(field);
+            }
+        }
+        query.append(" FROM ").append(sobject);
+        String conjunction = " WHERE ";
+        for (Map.Entry<String, String> condition : filter.entrySet()) {
+            query.append(conjunction).append(condition.getKey()).append(" = '");
+            query.append(condition.getValue().replace("'", "\\'")).append('\'');
+            conjunction = " AND ";
+        }
+        return query.toString();
+    }
+
+    /**
+     * @return the sobject type of the PushTopic, or null
+     */
+    public String getSobject() {
+        return sobject;
+    }
+
+    /**
+     * @return true if only a slice of the channel's events is selected, so
+     *         that the replay ids of the events delivered are not consecutive
+     */
+    public boolean isFiltered() {
+        return !filter.isEmpty();
+    }
+
+    /**
+     * @return true if the filter is applied by the server. PushTopic and
+     *         generic streaming channels are filtered by the server, unless
+     *         <code>serverFilter</code> is false.
+     */
+    public boolean isServerFiltered() {
+        return isFiltered()
+               && serverFilter
+               && (channel.startsWith("/topic/") || channel.startsWith("/u/"));
+    }
+
+    /**
+     * @return the message, or a projection of its channel, event and the
+     *         selected fields of its sobject when fields are selected
+     */
+    public Object project(Message message) {
+        if (fields.isEmpty()) {
+            return message;
+        }
+        Map<String, Object> projected = new LinkedHashMap<String, Object>();
+        for (String field : fields) {
+            projected.put(field, sobjectField(message, field));
+        }
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("replayId", ReplayExtension.replayId(message));
+        data.put("createdDate", DeliveryLatency.createdDate(message));
+        data.put(SOBJECT, projected);
+        Map<String, Object> projection = new LinkedHashMap<String, Object>();
+        projection.put(Message.CHANNEL_FIELD, message.getChannel());
+        projection.put(Message.DATA_FIELD, data);
+        return projection;
+    }
+
+    /**
+     * @return a copy of the subscription, of the channel
+     */
+    Subscription bind(String channel) {
+        Subscription subscription = new Subscription();
+        subscription.channel = channel;
+        subscription.fields = fields;
+        subscription.filter = filter;
+        subscription.serverFilter = serverFilter;
+        subscription.sobject = sobject;
+        return subscription;
+    }
+}
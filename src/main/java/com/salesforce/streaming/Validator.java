@@ -0,0 +1,348 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import java.util.Arrays;
+
+import org.cometd.bayeux.Message;
+import org.eclipse.jetty.io.Buffer;
+
+import com.salesforce.streaming.EventLog.Level;
+import com.salesforce.streaming.Metrics.ChannelMetrics;
+
+/**
+ * Checks the completeness of the events delivered on one channel, in the
+ * order they are handled. Replay ids are tracked in a bitmap over a sliding
+ * window below the highest id seen, so that a repeated id is a duplicate, an
+ * id below the highest is out of order, and ids that fall below the window
+ * can no longer be checked, and are counted as late. Only when the replay ids
+ * of the channel are known to be consecutive, as those assigned by the
+ * {@link LocalStreamingServer}, are the ids skipped by a jump counted as
+ * missing until they arrive. The Streaming API promises that replay ids
+ * increase, not that they are consecutive, and the replay ids of a channel
+ * whose subscription selects a slice of its events never are; otherwise gaps
+ * are not counted, and events lost without a trace go undetected.
+ * 
+ * Messages are also identified by their id or, for events without a replay
+ * id, by a hash of their JSON; a bounded set of the most recent identities
+ * catches duplicates that the replay ids cannot. The outcomes are counted in
+ * the {@link ChannelMetrics} of the channel. Memory is fixed by the size of
+ * the window and of the set, however many events are validated.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Validator {
+
+    public static enum Outcome {
+        /**
+         * The event was seen before
+         */
+        DUPLICATE,
+        /**
+         * The event is older than the replay window, and cannot be checked
+         */
+        LATE,
+        /**
+         * The event is new, and follows every event seen before
+         */
+        NEW,
+        /**
+         * The event is new, but older than an event seen before
+         */
+        OUT_OF_ORDER;
+    }
+
+    /**
+     * A set of the most recently added 64 bit identities, evicting the oldest
+     * once full. The identities are kept in an open addressed table, and in
+     * a ring buffer of their insertion order.
+     */
+    static class RecentIds {
+        private final int    mask;
+        private int          next;
+        private final long[] ring;
+        private int          size;
+        private final long[] table;
+
+        RecentIds(int capacity) {
+            ring = new long[capacity];
+            int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            table = new long[slots];
+            mask = slots - 1;
+        }
+
+        /**
+         * @return false if the identity is already in the set
+         */
+        boolean add(long id) {
+            if (id == 0) {
+                id = 1;
+            }
+            int slot = slot(id);
+            while (table[slot] != 0) {
+                if (table[slot] == id) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == ring.length) {
+                remove(ring[next]);
+            } else {
+                size++;
+            }
+            table[free(id)] = id;
+            ring[next] = id;
+            next = (next + 1) % ring.length;
+            return true;
+        }
+
+        /**
+         * @return the first free slot of the identity's probe sequence
+         */
+        private int free(long id) {
+            int slot = slot(id);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Remove an identity, shifting back the entries of its probe
+         * sequence so that no lookup stops short at the hole
+         */
+        private void remove(long id) {
+            int hole = slot(id);
+            while (table[hole] != id) {
+                hole = (hole + 1) & mask;
+            }
+            int current = hole;
+            while (true) {
+                current = (current + 1) & mask;
+                long entry = table[current];
+                if (entry == 0) {
+                    break;
+                }
+                int home = slot(entry);
+                boolean movable = hole <= current ? home <= hole
+                                                    || home > current
+                                                 : home <= hole
+                                                   && home > current;
+                if (movable) {
+                    table[hole] = entry;
+                    hole = current;
+                }
+            }
+            table[hole] = 0;
+        }
+
+        private int slot(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+    private static final int  MAX_WINDOW = 1 << 30;
+
+    /**
+     * @return the 64 bit FNV-1a hash of the characters
+     */
+    static long hash(CharSequence chars) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < chars.length(); i++) {
+            hash = (hash ^ chars.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the 64 bit FNV-1a hash of the bytes of the buffer
+     */
+    static long hash(Buffer bytes) {
+        long hash = FNV_OFFSET;
+        byte[] array = bytes.array();
+        for (int i = bytes.getIndex(); i < bytes.putIndex(); i++) {
+            hash = (hash ^ (array[i] & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private final String         channel;
+    private final long           channelHash;
+    private final boolean        contiguous;
+    private long                 first   = -1;
+    private long                 highest = -1;
+    private final ChannelMetrics metrics;
+    private final RecentIds      recent;
+    private final long[]         seen;
+    private final int            window;
+
+    /**
+     * @param channel
+     *            - the channel validated
+     * @param window
+     *            - the number of replay ids below the highest one that are
+     *            checked, rounded up to a power of two of at least 64, so
+     *            that every id in the window has a bit of its own
+     * @param recentIds
+     *            - the number of recent message identities remembered
+     */
+    public Validator(String channel, int window, int recentIds) {
+        this(channel, window, recentIds, false);
+    }
+
+    /**
+     * @param channel
+     *            - the channel validated
+     * @param window
+     *            - the number of replay ids below the highest one that are
+     *            checked, rounded up to a power of two of at least 64, so
+     *            that every id in the window has a bit of its own
+     * @param recentIds
+     *            - the number of recent message identities remembered
+     * @param contiguous
+     *            - true if the replay ids of the events delivered are known
+     *            to be consecutive, so that skipped ids are missing events
+     */
+    public Validator(String channel, int window, int recentIds,
+                     boolean contiguous) {
+        this.channel = channel;
+        this.contiguous = contiguous;
+        channelHash = hash(channel);
+        this.window = Math.max(64,
+                               Integer.highestOneBit(Math.min(MAX_WINDOW - 1,
+                                                              Math.max(1,
+                                                                       window - 1))) << 1);
+        seen = new long[this.window / 64];
+        recent = new RecentIds(Math.max(1, recentIds));
+        metrics = Metrics.getDefault().channel(channel);
+    }
+
+    /**
+     * Check a message delivered on the channel, and count the outcome
+     */
+    public synchronized Outcome validate(Message message) {
+        Long replayId = ReplayExtension.replayId(message);
+        Outcome outcome = replayId == null ? Outcome.NEW : replay(replayId);
+        if (!recent.add(identity(message, replayId))) {
+            outcome = Outcome.DUPLICATE;
+        }
+        switch (outcome) {
+            case DUPLICATE:
+                metrics.onDuplicate();
+                EventLog.getDefault().log(Level.DEBUG,
+                                          "Duplicate event: %s on: %s",
+                                          replayId, channel);
+                break;
+            case LATE:
+                metrics.onLate();
+                break;
+            case OUT_OF_ORDER:
+                metrics.onOutOfOrder();
+                EventLog.getDefault().log(Level.DEBUG,
+                                          "Out of order event: %s on: %s",
+                                          replayId, channel);
+                break;
+            default:
+                break;
+        }
+        return outcome;
+    }
+
+    private boolean isSeen(long replayId) {
+        int bit = (int) (replayId & (window - 1));
+        return (seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return the identity of the message in the set of recent identities
+     */
+    private long identity(Message message, Long replayId) {
+        String id = message.getId();
+        if (id != null) {
+            return hash(id);
+        }
+        if (replayId != null) {
+            return channelHash * 31 + replayId;
+        }
+        if (message instanceof RawMessage) {
+            return hash(((RawMessage) message).getBuffer());
+        }
+        return hash(message.getJSON());
+    }
+
+    private void mark(long replayId, boolean value) {
+        int bit = (int) (replayId & (window - 1));
+        if (value) {
+            seen[bit >>> 6] |= 1L << bit;
+        } else {
+            seen[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+
+    private Outcome replay(long replayId) {
+        if (highest < 0) {
+            first = highest = replayId;
+            mark(replayId, true);
+            return Outcome.NEW;
+        }
+        if (replayId > highest) {
+            long skipped = replayId - highest - 1;
+            if (skipped >= window) {
+                Arrays.fill(seen, 0);
+            } else {
+                for (long id = highest + 1; id < replayId; id++) {
+                    mark(id, false);
+                }
+            }
+            if (skipped > 0 && contiguous) {
+                metrics.onMissing(skipped);
+                EventLog.getDefault().log(Level.DEBUG,
+                                          "Missing %s events before: %s on: %s",
+                                          skipped, replayId, channel);
+            }
+            highest = replayId;
+            mark(replayId, true);
+            return Outcome.NEW;
+        }
+        if (replayId <= highest - window) {
+            return Outcome.LATE;
+        }
+        if (isSeen(replayId)) {
+            return Outcome.DUPLICATE;
+        }
+        mark(replayId, true);
+        if (replayId > first && contiguous) {
+            metrics.onMissing(-1);
+        }
+        return Outcome.OUT_OF_ORDER;
+    }
+}
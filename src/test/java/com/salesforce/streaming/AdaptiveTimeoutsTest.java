@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.common.HashMapMessage;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class AdaptiveTimeoutsTest {
+    /**
+     * Times exchanges by a clock the test advances
+     */
+    private static class Timeouts extends AdaptiveTimeouts {
+        private long now;
+
+        private Timeouts(Configuration configuration) {
+            super(configuration,
+                  Metrics.getDefault().session("adaptive@example.com"));
+        }
+
+        @Override
+        long nanoTime() {
+            return now;
+        }
+    }
+
+    private int      ids;
+    private Timeouts timeouts;
+
+    @Before
+    public void setUp() throws Exception {
+        String yaml = "minNetworkDelay: 100\n" + "maxNetworkDelay: 10000\n"
+                      + "connectTimeout: 1500\n";
+        timeouts = new Timeouts(
+                                Configuration.fromYaml(new ByteArrayInputStream(
+                                                                                yaml.getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void testConnectCountsOnlyTheTimeBeyondTheAdvisedTimeout() {
+        advise(10000, 0);
+        assertEquals(10000, timeouts.getAdvisedTimeout());
+        assertEquals(0, timeouts.getAdvisedInterval());
+
+        exchange(Channel.META_CONNECT, 10300, true);
+        // 300 + 4 * 150
+        assertEquals(900, timeouts.getNetworkDelay());
+
+        // answered early, with events, or unsuccessfully
+        exchange(Channel.META_CONNECT, 4000, true);
+        exchange(Channel.META_CONNECT, 10900, false);
+        assertEquals(900, timeouts.getNetworkDelay());
+    }
+
+    @Test
+    public void testExpireDoublesUpToTheBound() {
+        assertEquals(5000, timeouts.getNetworkDelay());
+        timeouts.onExpire();
+        assertEquals(10000, timeouts.getNetworkDelay());
+        timeouts.onExpire();
+        assertEquals(10000, timeouts.getNetworkDelay());
+
+        exchange(Channel.META_HANDSHAKE, 200, true);
+        assertEquals(600, timeouts.getNetworkDelay());
+        timeouts.onExpire();
+        assertEquals(1200, timeouts.getNetworkDelay());
+        timeouts.onExpire();
+        timeouts.onExpire();
+        timeouts.onExpire();
+        assertEquals(9600, timeouts.getNetworkDelay());
+        timeouts.onExpire();
+        assertEquals(10000, timeouts.getNetworkDelay());
+    }
+
+    @Test
+    public void testInitialTimeouts() {
+        assertEquals(-1, timeouts.getAdvisedTimeout());
+        assertEquals(-1, timeouts.getAdvisedInterval());
+        assertEquals(5000, timeouts.getNetworkDelay());
+        assertEquals(1500, timeouts.getConnectTimeout());
+    }
+
+    @Test
+    public void testLowerBounds() {
+        exchange(Channel.META_HANDSHAKE, 10, true);
+        // 10 + 4 * 5
+        assertEquals(100, timeouts.getNetworkDelay());
+        // 3 * 10 + 4 * 5
+        assertEquals(100, timeouts.getConnectTimeout());
+    }
+
+    @Test
+    public void testRoundTripsAreSmoothed() {
+        exchange(Channel.META_HANDSHAKE, 200, true);
+        // round trip 200, variation 100
+        assertEquals(600, timeouts.getNetworkDelay());
+        assertEquals(1000, timeouts.getConnectTimeout());
+
+        exchange(Channel.META_SUBSCRIBE, 100, true);
+        // variation 0.75 * 100 + 0.25 * 100 = 100, round trip 0.875 * 200 +
+        // 0.125 * 100 = 187.5
+        assertEquals(588, timeouts.getNetworkDelay());
+        assertEquals(962, timeouts.getConnectTimeout());
+
+        exchange(Channel.META_SUBSCRIBE, 187, true);
+        exchange(Channel.META_SUBSCRIBE, 188, true);
+        // steady round trips: variation 56.48..., round trip 187.50...
+        assertEquals(414, timeouts.getNetworkDelay());
+        assertEquals(788, timeouts.getConnectTimeout());
+    }
+
+    @Test
+    public void testUpperBounds() {
+        exchange(Channel.META_HANDSHAKE, 5000, true);
+        // 5000 + 4 * 2500
+        assertEquals(10000, timeouts.getNetworkDelay());
+        // 3 * 5000 + 4 * 2500
+        assertEquals(1500, timeouts.getConnectTimeout());
+    }
+
+    /**
+     * Reply to a handshake with the advice of the server
+     */
+    private void advise(long timeout, long interval) {
+        HashMapMessage reply = new HashMapMessage();
+        reply.setChannel(Channel.META_HANDSHAKE);
+        reply.setSuccessful(true);
+        reply.getAdvice(true).put(Message.TIMEOUT_FIELD, timeout);
+        reply.getAdvice().put(Message.INTERVAL_FIELD, interval);
+        timeouts.rcvMeta(null, reply);
+    }
+
+    /**
+     * Send a meta message, and receive its reply after the elapsed time
+     */
+    private void exchange(String channel, long elapsed, boolean successful) {
+        String id = Integer.toString(++ids);
+        HashMapMessage message = new HashMapMessage();
+        message.setChannel(channel);
+        message.setId(id);
+        timeouts.sendMeta(null, message);
+        timeouts.now += elapsed * 1000000;
+        HashMapMessage reply = new HashMapMessage();
+        reply.setChannel(channel);
+        reply.setId(id);
+        reply.setSuccessful(successful);
+        timeouts.rcvMeta(null, reply);
+    }
+}
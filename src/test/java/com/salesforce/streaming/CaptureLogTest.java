@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.salesforce.streaming.CaptureLog.RecordHandler;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class CaptureLogTest {
+    private static class Records implements RecordHandler {
+        private final List<String> channels = new ArrayList<String>();
+        private final List<String> json     = new ArrayList<String>();
+        private final List<Long>   received = new ArrayList<Long>();
+
+        @Override
+        public void record(long received, String channel, byte[] json)
+                                                                        throws Exception {
+            this.received.add(received);
+            channels.add(channel);
+            this.json.add(new String(json, "UTF-8"));
+        }
+    }
+
+    private static RawMessage message(String channel, int id) throws Exception {
+        byte[] json = String.format("[{\"channel\":\"%s\",\"data\":{\"id\":%s}}]",
+                                    channel, id).getBytes("UTF-8");
+        return RawMessage.parse(json, 0, json.length).get(0);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAfterCloseIsDiscarded() throws Exception {
+        File directory = folder.getRoot();
+        CaptureLog log = new CaptureLog(directory, 4096);
+        log.append(1, message("/topic/a", 1));
+        log.close();
+        log.append(2, message("/topic/a", 2));
+        log.sync();
+        log.close();
+
+        Records records = new Records();
+        assertEquals(1, CaptureLog.read(directory, records));
+        assertEquals(Long.valueOf(1), records.received.get(0));
+    }
+
+    @Test
+    public void testBadChannelLengthReadsAsEndOfSegment() throws Exception {
+        File directory = folder.getRoot();
+        CaptureLog log = new CaptureLog(directory, 4096);
+        log.append(1, message("/topic/a", 1));
+        log.close();
+
+        // a record long enough for its header, but not for its channel
+        RandomAccessFile raf = new RandomAccessFile(segment(directory), "rw");
+        try {
+            raf.seek(raf.length());
+            raf.writeInt(8 + 2 + 4);
+            raf.writeLong(2);
+            raf.writeShort(100);
+            raf.write("/top".getBytes("UTF-8"));
+        } finally {
+            raf.close();
+        }
+
+        Records records = new Records();
+        assertEquals(1, CaptureLog.read(directory, records));
+    }
+
+    @Test
+    public void testLengthPastEndOfSegmentIsIgnored() throws Exception {
+        File directory = folder.getRoot();
+        CaptureLog log = new CaptureLog(directory, 4096);
+        log.append(1, message("/topic/a", 1));
+        log.close();
+
+        RandomAccessFile raf = new RandomAccessFile(segment(directory), "rw");
+        try {
+            raf.seek(raf.length());
+            raf.writeInt(Integer.MAX_VALUE);
+            raf.writeLong(2);
+            raf.writeShort(0);
+        } finally {
+            raf.close();
+        }
+
+        Records records = new Records();
+        assertEquals(1, CaptureLog.read(directory, records));
+    }
+
+    @Test
+    public void testRecordsRoundTripAcrossSegments() throws Exception {
+        File directory = folder.getRoot();
+        // small segments, so that the capture rolls over several times
+        CaptureLog log = new CaptureLog(directory, 256);
+        for (int i = 0; i < 100; i++) {
+            log.append(1000 + i, message("/topic/" + (i % 3), i));
+        }
+        log.close();
+        // a capture reopened on the directory continues after it
+        log = new CaptureLog(directory, 256);
+        log.append(2000, message("/topic/x", 100));
+        log.close();
+
+        Records records = new Records();
+        assertEquals(101, CaptureLog.read(directory, records));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Long.valueOf(1000 + i), records.received.get(i));
+            assertEquals("/topic/" + (i % 3), records.channels.get(i));
+            assertEquals(String.format("{\"channel\":\"/topic/%s\",\"data\":{\"id\":%s}}",
+                                       i % 3, i), records.json.get(i));
+        }
+        assertEquals(Long.valueOf(2000), records.received.get(100));
+        assertEquals("/topic/x", records.channels.get(100));
+    }
+
+    @Test
+    public void testTornRecordReadsAsEndOfSegment() throws Exception {
+        File directory = folder.getRoot();
+        CaptureLog log = new CaptureLog(directory, 4096);
+        log.append(1, message("/topic/a", 1));
+        log.append(2, message("/topic/a", 2));
+        log.close();
+
+        // a crash after the body of a record was written, but before its
+        // length
+        RandomAccessFile raf = new RandomAccessFile(segment(directory), "rw");
+        try {
+            raf.seek(raf.length());
+            raf.writeInt(0);
+            raf.writeLong(3);
+            raf.writeShort(8);
+            raf.write("/topic/a{}".getBytes("UTF-8"));
+        } finally {
+            raf.close();
+        }
+
+        Records records = new Records();
+        assertEquals(2, CaptureLog.read(directory, records));
+        assertEquals(Long.valueOf(2), records.received.get(1));
+    }
+
+    private File segment(File directory) {
+        File[] segments = directory.listFiles();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+}
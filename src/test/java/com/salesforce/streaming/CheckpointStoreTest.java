@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class CheckpointStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompactionKeepsLatestIds() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoints");
+        CheckpointStore store = new CheckpointStore(file);
+        // ~32 bytes a record, so the 1MB log is compacted several times
+        for (long id = 1; id <= 200000; id++) {
+            store.checkpoint(CheckpointStore.key("user", "/topic/"
+                                                         + (id % 7)), id);
+        }
+        store.close();
+
+        Map<String, Long> positions = CheckpointStore.read(file);
+        assertEquals(7, positions.size());
+        for (int channel = 0; channel < 7; channel++) {
+            long expected = 200000 - ((200000 - channel) % 7);
+            assertEquals(Long.valueOf(expected),
+                         positions.get(CheckpointStore.key("user", "/topic/"
+                                                                   + channel)));
+        }
+    }
+
+    @Test
+    public void testRecordsSurviveReopen() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoints");
+        CheckpointStore store = new CheckpointStore(file);
+        store.checkpoint("a", 10);
+        store.checkpoint("b", 5);
+        store.checkpoint("a", 7);
+        store.checkpoint("a", 12);
+        store.close();
+
+        store = new CheckpointStore(file);
+        assertEquals(Long.valueOf(12), store.get("a"));
+        assertEquals(Long.valueOf(5), store.get("b"));
+        assertNull(store.get("c"));
+        store.close();
+    }
+
+    @Test
+    public void testTornRecordReadsAsEndOfLog() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoints");
+        CheckpointStore store = new CheckpointStore(file);
+        store.checkpoint("key", 1);
+        store.close();
+
+        // a crash after the key and id were written, but before the length
+        int end = 4 + "key".length() + 8;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(end + 4);
+            raf.write("key".getBytes("UTF-8"));
+            raf.writeLong(99);
+        } finally {
+            raf.close();
+        }
+
+        store = new CheckpointStore(file);
+        assertEquals(Long.valueOf(1), store.get("key"));
+        store.checkpoint("other", 2);
+        store.close();
+
+        Map<String, Long> positions = CheckpointStore.read(file);
+        assertEquals(Long.valueOf(1), positions.get("key"));
+        assertEquals(Long.valueOf(2), positions.get("other"));
+    }
+
+    @Test
+    public void testLengthPastEndOfFileIsIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoints");
+        CheckpointStore store = new CheckpointStore(file);
+        store.checkpoint("key", 1);
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4 + "key".length() + 8);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+
+        Map<String, Long> positions = CheckpointStore.read(file);
+        assertEquals(1, positions.size());
+        assertEquals(Long.valueOf(1), positions.get("key"));
+    }
+
+    @Test
+    public void testCheckpointAfterCloseIsIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoints");
+        CheckpointStore store = new CheckpointStore(file);
+        store.checkpoint("key", 1);
+        store.close();
+        store.checkpoint("key", 2);
+        store.sync();
+        store.close();
+
+        assertEquals(Long.valueOf(1), CheckpointStore.read(file).get("key"));
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpEventListenerWrapper;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class CompressionListenerTest {
+    /**
+     * Records what the listener passes on
+     */
+    private static class Decoded extends HttpEventListenerWrapper {
+        private boolean                     complete;
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        private final List<String>          headers = new ArrayList<String>();
+
+        @Override
+        public void onResponseComplete() throws IOException {
+            complete = true;
+        }
+
+        @Override
+        public void onResponseContent(Buffer buffer) throws IOException {
+            content.write(buffer.asArray());
+        }
+
+        @Override
+        public void onResponseHeader(Buffer name, Buffer value)
+                                                               throws IOException {
+            headers.add(name.toString());
+        }
+    }
+
+    private static final byte[] CONTENT;
+    private static final int    FCOMMENT = 0x10;
+    private static final int    FEXTRA   = 0x04;
+    private static final int    FHCRC    = 0x02;
+    private static final int    FNAME    = 0x08;
+
+    static {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            json.append(String.format("{\"channel\":\"/topic/Channel%s\",\"data\":{\"id\":%s}},",
+                                      i % 5, i));
+        }
+        json.setCharAt(json.length() - 1, ']');
+        CONTENT = json.toString().getBytes();
+    }
+
+    /**
+     * @return the content, deflated raw or zlib wrapped
+     */
+    private static byte[] deflate(byte[] content, boolean nowrap) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+        deflater.setInput(content);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the content as a gzip member with the optional header fields of
+     *         the flags
+     */
+    private static byte[] gzip(byte[] content, int flags) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x1f);
+        out.write(0x8b);
+        out.write(8);
+        out.write(flags);
+        for (int i = 0; i < 6; i++) {
+            out.write(0);
+        }
+        if ((flags & FEXTRA) != 0) {
+            // a length over 255, to check its byte order
+            byte[] extra = new byte[300];
+            Arrays.fill(extra, (byte) 0x1f);
+            out.write(extra.length & 0xff);
+            out.write(extra.length >>> 8);
+            out.write(extra, 0, extra.length);
+        }
+        if ((flags & FNAME) != 0) {
+            out.write("capture.json".getBytes(), 0, 12);
+            out.write(0);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            out.write("a comment".getBytes(), 0, 9);
+            out.write(0);
+        }
+        if ((flags & FHCRC) != 0) {
+            out.write(0x12);
+            out.write(0x34);
+        }
+        byte[] body = deflate(content, true);
+        out.write(body, 0, body.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        int32(out, (int) crc.getValue());
+        int32(out, content.length);
+        return out.toByteArray();
+    }
+
+    private static void int32(ByteArrayOutputStream out, int value) {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Deliver an encoded response to a compression listener, in chunks of the
+     * given size
+     */
+    private static Decoded receive(String encoding, byte[] body, int chunkSize)
+                                                                               throws IOException {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setRequestURI("/cometd/23.0/connect");
+        Decoded decoded = new Decoded();
+        exchange.setEventListener(decoded);
+        CompressionListener listener = new CompressionListener(exchange, true);
+        listener.onResponseStatus(new ByteArrayBuffer("HTTP/1.1"), 200,
+                                  new ByteArrayBuffer("OK"));
+        if (encoding != null) {
+            listener.onResponseHeader(new ByteArrayBuffer("Content-Encoding"),
+                                      new ByteArrayBuffer(encoding));
+        }
+        listener.onResponseHeader(new ByteArrayBuffer("Content-Length"),
+                                  new ByteArrayBuffer(
+                                                      String.valueOf(body.length)));
+        listener.onResponseHeaderComplete();
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            listener.onResponseContent(new ByteArrayBuffer(
+                                                           body,
+                                                           offset,
+                                                           Math.min(chunkSize,
+                                                                    body.length
+                                                                            - offset)));
+        }
+        listener.onResponseComplete();
+        return decoded;
+    }
+
+    @Test
+    public void testCorruptChecksumIsRejected() throws Exception {
+        byte[] body = gzip(CONTENT, 0);
+        body[body.length - 8] ^= 1;
+        try {
+            receive("gzip", body, body.length);
+            fail("corrupt checksum accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt gzip"));
+        }
+    }
+
+    @Test
+    public void testDeflateInEveryChunkSize() throws Exception {
+        byte[] body = deflate(CONTENT, false);
+        for (int chunkSize = 1; chunkSize <= body.length; chunkSize++) {
+            Decoded decoded = receive("deflate", body, chunkSize);
+            assertArrayEquals("chunk size: " + chunkSize, CONTENT,
+                              decoded.content.toByteArray());
+            assertTrue(decoded.complete);
+        }
+    }
+
+    @Test
+    public void testGzipHeaderFieldsInEveryChunkSize() throws Exception {
+        int[] flags = { 0, FEXTRA, FNAME, FCOMMENT, FHCRC,
+                FEXTRA | FNAME | FCOMMENT | FHCRC, FNAME | FHCRC };
+        for (int flag : flags) {
+            byte[] body = gzip(CONTENT, flag);
+            // every small chunk size, so that each header field is split at
+            // every point, then a sample of the larger ones
+            for (int chunkSize = 1; chunkSize <= body.length; chunkSize += chunkSize < 64 ? 1
+                                                                                           : 61) {
+                Decoded decoded = receive("gzip", body, chunkSize);
+                assertArrayEquals("flags: " + flag + " chunk size: "
+                                  + chunkSize, CONTENT,
+                                  decoded.content.toByteArray());
+                assertTrue(decoded.complete);
+                // the encoding and compressed length are not passed on
+                assertTrue(decoded.headers.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testIdentityIsPassedOn() throws Exception {
+        Decoded decoded = receive(null, CONTENT, 100);
+        assertArrayEquals(CONTENT, decoded.content.toByteArray());
+        assertEquals(Arrays.asList("Content-Length"), decoded.headers);
+    }
+
+    @Test
+    public void testNotGzipIsRejected() throws Exception {
+        byte[] body = gzip(CONTENT, 0);
+        body[1] = 0;
+        try {
+            receive("gzip", body, 7);
+            fail("bad magic accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Not gzip"));
+        }
+    }
+
+    @Test
+    public void testTruncatedGzipIsRejected() throws Exception {
+        byte[] body = gzip(CONTENT, FNAME);
+        for (int length : new int[] { 5, 20, body.length / 2, body.length - 3 }) {
+            try {
+                receive("gzip", Arrays.copyOf(body, length), 64);
+                fail("truncated at " + length + " accepted");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(),
+                           e.getMessage().startsWith("Truncated gzip"));
+            }
+        }
+    }
+}
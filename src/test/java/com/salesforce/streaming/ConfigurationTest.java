@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.salesforce.streaming.Debugger.Transport;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class ConfigurationTest {
+    private static Configuration parse(String yaml) throws Exception {
+        return Configuration.fromYaml(new ByteArrayInputStream(
+                                                               yaml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testSessionsInheritTopLevelSettings() throws Exception {
+        Configuration configuration = parse("transport: WEBSOCKET\n"
+                                            + "validationWindow: 1024\n"
+                                            + "subscriptions:\n"
+                                            + "  /topic/Accounts:\n"
+                                            + "    sobject: Account\n"
+                                            + "    filter: {Region: EMEA}\n"
+                                            + "sessions:\n"
+                                            + "  - username: one\n"
+                                            + "    channels: [/topic/Accounts]\n"
+                                            + "  - username: two\n"
+                                            + "    transport: LONG_POLLING\n"
+                                            + "    subscriptions: {}\n"
+                                            + "    channels: [/topic/Accounts]\n");
+        List<Configuration> sessions = configuration.getSessions();
+        assertEquals(2, sessions.size());
+
+        Configuration one = sessions.get(0);
+        assertEquals("one", one.getUsername());
+        assertEquals(Transport.WEBSOCKET, one.getTransport());
+        assertEquals(1024, one.getValidationWindow());
+        assertTrue(one.getSubscription("/topic/Accounts").isFiltered());
+
+        Configuration two = sessions.get(1);
+        assertEquals("two", two.getUsername());
+        assertEquals(Transport.LONG_POLLING, two.getTransport());
+        assertEquals(1024, two.getValidationWindow());
+        assertFalse(two.getSubscription("/topic/Accounts").isFiltered());
+        assertEquals(Arrays.asList("/topic/Accounts"), two.getChannels());
+    }
+
+    @Test
+    public void testSingleSessionIsItself() throws Exception {
+        Configuration configuration = parse("username: solo\n"
+                                            + "channels: [/topic/Accounts]\n");
+        assertEquals(1, configuration.getSessions().size());
+        assertSame(configuration, configuration.getSessions().get(0));
+    }
+}
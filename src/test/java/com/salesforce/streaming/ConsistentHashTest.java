@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class ConsistentHashTest {
+    private static final int KEYS          = 10000;
+    private static final int VIRTUAL_NODES = 128;
+
+    private static String key(int i) {
+        return CheckpointStore.key("user", "/topic/Channel" + i);
+    }
+
+    @Test
+    public void testEmptyRingOwnsNothing() {
+        assertNull(new ConsistentHash(Collections.<String> emptyList(),
+                                      VIRTUAL_NODES).owner(key(0)));
+    }
+
+    @Test
+    public void testJoiningNodeOnlyTakesKeys() {
+        ConsistentHash before = new ConsistentHash(Arrays.asList("a", "b",
+                                                                 "c"),
+                                                   VIRTUAL_NODES);
+        ConsistentHash after = new ConsistentHash(Arrays.asList("a", "b",
+                                                                "c", "d"),
+                                                  VIRTUAL_NODES);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String owner = after.owner(key(i));
+            if (!owner.equals(before.owner(key(i)))) {
+                assertEquals("d", owner);
+                moved++;
+            }
+        }
+        // about a quarter of the keys move to the new node
+        assertTrue("moved: " + moved, moved > KEYS / 8 && moved < KEYS / 2);
+    }
+
+    @Test
+    public void testKeysAreSpreadOverNodes() {
+        List<String> nodes = Arrays.asList("a", "b", "c", "d", "e");
+        ConsistentHash ring = new ConsistentHash(nodes, VIRTUAL_NODES);
+        Map<String, Integer> owned = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            String owner = ring.owner(key(i));
+            Integer count = owned.get(owner);
+            owned.put(owner, count == null ? 1 : count + 1);
+        }
+        assertEquals(nodes.size(), owned.size());
+        for (Map.Entry<String, Integer> entry : owned.entrySet()) {
+            assertTrue(entry.toString(), entry.getValue() > KEYS / 10
+                                         && entry.getValue() < KEYS * 3 / 10);
+        }
+    }
+
+    @Test
+    public void testLeavingNodeOnlyGivesUpItsKeys() {
+        ConsistentHash before = new ConsistentHash(Arrays.asList("a", "b",
+                                                                 "c"),
+                                                   VIRTUAL_NODES);
+        ConsistentHash after = new ConsistentHash(Arrays.asList("a", "c"),
+                                                  VIRTUAL_NODES);
+        for (int i = 0; i < KEYS; i++) {
+            String owner = before.owner(key(i));
+            if (!owner.equals("b")) {
+                assertEquals(owner, after.owner(key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testOwnerIsIndependentOfNodeOrder() {
+        List<String> nodes = new ArrayList<String>(Arrays.asList("node-1",
+                                                                 "node-2",
+                                                                 "node-3",
+                                                                 "node-4"));
+        ConsistentHash ring = new ConsistentHash(nodes, VIRTUAL_NODES);
+        Collections.reverse(nodes);
+        ConsistentHash reversed = new ConsistentHash(nodes, VIRTUAL_NODES);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.owner(key(i)), reversed.owner(key(i)));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URL;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class DeliveryLatencyTest {
+
+    @Test
+    public void testOffsetsAreKeptPerServer() {
+        DeliveryLatency latency = DeliveryLatency.getDefault();
+        String ahead = DeliveryLatency.server("ahead.example.com", 443);
+        String behind = DeliveryLatency.server("behind.example.com", 443);
+        // a server 5s ahead, and one 5s behind, answering within 100ms
+        latency.onServerDate(ahead, 1005000, 1000000, 1000100);
+        latency.onServerDate(behind, 995000, 1000000, 1000100);
+        assertEquals(4900 + (6000 - 4900) / 2, latency.getClockOffset(ahead));
+        assertEquals(-5100 + (-4000 + 5100) / 2,
+                     latency.getClockOffset(behind));
+        assertEquals(0, latency.getClockOffset("unknown.example.com:443"));
+        assertEquals(0, latency.getClockOffset(null));
+    }
+
+    @Test
+    public void testOffsetNarrowsAndStartsOverWhenStepped() {
+        DeliveryLatency latency = DeliveryLatency.getDefault();
+        String server = DeliveryLatency.server("narrows.example.com", 443);
+        latency.onServerDate(server, 2000000, 1999500, 1999600);
+        // (400, 1500) intersected with (300, 1300)
+        latency.onServerDate(server, 2001000, 2000700, 2000700);
+        assertEquals(400 + (1300 - 400) / 2, latency.getClockOffset(server));
+        // a clock stepped by an hour leaves the intersection empty
+        latency.onServerDate(server, 5602000, 2002000, 2002000);
+        assertEquals(3600000 + 500, latency.getClockOffset(server));
+    }
+
+    @Test
+    public void testServerOfUrl() throws Exception {
+        assertEquals("na1.salesforce.com:443",
+                     DeliveryLatency.server(new URL(
+                                                    "https://na1.salesforce.com/cometd/26.0")));
+        assertEquals("localhost:8080",
+                     DeliveryLatency.server(new URL("http://localhost:8080")));
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.bayeux.client.ClientSessionChannel.MessageListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.salesforce.streaming.Dispatcher.LaneHandlers;
+import com.salesforce.streaming.Dispatcher.Overflow;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class DispatcherTest {
+    /**
+     * Records the key and sequence of each message, in the order handled
+     */
+    private static class Recorder implements MessageListener {
+        private final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onMessage(ClientSessionChannel channel, Message message) {
+            handled.add(describe(message));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitIdle(Dispatcher dispatcher)
+                                                        throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!dispatcher.isIdle() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(dispatcher.isIdle());
+    }
+
+    private static String describe(Message message) {
+        return key(message) + ":" + Subscription.sobjectField(message, "Seq");
+    }
+
+    private static String key(Message message) {
+        return Subscription.sobjectField(message, "Id");
+    }
+
+    private static RawMessage message(String key, int seq) throws Exception {
+        byte[] json = String.format("[{\"channel\":\"/topic/Accounts\",\"data\":{\"sobject\":{\"Id\":\"%s\",\"Seq\":%s}}}]",
+                                    key, seq).getBytes("UTF-8");
+        return RawMessage.parse(json, 0, json.length).get(0);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompletedInChannelOrder() throws Exception {
+        final CountDownLatch slow = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch fast = new CountDownLatch(9);
+        final AtomicIntegerArray lanes = new AtomicIntegerArray(2);
+        LaneHandlers handlers = new LaneHandlers() {
+            @Override
+            public MessageListener handler(final int lane) {
+                return new MessageListener() {
+                    @Override
+                    public void onMessage(ClientSessionChannel channel,
+                                          Message message) {
+                        if (key(message).equals("b")) {
+                            lanes.set(0, lane);
+                            started.countDown();
+                            await(slow);
+                        } else {
+                            lanes.set(1, lane);
+                            fast.countDown();
+                        }
+                    }
+                };
+            }
+        };
+        Recorder completed = new Recorder();
+        Dispatcher dispatcher = new Dispatcher(
+                                               Executors.newFixedThreadPool(4),
+                                               16, Overflow.BLOCK, null);
+        try {
+            MessageListener listener = dispatcher.dispatch("/topic/completed",
+                                                           new Recorder(),
+                                                           "Id", 2, handlers,
+                                                           completed);
+            // the head of the channel is held on one lane while the other
+            // lane finishes everything after it
+            List<String> expected = new ArrayList<String>();
+            listener.onMessage(null, message("b", 0));
+            expected.add("b:0");
+            for (int i = 1; i < 10; i++) {
+                listener.onMessage(null, message("a", i));
+                expected.add("a:" + i);
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertTrue(fast.await(10, TimeUnit.SECONDS));
+            assertTrue(lanes.get(0) != lanes.get(1));
+            assertTrue(completed.handled.isEmpty());
+            assertFalse(dispatcher.isIdle());
+
+            slow.countDown();
+            awaitIdle(dispatcher);
+            assertEquals(expected, completed.handled);
+        } finally {
+            slow.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testPerKeyOrderAcrossLanes() throws Exception {
+        final Map<String, List<Integer>> handled = new HashMap<String, List<Integer>>();
+        final Map<String, Integer> laneOfKey = new HashMap<String, Integer>();
+        final List<String> moved = Collections.synchronizedList(new ArrayList<String>());
+        LaneHandlers handlers = new LaneHandlers() {
+            @Override
+            public MessageListener handler(final int lane) {
+                return new MessageListener() {
+                    @Override
+                    public void onMessage(ClientSessionChannel channel,
+                                          Message message) {
+                        int seq = Integer.parseInt(Subscription.sobjectField(message,
+                                                                             "Seq"));
+                        if (seq % 7 == 0) {
+                            Thread.yield();
+                        }
+                        String key = key(message);
+                        synchronized (handled) {
+                            Integer previous = laneOfKey.put(key, lane);
+                            if (previous != null && previous != lane) {
+                                moved.add(key);
+                            }
+                            List<Integer> sequence = handled.get(key);
+                            if (sequence == null) {
+                                sequence = new ArrayList<Integer>();
+                                handled.put(key, sequence);
+                            }
+                            sequence.add(seq);
+                        }
+                    }
+                };
+            }
+        };
+        Recorder completed = new Recorder();
+        Dispatcher dispatcher = new Dispatcher(
+                                               Executors.newFixedThreadPool(8),
+                                               64, Overflow.BLOCK, null);
+        try {
+            MessageListener listener = dispatcher.dispatch("/topic/keys",
+                                                           new Recorder(),
+                                                           "Id", 4, handlers,
+                                                           completed);
+            Random random = new Random(0x5eed);
+            Map<String, List<Integer>> sent = new HashMap<String, List<Integer>>();
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 2000; i++) {
+                String key = "001" + random.nextInt(16);
+                List<Integer> sequence = sent.get(key);
+                if (sequence == null) {
+                    sequence = new ArrayList<Integer>();
+                    sent.put(key, sequence);
+                }
+                sequence.add(i);
+                expected.add(key + ":" + i);
+                listener.onMessage(null, message(key, i));
+            }
+            awaitIdle(dispatcher);
+
+            assertTrue(moved.toString(), moved.isEmpty());
+            synchronized (handled) {
+                assertEquals(sent, handled);
+                assertTrue(new HashSet<Integer>(laneOfKey.values()).size() > 1);
+            }
+            assertEquals(expected, completed.handled);
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testSourcePausesAtCapacity() throws Exception {
+        final int capacity = 4;
+        final CountDownLatch gate = new CountDownLatch(1);
+        LaneHandlers handlers = new LaneHandlers() {
+            @Override
+            public MessageListener handler(int lane) {
+                return new MessageListener() {
+                    @Override
+                    public void onMessage(ClientSessionChannel channel,
+                                          Message message) {
+                        await(gate);
+                    }
+                };
+            }
+        };
+        Recorder ordered = new Recorder();
+        Recorder completed = new Recorder();
+        Dispatcher dispatcher = new Dispatcher(
+                                               Executors.newFixedThreadPool(4),
+                                               capacity, Overflow.BLOCK, null);
+        try {
+            MessageListener listener = dispatcher.dispatch("/topic/paused",
+                                                           ordered, "Id", 2,
+                                                           handlers, completed);
+            // capacity messages in flight, and as many again left queued
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 2 * capacity; i++) {
+                listener.onMessage(null, message("a" + i % 2, i));
+                expected.add("a" + i % 2 + ":" + i);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (ordered.handled.size() < capacity
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(100);
+            assertEquals(expected.subList(0, capacity), ordered.handled);
+            assertTrue(completed.handled.isEmpty());
+            assertFalse(dispatcher.isIdle());
+
+            gate.countDown();
+            awaitIdle(dispatcher);
+            assertEquals(expected, ordered.handled);
+            assertEquals(expected, completed.handled);
+        } finally {
+            gate.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testStopDeletesSpillFiles() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        Dispatcher dispatcher = new Dispatcher(
+                                               Executors.newFixedThreadPool(1),
+                                               1, Overflow.SPILL,
+                                               folder.getRoot());
+        try {
+            MessageListener listener = dispatcher.dispatch("/topic/stopped",
+                                                           new MessageListener() {
+                                                               @Override
+                                                               public void onMessage(ClientSessionChannel channel,
+                                                                                     Message message) {
+                                                                   await(gate);
+                                                               }
+                                                           });
+            for (int i = 0; i < 4; i++) {
+                listener.onMessage(null, message("a", i));
+            }
+            assertEquals(1, folder.getRoot().list().length);
+
+            dispatcher.stop();
+            assertEquals(0, folder.getRoot().list().length);
+
+            long dropped = Metrics.getDefault().channel("/topic/stopped").getDropped();
+            listener.onMessage(null, message("a", 4));
+            assertEquals(dropped + 1,
+                         Metrics.getDefault().channel("/topic/stopped").getDropped());
+            assertEquals(0, folder.getRoot().list().length);
+        } finally {
+            gate.countDown();
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.junit.Test;
+
+import com.salesforce.streaming.SoapLoginUtil.LoginResponseParser;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class LoginResponseParserTest {
+    private static final String SERVER_URL = "https://na1.salesforce.com/services/Soap/u/22.0/00D000000000001";
+    private static final String SESSION_ID = "00D000000000001!AQ4AQFhQuP5VnKMcA0Qv6pFBcQ5U_0XBNsLXBQBIkkKO9vvBFm8xOuW8ZNWkLdJ3DnhRRNTWWiUDy8ZSAGFdj8H6lnRdKJy3";
+
+    private static String envelope(String result) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+               + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns=\"urn:partner.soap.sforce.com\">"
+               + "<soapenv:Body><loginResponse><result>" + result
+               + "</result></loginResponse></soapenv:Body></soapenv:Envelope>";
+    }
+
+    private static LoginResponseParser parse(byte[] response, int chunkSize) {
+        LoginResponseParser parser = new LoginResponseParser();
+        for (int offset = 0; offset < response.length; offset += chunkSize) {
+            parser.parse(new ByteArrayBuffer(response, offset,
+                                             Math.min(chunkSize,
+                                                      response.length - offset)));
+        }
+        return parser;
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        InputStream in = LoginResponseParserTest.class.getResourceAsStream("/"
+                                                                           + name);
+        assertNotNull(name, in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testAttributeValuesMayContainMarkup() throws Exception {
+        LoginResponseParser parser = parse(envelope("<serverUrl note=\"a > b\" other='<sessionId>'>"
+                                                            + SERVER_URL
+                                                            + "</serverUrl><sessionId>"
+                                                            + SESSION_ID
+                                                            + "</sessionId>").getBytes("UTF-8"),
+                                           7);
+        assertTrue(parser.isComplete());
+        assertEquals(SERVER_URL, parser.getServerUrl());
+        assertEquals(SESSION_ID, parser.getSessionId());
+    }
+
+    @Test
+    public void testCdataIsTakenLiterally() throws Exception {
+        byte[] response = envelope("<serverUrl><![CDATA[" + SERVER_URL
+                                           + "?a=1&b=]]]]><![CDATA[>]]></serverUrl>"
+                                           + "<sessionId>00D!<![CDATA[a]b]]c]]>&amp;d</sessionId>").getBytes("UTF-8");
+        for (int chunkSize = 1; chunkSize <= response.length; chunkSize++) {
+            LoginResponseParser parser = parse(response, chunkSize);
+            assertTrue(parser.isComplete());
+            assertEquals(SERVER_URL + "?a=1&b=]]>", parser.getServerUrl());
+            assertEquals("00D!a]b]]c&d", parser.getSessionId());
+        }
+    }
+
+    @Test
+    public void testCommentsAreSkipped() throws Exception {
+        LoginResponseParser parser = parse(envelope("<!-- <sessionId>wrong</sessionId> -->"
+                                                            + "<serverUrl>"
+                                                            + SERVER_URL
+                                                            + "</serverUrl><sessionId>00D<!-- - -- --->!"
+                                                            + "x</sessionId>").getBytes("UTF-8"),
+                                           3);
+        assertTrue(parser.isComplete());
+        assertEquals("00D!x", parser.getSessionId());
+    }
+
+    @Test
+    public void testDoctypeIsRejected() throws Exception {
+        LoginResponseParser parser = parse(("<!DOCTYPE Envelope [<!ENTITY x \"<sessionId>\">]>" + envelope("<serverUrl>"
+                                                                                                          + SERVER_URL
+                                                                                                          + "</serverUrl><sessionId>"
+                                                                                                          + SESSION_ID
+                                                                                                          + "</sessionId>")).getBytes("UTF-8"),
+                                           16);
+        assertFalse(parser.isComplete());
+        assertNotNull(parser.getError());
+    }
+
+    @Test
+    public void testFault() throws Exception {
+        LoginResponseParser parser = parse(resource("login-fault.xml"), 512);
+        assertFalse(parser.isComplete());
+        assertNull(parser.getError());
+    }
+
+    @Test
+    public void testInvalidCharacterReferencesAreRejected() throws Exception {
+        for (String reference : new String[] { "&#xZZ;", "&#x;", "&#;",
+                "&#-65;", "&#1114112;", "&#x110000;", "&#99999999999;",
+                "&#xD800;" }) {
+            LoginResponseParser parser = parse(envelope("<serverUrl>"
+                                                                + reference
+                                                                + "</serverUrl><sessionId>"
+                                                                + SESSION_ID
+                                                                + "</sessionId>").getBytes("UTF-8"),
+                                               64);
+            assertFalse(reference, parser.isComplete());
+            assertNotNull(reference, parser.getError());
+        }
+    }
+
+    @Test
+    public void testLoginResponseInEveryChunking() throws Exception {
+        byte[] response = resource("login-response.xml");
+        for (int chunkSize = 1; chunkSize <= response.length; chunkSize++) {
+            LoginResponseParser parser = parse(response, chunkSize);
+            assertTrue("chunk size " + chunkSize, parser.isComplete());
+            assertEquals(SERVER_URL, parser.getServerUrl());
+            assertEquals(SESSION_ID, parser.getSessionId());
+            assertEquals(7200, parser.getSecondsValid());
+        }
+    }
+
+    @Test
+    public void testReferencesAndMultibyteCharacters() throws Exception {
+        byte[] response = envelope("<serverUrl>" + SERVER_URL
+                                           + "</serverUrl><sessionId>&lt;&#233;&#x4E2D;\u00e9\u4e2d&gt;</sessionId>").getBytes("UTF-8");
+        for (int chunkSize = 1; chunkSize <= 8; chunkSize++) {
+            LoginResponseParser parser = parse(response, chunkSize);
+            assertEquals("<\u00e9\u4e2d\u00e9\u4e2d>", parser.getSessionId());
+        }
+    }
+
+    @Test
+    public void testSessionSecondsValid() throws Exception {
+        String session = "<serverUrl>" + SERVER_URL + "</serverUrl><sessionId>"
+                         + SESSION_ID + "</sessionId>";
+        LoginResponseParser parser = parse(envelope(session
+                                                    + "<userInfo><sessionSecondsValid> 900 </sessionSecondsValid></userInfo>").getBytes("UTF-8"),
+                                           5);
+        assertTrue(parser.isComplete());
+        assertEquals(900, parser.getSecondsValid());
+
+        parser = parse(envelope(session).getBytes("UTF-8"), 5);
+        assertTrue(parser.isComplete());
+        assertEquals(-1, parser.getSecondsValid());
+
+        parser = parse(envelope(session
+                                + "<userInfo><sessionSecondsValid>2h</sessionSecondsValid></userInfo>").getBytes("UTF-8"),
+                       5);
+        assertNotNull(parser.getError());
+    }
+
+    @Test
+    public void testUnknownEntityIsRejected() throws Exception {
+        LoginResponseParser parser = parse(envelope("<serverUrl>&custom;</serverUrl><sessionId>"
+                                                            + SESSION_ID
+                                                            + "</sessionId>").getBytes("UTF-8"),
+                                           64);
+        assertFalse(parser.isComplete());
+        assertNotNull(parser.getError());
+    }
+}
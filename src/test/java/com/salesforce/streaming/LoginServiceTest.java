@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class LoginServiceTest {
+    @Test
+    public void testTtlIsBoundBySessionSecondsValid() {
+        LoginService service = new LoginService(null, 2 * 60 * 60 * 1000L);
+        assertEquals(2 * 60 * 60 * 1000L,
+                     service.ttl(new String[] { "00D!x", "https://na1" }));
+        assertEquals(2 * 60 * 60 * 1000L,
+                     service.ttl(new String[] { "00D!x", "https://na1", null }));
+        assertEquals(15 * 60 * 1000L,
+                     service.ttl(new String[] { "00D!x", "https://na1", "900" }));
+        assertEquals(2 * 60 * 60 * 1000L,
+                     service.ttl(new String[] { "00D!x", "https://na1",
+                             "28800" }));
+        assertEquals(2 * 60 * 60 * 1000L,
+                     service.ttl(new String[] { "00D!x", "https://na1",
+                             Long.toString(Long.MAX_VALUE) }));
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares the scanner with Jackson on randomly generated responses
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class RawMessageTest {
+    private static final String       ALPHABET = "abcXYZ019 _-/.:\"\\\b\f\n\r\t\u00e9\u4e2d\ud83d\ude00\u0001";
+    private static final ObjectMapper MAPPER   = new ObjectMapper();
+
+    private static Object anyValue(Random random, int depth) {
+        switch (random.nextInt(depth > 2 ? 5 : 7)) {
+            case 0:
+                return string(random);
+            case 1:
+                return random.nextLong();
+            case 2:
+                return random.nextBoolean();
+            case 3:
+                return null;
+            case 4:
+                return random.nextInt(1000) - 500;
+            case 5: {
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    map.put(string(random), anyValue(random, depth + 1));
+                }
+                return map;
+            }
+            default: {
+                List<Object> list = new ArrayList<Object>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    list.add(anyValue(random, depth + 1));
+                }
+                return list;
+            }
+        }
+    }
+
+    private static Map<String, Object> message(Random random) {
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        List<String> order = new ArrayList<String>();
+        order.add("channel");
+        order.add("id");
+        order.add("data");
+        order.add("clientId");
+        order.add("ext");
+        for (int i = order.size() - 1; i > 0; i--) {
+            order.add(order.remove(random.nextInt(i + 1)));
+        }
+        for (String field : order) {
+            if (field.equals("channel")) {
+                message.put(field, "/topic/" + string(random));
+            } else if (field.equals("id") && random.nextBoolean()) {
+                message.put(field, string(random));
+            } else if (field.equals("data") && random.nextInt(4) > 0) {
+                Map<String, Object> data = new LinkedHashMap<String, Object>();
+                Map<String, Object> event = new LinkedHashMap<String, Object>();
+                event.put("note", anyValue(random, 1));
+                if (random.nextInt(4) > 0) {
+                    event.put("replayId", (long) random.nextInt(1 << 20));
+                }
+                if (random.nextBoolean()) {
+                    event.put("createdDate", "2012-10-0" + random.nextInt(10)
+                                             + "T00:00:00.000+0000");
+                }
+                data.put("event", event);
+                Map<String, Object> sobject = new LinkedHashMap<String, Object>();
+                sobject.put("Name", string(random));
+                sobject.put("Id", "001" + random.nextInt(1000000));
+                sobject.put("Amount", random.nextInt(10000) - 5000);
+                sobject.put("Flag", random.nextBoolean());
+                sobject.put("Nested", anyValue(random, 1));
+                sobject.put("Empty", null);
+                data.put("sobject", sobject);
+                message.put(field, data);
+            } else if (!field.equals("id") && !field.equals("data")) {
+                message.put(field, anyValue(random, 0));
+            }
+        }
+        return message;
+    }
+
+    private static String string(Random random) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = random.nextInt(12); i > 0; i--) {
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            if (Character.isLowSurrogate(c)) {
+                continue;
+            }
+            builder.append(c);
+            if (Character.isHighSurrogate(c)) {
+                builder.append('\ude00');
+            }
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testEmptyArray() throws Exception {
+        assertTrue(RawMessage.parse("[ ]".getBytes("UTF-8"), 0, 3).isEmpty());
+    }
+
+    @Test
+    public void testEscapedFieldsAreDecoded() throws Exception {
+        byte[] json = "{\"channel\":\"\\/topic\\/A\\u00e9\",\"id\":\"1\\\"2\",\"data\":{\"event\":{\"replayId\":-7,\"createdDate\":\"now\"},\"sobject\":{\"Id\":\"a\\nb\",\"Amount\":12}}}".getBytes("UTF-8");
+        List<RawMessage> messages = RawMessage.parse(json, 0, json.length);
+        assertEquals(1, messages.size());
+        RawMessage message = messages.get(0);
+        assertEquals("/topic/A\u00e9", message.getChannel());
+        assertEquals("1\"2", message.getId());
+        assertEquals(Long.valueOf(-7), message.getReplayId());
+        assertEquals("now", message.getCreatedDate());
+        assertEquals("a\nb", message.getSObjectField("Id"));
+        assertEquals("12", message.getSObjectField("Amount"));
+        assertFalse(message.isDecoded());
+    }
+
+    @Test
+    public void testEscapedKeysAreDecoded() throws Exception {
+        byte[] json = "{\"chan\\u006eel\":\"/a\",\"d\\u0061ta\":{\"\\u0065vent\":{\"replayId\":3}}}".getBytes("UTF-8");
+        RawMessage message = RawMessage.parse(json, 0, json.length).get(0);
+        assertEquals("/a", message.getChannel());
+        assertEquals(Long.valueOf(3), message.getReplayId());
+        assertFalse(message.isPublishReply());
+    }
+
+    @Test
+    public void testFractionalReplayIdIsIgnored() throws Exception {
+        byte[] json = "[{\"channel\":\"/topic/A\",\"data\":{\"event\":{\"replayId\":1.5e3}}}]".getBytes("UTF-8");
+        assertNull(RawMessage.parse(json, 0, json.length).get(0).getReplayId());
+    }
+
+    @Test
+    public void testMalformedContentIsRejected() throws Exception {
+        String[] malformed = { "", "[", "{", "[{]", "[{}", "[{},]", "[{}]x",
+                "{\"a\" 1}", "{\"a\":}", "{\"a\":tru}", "{\"a\":nul}",
+                "{\"a\":1,}", "{\"a\":\"\\u12\"}", "{\"channel\":\"\\u12\"}",
+                "{\"a\":[1 2]}", "{\"a\":-}", "{a:1}", "[1]" };
+        for (String json : malformed) {
+            byte[] bytes = json.getBytes("UTF-8");
+            try {
+                RawMessage.parse(bytes, 0, bytes.length);
+                fail("accepted: " + json);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testOffsetAndLength() throws Exception {
+        byte[] json = "xx[{\"channel\":\"/a\"},{\"channel\":\"/b\"}]yy".getBytes("UTF-8");
+        List<RawMessage> messages = RawMessage.parse(json, 2, json.length - 4);
+        assertEquals(2, messages.size());
+        assertEquals("/a", messages.get(0).getChannel());
+        assertEquals("{\"channel\":\"/b\"}", messages.get(1).getJSON());
+    }
+
+    @Test
+    public void testRandomResponsesMatchJackson() throws Exception {
+        Random random = new Random(0x5EED);
+        for (int round = 0; round < 500; round++) {
+            List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+            for (int i = random.nextInt(5); i >= 0; i--) {
+                expected.add(message(random));
+            }
+            String text = random.nextBoolean() ? MAPPER.writeValueAsString(expected)
+                                              : MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(expected);
+            byte[] json = text.getBytes("UTF-8");
+            List<RawMessage> messages = RawMessage.parse(json, 0, json.length);
+            assertEquals(text, expected.size(), messages.size());
+            for (int i = 0; i < expected.size(); i++) {
+                verify(text, expected.get(i), messages.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedResponsesAreRejected() throws Exception {
+        Random random = new Random(0x7A11);
+        for (int round = 0; round < 50; round++) {
+            List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+            messages.add(message(random));
+            byte[] json = MAPPER.writeValueAsBytes(messages);
+            for (int length = 0; length < json.length; length++) {
+                try {
+                    RawMessage.parse(json, 0, length);
+                    fail("accepted truncation at " + length + " of "
+                         + new String(json, "UTF-8"));
+                } catch (ParseException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verify(String text, Map<String, Object> expected,
+                        RawMessage message) throws Exception {
+        assertEquals(text, expected.get("channel"), message.getChannel());
+        assertEquals(text, expected.get("id"), message.getId());
+        Map<String, Object> data = (Map<String, Object>) expected.get("data");
+        Map<String, Object> event = data == null ? null
+                                                : (Map<String, Object>) data.get("event");
+        Map<String, Object> sobject = data == null ? null
+                                                  : (Map<String, Object>) data.get("sobject");
+        assertEquals(text, event == null ? null : event.get("replayId"),
+                     message.getReplayId());
+        assertEquals(text, event == null ? null : event.get("createdDate"),
+                     message.getCreatedDate());
+        assertEquals(text, data == null, message.isPublishReply());
+        for (String field : new String[] { "Id", "Name", "Amount", "Flag",
+                "Nested", "Empty", "Missing" }) {
+            Object value = sobject == null ? null : sobject.get(field);
+            String scalar = value == null || value instanceof Map
+                            || value instanceof List ? null : value.toString();
+            assertEquals(text + " " + field, scalar,
+                         message.getSObjectField(field));
+        }
+        assertFalse(message.isDecoded());
+
+        Map<String, Object> raw = MAPPER.readValue(message.getJSON(),
+                                                   Map.class);
+        assertEquals(text, MAPPER.readValue(MAPPER.writeValueAsString(expected),
+                                            Map.class), raw);
+        assertEquals(text, new HashMap<String, Object>(raw),
+                     new HashMap<String, Object>(message));
+        assertTrue(message.isDecoded());
+    }
+}
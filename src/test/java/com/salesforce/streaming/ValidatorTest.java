@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2012, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.salesforce.streaming;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.salesforce.streaming.Validator.Outcome;
+import com.salesforce.streaming.Validator.RecentIds;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class ValidatorTest {
+    private static RawMessage event(String channel, long replayId)
+                                                                  throws Exception {
+        byte[] json = String.format("[{\"channel\":\"%s\",\"data\":{\"event\":{\"replayId\":%s}}}]",
+                                    channel, replayId).getBytes("UTF-8");
+        return RawMessage.parse(json, 0, json.length).get(0);
+    }
+
+    @Test
+    public void testGapsAreOnlyMissingWhenContiguous() throws Exception {
+        String channel = "/topic/testGapsAreOnlyMissingWhenContiguous";
+        Validator validator = new Validator(channel, 64, 16);
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 1)));
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 10)));
+        assertEquals(Outcome.OUT_OF_ORDER,
+                     validator.validate(event(channel, 5)));
+        assertEquals(0, Metrics.getDefault().channel(channel).getMissing());
+    }
+
+    @Test
+    public void testMissingUntilArrived() throws Exception {
+        String channel = "/topic/testMissingUntilArrived";
+        Validator validator = new Validator(channel, 64, 16, true);
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 1)));
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 10)));
+        assertEquals(8, Metrics.getDefault().channel(channel).getMissing());
+        assertEquals(Outcome.OUT_OF_ORDER,
+                     validator.validate(event(channel, 5)));
+        assertEquals(7, Metrics.getDefault().channel(channel).getMissing());
+        assertEquals(Outcome.DUPLICATE, validator.validate(event(channel, 5)));
+        assertEquals(7, Metrics.getDefault().channel(channel).getMissing());
+    }
+
+    @Test
+    public void testRecentIdsMatchesInsertionOrderedSet() {
+        Random random = new Random(0x5eed);
+        for (int capacity : new int[] { 1, 2, 7, 64, 1000 }) {
+            RecentIds recent = new RecentIds(capacity);
+            Set<Long> expected = new LinkedHashSet<Long>();
+            // a small range of ids, so that probe sequences collide, ids
+            // repeat and evictions shift entries back across the table
+            for (int i = 0; i < 50000; i++) {
+                long id = 1 + random.nextInt(capacity * 3);
+                boolean added = !expected.contains(id);
+                if (added) {
+                    if (expected.size() == capacity) {
+                        expected.remove(expected.iterator().next());
+                    }
+                    expected.add(id);
+                }
+                assertEquals("capacity: " + capacity + " add: " + i, added,
+                             recent.add(id));
+            }
+        }
+    }
+
+    @Test
+    public void testWindowNotAPowerOfTwo() throws Exception {
+        String channel = "/topic/testWindowNotAPowerOfTwo";
+        // one recent identity, so that duplicates are caught by the bitmap
+        Validator validator = new Validator(channel, 192, 1, true);
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 65)));
+        assertEquals(Outcome.OUT_OF_ORDER,
+                     validator.validate(event(channel, 1)));
+        // every id of the requested window still has a bit of its own
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 250)));
+        for (long id = 250 - 191; id < 250; id++) {
+            if (id != 65) {
+                assertEquals("id: " + id, Outcome.OUT_OF_ORDER,
+                             validator.validate(event(channel, id)));
+            }
+        }
+        assertEquals(Outcome.DUPLICATE, validator.validate(event(channel, 65)));
+    }
+
+    @Test
+    public void testWindowSlidesOverBitmap() throws Exception {
+        String channel = "/topic/testWindowSlidesOverBitmap";
+        // one recent identity, so that duplicates are caught by the bitmap
+        Validator validator = new Validator(channel, 64, 1, true);
+        for (long id = 1; id <= 64; id++) {
+            assertEquals(Outcome.NEW, validator.validate(event(channel, id)));
+        }
+        // 65 reuses the bit of 1, which falls out of the window
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 65)));
+        assertEquals(Outcome.LATE, validator.validate(event(channel, 1)));
+        assertEquals(Outcome.DUPLICATE, validator.validate(event(channel, 2)));
+
+        // a jump clears the bits of the skipped ids, even those whose bits
+        // were set for ids of the previous window
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 100)));
+        assertEquals(34, Metrics.getDefault().channel(channel).getMissing());
+        assertEquals(Outcome.OUT_OF_ORDER,
+                     validator.validate(event(channel, 70)));
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 101)));
+        assertEquals(Outcome.DUPLICATE,
+                     validator.validate(event(channel, 70)));
+        assertEquals(Outcome.LATE, validator.validate(event(channel, 30)));
+
+        // a jump past the whole window clears it
+        assertEquals(Outcome.NEW, validator.validate(event(channel, 1000)));
+        assertEquals(Outcome.OUT_OF_ORDER,
+                     validator.validate(event(channel, 1000 - 63)));
+        assertEquals(Outcome.LATE,
+                     validator.validate(event(channel, 1000 - 64)));
+    }
+}